@@ -30,6 +30,30 @@ end
 plugin_appsflyer.getAppsFlyerUID = function()
 end
 
+plugin_appsflyer.logRevenueAds = function()
+end
+
+plugin_appsflyer.getStats = function()
+end
+
+plugin_appsflyer.start = function()
+end
+
+plugin_appsflyer.defineEvent = function()
+end
+
+plugin_appsflyer.logEventFast = function()
+end
+
+plugin_appsflyer.increment = function()
+end
+
+plugin_appsflyer.observe = function()
+end
+
+plugin_appsflyer.getAttribution = function()
+end
+
 -------------------------------------------------------------------------------
 -- END
 -------------------------------------------------------------------------------
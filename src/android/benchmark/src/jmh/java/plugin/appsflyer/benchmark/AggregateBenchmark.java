@@ -0,0 +1,48 @@
+//
+// AggregateBenchmark.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+
+/**
+ * appsflyer.increment() and appsflyer.observe(), which only update metrics in memory. Compare with
+ * LogEventBenchmark, which pays for one SDK event per call.
+ */
+@State(Scope.Thread)
+public class AggregateBenchmark {
+    private PluginHarness harness;
+    private double value = 0;
+
+    @Setup
+    public void setUp() {
+        // no timed summaries, so only the recording is measured
+        harness = PluginHarness.start(Collections.<String, Object>singletonMap("aggregateInterval", 0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public Object increment() {
+        return harness.call("increment", "coins_earned", 25.0);
+    }
+
+    @Benchmark
+    public Object observe() {
+        value = (value + 1.7) % 120;
+        return harness.call("observe", "fps", value);
+    }
+}
@@ -0,0 +1,87 @@
+//
+// DispatchBenchmark.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import com.appsflyer.AppsFlyerLib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lua event delivery: the event map built for each SDK callback, queuing it for the Lua thread and
+ * pushing it into a Lua table. Uses conversion data callbacks, the largest events the plugin sends.
+ * <p>
+ * One operation is one frame in which 'eventsPerFrame' callbacks arrive.
+ */
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    @Param({"string", "table"})
+    public String attributionFormat;
+
+    @Param({"false", "true"})
+    public boolean groupEvents;
+
+    @Param({"1", "8"})
+    public int eventsPerFrame;
+
+    private PluginHarness harness;
+    private Map<String, Object> conversionData;
+
+    @Setup
+    public void setUp() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("attributionFormat", attributionFormat);
+        options.put("groupEvents", groupEvents);
+        harness = PluginHarness.start(options);
+
+        // typical non-organic install conversion data
+        conversionData = new LinkedHashMap<>();
+        conversionData.put("af_status", "Non-organic");
+        conversionData.put("af_message", "");
+        conversionData.put("media_source", "googleadwords_int");
+        conversionData.put("campaign", "summer_sale_2024");
+        conversionData.put("campaign_id", "12345678901");
+        conversionData.put("adset", "adset_a");
+        conversionData.put("adset_id", "98765432101");
+        conversionData.put("adgroup", "adgroup_b");
+        conversionData.put("adgroup_id", "11223344556");
+        conversionData.put("af_channel", "ACI_Search");
+        conversionData.put("af_keywords", "puzzle game");
+        conversionData.put("install_time", "2024-06-01 12:34:56.789");
+        conversionData.put("click_time", "2024-06-01 12:30:00.000");
+        conversionData.put("af_click_lookback", "7d");
+        conversionData.put("agency", null);
+        conversionData.put("retargeting_conversion_type", "none");
+        conversionData.put("is_fb", false);
+        conversionData.put("is_first_launch", true);
+        conversionData.put("cost_cents_USD", 0);
+        conversionData.put("orig_cost", 0.0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public long dispatch() {
+        for (int i = 0; i < eventsPerFrame; i++) {
+            AppsFlyerLib.getInstance().simulateConversionData(conversionData);
+        }
+        harness.pump();
+        return harness.getEventsReceived();
+    }
+}
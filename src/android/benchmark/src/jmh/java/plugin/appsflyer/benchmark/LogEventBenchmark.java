@@ -0,0 +1,67 @@
+//
+// LogEventBenchmark.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * appsflyer.logEvent(eventName, params): traversal of the params table, batching,
+ * the SDK call and delivery of the "recorded" event.
+ */
+@State(Scope.Thread)
+public class LogEventBenchmark {
+    @Param({"0", "4", "16"})
+    public int paramCount;
+
+    private PluginHarness harness;
+    private Object[] args;
+
+    @Setup
+    public void setUp() {
+        // flush right away, so every call is sent within the same pump()
+        harness = PluginHarness.start(Collections.<String, Object>singletonMap("eventFlushInterval", 0));
+
+        // a mix of the value types logEvent accepts
+        Map<String, Object> params = new LinkedHashMap<>();
+        for (int i = 0; i < paramCount; i++) {
+            switch (i % 3) {
+                case 0:
+                    params.put("af_content_id_" + i, "item_" + i);
+                    break;
+                case 1:
+                    params.put("af_revenue_" + i, 1.99 * i);
+                    break;
+                default:
+                    params.put("af_success_" + i, true);
+                    break;
+            }
+        }
+        args = (paramCount > 0) ? new Object[]{"af_level_achieved", harness.table(params)} : new Object[]{"af_level_achieved"};
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public long logEvent() {
+        harness.call("logEvent", args);
+        harness.pump();
+        return harness.getEventsReceived();
+    }
+}
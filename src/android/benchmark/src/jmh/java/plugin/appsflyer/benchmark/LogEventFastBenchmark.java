@@ -0,0 +1,71 @@
+//
+// LogEventFastBenchmark.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * appsflyer.logEventFast(handle, values...) with the same parameters as LogEventBenchmark: positional
+ * values read into the schema's layout, batching, the SDK call and delivery of the "recorded" event.
+ */
+@State(Scope.Thread)
+public class LogEventFastBenchmark {
+    @Param({"0", "4", "16"})
+    public int paramCount;
+
+    private PluginHarness harness;
+    private Object[] args;
+
+    @Setup
+    public void setUp() {
+        // flush right away, so every call is sent within the same pump()
+        harness = PluginHarness.start(Collections.<String, Object>singletonMap("eventFlushInterval", 0));
+
+        // the same mix of value types as LogEventBenchmark
+        List<Object> fields = new ArrayList<>();
+        args = new Object[1 + paramCount];
+        for (int i = 0; i < paramCount; i++) {
+            switch (i % 3) {
+                case 0:
+                    fields.add(Collections.singletonMap("af_content_id_" + i, "string"));
+                    args[1 + i] = "item_" + i;
+                    break;
+                case 1:
+                    fields.add(Collections.singletonMap("af_revenue_" + i, "number"));
+                    args[1 + i] = 1.99 * i;
+                    break;
+                default:
+                    fields.add(Collections.singletonMap("af_success_" + i, "boolean"));
+                    args[1 + i] = true;
+                    break;
+            }
+        }
+        args[0] = harness.call("defineEvent", "af_level_achieved", harness.table(fields));
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public long logEventFast() {
+        harness.call("logEventFast", args);
+        harness.pump();
+        return harness.getEventsReceived();
+    }
+}
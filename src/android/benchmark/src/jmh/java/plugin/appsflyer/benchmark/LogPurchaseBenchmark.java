@@ -0,0 +1,68 @@
+//
+// LogPurchaseBenchmark.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * appsflyer.logPurchase(productData): traversal of productData, CoronaLua.toHashtable() and the
+ * Hashtable to HashMap copy of 'parameters', validation and delivery of the "recorded" event.
+ * <p>
+ * The purchase cache is disabled, so the same purchase is validated on every call.
+ */
+@State(Scope.Thread)
+public class LogPurchaseBenchmark {
+    @Param({"0", "4", "16"})
+    public int parameterCount;
+
+    private PluginHarness harness;
+    private Object[] args;
+
+    @Setup
+    public void setUp() {
+        harness = PluginHarness.start(Collections.<String, Object>singletonMap("purchaseDedupSize", 0));
+
+        Map<String, Object> productData = new LinkedHashMap<>();
+        productData.put("publicKey", "MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAbenchmark");
+        productData.put("signature", "c2lnbmF0dXJlLWJlbmNobWFyaw==");
+        productData.put("purchaseData", "{\"orderId\":\"GPA.0000-0000-0000-00000\",\"packageName\":\"com.example.app\","
+                + "\"productId\":\"coins_100\",\"purchaseTime\":1700000000000,\"purchaseState\":0,"
+                + "\"purchaseToken\":\"opaque-token-benchmark\"}");
+        productData.put("price", "0.99");
+        productData.put("currency", "USD");
+        if (parameterCount > 0) {
+            Map<String, Object> parameters = new LinkedHashMap<>();
+            for (int i = 0; i < parameterCount; i++) {
+                parameters.put("param_" + i, "value_" + i);
+            }
+            productData.put("parameters", parameters);
+        }
+        args = new Object[]{harness.table(productData)};
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public long logPurchase() {
+        harness.call("logPurchase", args);
+        harness.pump();
+        return harness.getEventsReceived();
+    }
+}
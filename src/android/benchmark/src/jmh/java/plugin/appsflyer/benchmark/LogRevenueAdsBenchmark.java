@@ -0,0 +1,84 @@
+//
+// LogRevenueAdsBenchmark.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * appsflyer.logRevenueAds(revenueData): reading a table or parsing the JSON string with Gson,
+ * and resolving 'adSource' to a mediation network.
+ * <p>
+ * "known" always uses the same network name, which is cached after the first call. "unknown" cycles
+ * through more names than the cache holds, so most calls scan MediationNetwork.values().
+ */
+@State(Scope.Thread)
+public class LogRevenueAdsBenchmark {
+    private static final int UNKNOWN_SOURCE_COUNT = 256;
+
+    @Param({"table", "json"})
+    public String input;
+
+    @Param({"known", "unknown"})
+    public String adSource;
+
+    private PluginHarness harness;
+    private Object[][] args;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        // revenue calls are queued with events, flush right away so every call is sent within the same pump()
+        harness = PluginHarness.start(Collections.<String, Object>singletonMap("eventFlushInterval", 0));
+
+        int count = "known".equals(adSource) ? 1 : UNKNOWN_SOURCE_COUNT;
+        args = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            String source = "known".equals(adSource) ? "ironsource" : "network" + i;
+            args[i] = new Object[]{"json".equals(input) ? json(source) : harness.table(revenueData(source))};
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Benchmark
+    public long logRevenueAds() {
+        harness.call("logRevenueAds", args[next]);
+        next = (next + 1) % args.length;
+        return harness.pump();
+    }
+
+    private static Map<String, Object> revenueData(String adSource) {
+        Map<String, Object> revenueData = new LinkedHashMap<>();
+        revenueData.put("monetizationNetwork", "ironsource");
+        revenueData.put("currencyIso4217Code", "USD");
+        revenueData.put("value", 0.0125);
+        revenueData.put("countryCode", "US");
+        revenueData.put("adUnitName", "rewarded_main");
+        revenueData.put("adFormat", "REWARDED");
+        revenueData.put("adSource", adSource);
+        return revenueData;
+    }
+
+    private static String json(String adSource) {
+        return "{\"monetizationNetwork\":\"ironsource\",\"currencyIso4217Code\":\"USD\",\"value\":0.0125,"
+                + "\"countryCode\":\"US\",\"adUnitName\":\"rewarded_main\",\"adFormat\":\"REWARDED\","
+                + "\"adSource\":\"" + adSource + "\"}";
+    }
+}
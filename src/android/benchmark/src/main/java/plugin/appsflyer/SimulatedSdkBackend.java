@@ -0,0 +1,261 @@
+//
+// SimulatedSdkBackend.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.appsflyer.AFAdRevenueData;
+import com.appsflyer.AppsFlyerConversionListener;
+import com.appsflyer.AppsFlyerInAppPurchaseValidatorListener;
+import com.appsflyer.attribution.AppsFlyerRequestListener;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for the AppsFlyer backend, used to load test the plugin without the SDK or a network.
+ * <p>
+ * Every request (logEvent, purchase validation, start) completes after a configurable latency and fails
+ * with a configurable probability. Results are delivered on one of these threads:
+ * <ul>
+ * <li>"caller": on the SDK thread that made the call, which is blocked for the latency</li>
+ * <li>"main": on the main thread</li>
+ * <li>"background": on a small pool of network threads, like the SDK does</li>
+ * </ul>
+ */
+public class SimulatedSdkBackend implements SdkBackend {
+    public static final String CALLBACKS_CALLER = "caller";
+    public static final String CALLBACKS_MAIN = "main";
+    public static final String CALLBACKS_BACKGROUND = "background";
+
+    private static final int NETWORK_THREAD_COUNT = 2;
+
+    private final long latencyMs;
+    private final long jitterMs;
+    private final double errorRate;
+    private final String callbackThread;
+    private final Random random;
+
+    private final ScheduledExecutorService network;
+    private final Handler mainHandler;
+
+    private volatile AppsFlyerConversionListener conversionListener = null;
+    private volatile AppsFlyerInAppPurchaseValidatorListener validatorListener = null;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+
+    /**
+     * @param latencyMs      Minimum time until a request completes.
+     * @param jitterMs       Random extra time, between 0 and jitterMs, added to each request.
+     * @param errorRate      Probability (0..1) that a request fails.
+     * @param callbackThread CALLBACKS_CALLER, CALLBACKS_MAIN or CALLBACKS_BACKGROUND.
+     * @param seed           Seed for latencies and errors, so runs can be repeated.
+     */
+    public SimulatedSdkBackend(long latencyMs, long jitterMs, double errorRate, String callbackThread, long seed) {
+        this.latencyMs = Math.max(0, latencyMs);
+        this.jitterMs = Math.max(0, jitterMs);
+        this.errorRate = Math.max(0, Math.min(1, errorRate));
+        this.callbackThread = callbackThread;
+        this.random = new Random(seed);
+
+        if (!CALLBACKS_CALLER.equals(callbackThread) && !CALLBACKS_MAIN.equals(callbackThread) && !CALLBACKS_BACKGROUND.equals(callbackThread)) {
+            throw new IllegalArgumentException("unknown callback thread '" + callbackThread + "'");
+        }
+
+        network = CALLBACKS_BACKGROUND.equals(callbackThread) ? Executors.newScheduledThreadPool(NETWORK_THREAD_COUNT, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AppsFlyerNetwork-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        mainHandler = CALLBACKS_MAIN.equals(callbackThread) ? new Handler(Looper.getMainLooper()) : null;
+    }
+
+    // make the plugin use 'backend' instead of the AppsFlyer SDK, null restores the SDK
+    public static void install(SimulatedSdkBackend backend) {
+        LuaLoader.setSdkBackend(backend);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    // requests whose result has not been delivered yet
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    public void shutdown() {
+        if (network != null) {
+            network.shutdownNow();
+        }
+    }
+
+    // complete a request after the simulated latency, with 'onSuccess' or 'onError'
+    private void respond(final Runnable onSuccess, final Runnable onError) {
+        final boolean fail;
+        final long delayMs;
+        synchronized (random) {
+            fail = random.nextDouble() < errorRate;
+            delayMs = latencyMs + (jitterMs > 0 ? (long) (random.nextDouble() * jitterMs) : 0);
+        }
+
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+        Runnable result = new Runnable() {
+            @Override
+            public void run() {
+                inFlight.decrementAndGet();
+                if (fail) {
+                    errors.incrementAndGet();
+                    onError.run();
+                } else {
+                    onSuccess.run();
+                }
+            }
+        };
+
+        if (network != null) {
+            network.schedule(result, delayMs, TimeUnit.MILLISECONDS);
+        } else if (mainHandler != null) {
+            mainHandler.postDelayed(result, delayMs);
+        } else {
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            result.run();
+        }
+    }
+
+    @Override
+    public void init(String devKey, AppsFlyerConversionListener conversionListener, Context context) {
+        this.conversionListener = conversionListener;
+    }
+
+    // conversion data arrives once the simulated first launch request completes
+    @Override
+    public void start(Context context) {
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                AppsFlyerConversionListener listener = conversionListener;
+                if (listener != null) {
+                    Map<String, Object> conversionData = new HashMap<>();
+                    conversionData.put("af_status", "Organic");
+                    conversionData.put("is_first_launch", true);
+                    conversionData.put("install_time", "2024-06-01 12:34:56.789");
+                    listener.onConversionDataSuccess(conversionData);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                AppsFlyerConversionListener listener = conversionListener;
+                if (listener != null) {
+                    listener.onConversionDataFail("simulated error");
+                }
+            }
+        });
+    }
+
+    @Override
+    public void registerConversionListener(Context context, AppsFlyerConversionListener conversionListener) {
+        this.conversionListener = conversionListener;
+    }
+
+    @Override
+    public void setDebugLog(boolean enabled) {
+    }
+
+    @Override
+    public void anonymizeUser(boolean anonymize) {
+    }
+
+    @Override
+    public void logEvent(Context context, String eventName, Map<String, Object> eventValues, final AppsFlyerRequestListener listener) {
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onSuccess();
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onError(500, "simulated error");
+                }
+            }
+        });
+    }
+
+    @Override
+    public void registerValidatorListener(Context context, AppsFlyerInAppPurchaseValidatorListener listener) {
+        validatorListener = listener;
+    }
+
+    @Override
+    public void validateAndLogInAppPurchase(Context context, String publicKey, String signature, String purchaseData,
+                                            String price, String currency, Map<String, String> additionalParameters) {
+        final AppsFlyerInAppPurchaseValidatorListener listener = validatorListener;
+        respond(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onValidateInApp();
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onValidateInAppFailure("simulated error");
+                }
+            }
+        });
+    }
+
+    // ad revenue has no result callback
+    @Override
+    public void logAdRevenue(AFAdRevenueData adRevenueData, Map<String, Object> additionalParameters) {
+        requests.incrementAndGet();
+    }
+
+    @Override
+    public String getSdkVersion() {
+        return "simulated";
+    }
+
+    @Override
+    public String getAppsFlyerUID(Context context) {
+        return "1700000000000-0000000000000000000";
+    }
+}
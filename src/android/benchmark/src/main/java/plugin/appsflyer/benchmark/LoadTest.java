@@ -0,0 +1,296 @@
+//
+// LoadTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import com.naef.jnlua.LuaTable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import plugin.appsflyer.SimulatedSdkBackend;
+
+/**
+ * Fires a sustained stream of logEvent, logPurchase and logRevenueAds calls through the plugin's Lua functions,
+ * against a SimulatedSdkBackend, and reports throughput, latencies and memory once per second.
+ * <p>
+ * The calling thread is the Lua thread and runs at a fixed frame rate. The main thread is a separate thread,
+ * as in an app. Latencies come from appsflyer.getStats().
+ * <p>
+ * Options (defaults in brackets):
+ * <pre>
+ *   --rate N              calls per second [1000]
+ *   --duration S          seconds to run [30]
+ *   --frame-rate N        Lua frames per second [60]
+ *   --purchase-ratio F    fraction of calls that are logPurchase [0.01]
+ *   --revenue-ratio F     fraction of calls that are logRevenueAds [0.05]
+ *   --latency MS          simulated request latency [100]
+ *   --jitter MS           random extra latency [100]
+ *   --error-rate F        fraction of requests that fail [0.01]
+ *   --callbacks T         caller, main or background [background]
+ *   --execution-mode M    init option executionMode [mainThread]
+ *   --flush-interval MS   init option eventFlushInterval [16]
+ *   --group-events        init option groupEvents
+ *   --max-queued N        init option queueLimits.maxQueued [1000]
+ *   --max-in-flight N     init option queueLimits.maxInFlight [500]
+ *   --overflow P          init option queueLimits.overflow [dropOldest]
+ * </pre>
+ */
+public final class LoadTest {
+    private static final String[] EVENT_NAMES = {
+            "af_level_achieved", "af_tutorial_completion", "af_achievement_unlocked", "af_content_view",
+            "af_add_to_cart", "af_spent_credits", "af_share", "af_login"
+    };
+
+    private double rate = 1000;
+    private int duration = 30;
+    private int frameRate = 60;
+    private double purchaseRatio = 0.01;
+    private double revenueRatio = 0.05;
+    private long latencyMs = 100;
+    private long jitterMs = 100;
+    private double errorRate = 0.01;
+    private String callbacks = SimulatedSdkBackend.CALLBACKS_BACKGROUND;
+    private String executionMode = "mainThread";
+    private long flushInterval = 16;
+    private boolean groupEvents = false;
+    private int maxQueued = 1000;
+    private int maxInFlight = 500;
+    private String overflow = "dropOldest";
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadTest loadTest = new LoadTest();
+        try {
+            loadTest.parse(args);
+        } catch (RuntimeException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(2);
+        }
+        loadTest.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.isEmpty()) {
+                continue;
+            }
+            if ("--group-events".equals(option)) {
+                groupEvents = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + option);
+            }
+
+            String value = args[++i];
+            switch (option) {
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--frame-rate":
+                    frameRate = Integer.parseInt(value);
+                    break;
+                case "--purchase-ratio":
+                    purchaseRatio = Double.parseDouble(value);
+                    break;
+                case "--revenue-ratio":
+                    revenueRatio = Double.parseDouble(value);
+                    break;
+                case "--latency":
+                    latencyMs = Long.parseLong(value);
+                    break;
+                case "--jitter":
+                    jitterMs = Long.parseLong(value);
+                    break;
+                case "--error-rate":
+                    errorRate = Double.parseDouble(value);
+                    break;
+                case "--callbacks":
+                    callbacks = value;
+                    break;
+                case "--execution-mode":
+                    executionMode = value;
+                    break;
+                case "--flush-interval":
+                    flushInterval = Long.parseLong(value);
+                    break;
+                case "--max-queued":
+                    maxQueued = Integer.parseInt(value);
+                    break;
+                case "--max-in-flight":
+                    maxInFlight = Integer.parseInt(value);
+                    break;
+                case "--overflow":
+                    overflow = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        SimulatedSdkBackend backend = new SimulatedSdkBackend(latencyMs, jitterMs, errorRate, callbacks, 1);
+        SimulatedSdkBackend.install(backend);
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("executionMode", executionMode);
+        options.put("eventFlushInterval", flushInterval);
+        options.put("groupEvents", groupEvents);
+        Map<String, Object> queueLimits = new HashMap<>();
+        queueLimits.put("maxQueued", maxQueued);
+        queueLimits.put("maxInFlight", maxInFlight);
+        queueLimits.put("overflow", overflow);
+        options.put("queueLimits", queueLimits);
+        PluginHarness harness = PluginHarness.start(options, false);
+
+        // tables are built once, as a game would keep them around
+        LuaTable[] eventParams = new LuaTable[EVENT_NAMES.length];
+        for (int i = 0; i < EVENT_NAMES.length; i++) {
+            Map<String, Object> params = new LinkedHashMap<>();
+            params.put("af_level", (double) i);
+            params.put("af_score", 1000.0 * i);
+            params.put("af_content_id", "content_" + i);
+            params.put("af_success", true);
+            eventParams[i] = harness.table(params);
+        }
+        LuaTable revenueData = harness.table(revenueData());
+
+        long baseHeap = usedHeapAfterGc();
+        System.out.printf("rate %.0f calls/s for %ds, latency %d+%dms, error rate %.3f, callbacks on %s thread, executionMode %s%n",
+                rate, duration, latencyMs, jitterMs, errorRate, callbacks, executionMode);
+
+        Random random = new Random(2);
+        long frameNanos = 1000000000L / frameRate;
+        long start = System.nanoTime();
+        long nextFrame = start;
+        long nextReport = start + 1000000000L;
+        double callCredit = 0;
+        long calls = 0;
+        long lastCalls = 0;
+        long lastEvents = 0;
+        long purchaseCount = 0;
+
+        while (System.nanoTime() - start < duration * 1000000000L) {
+            // this frame's share of the calls
+            callCredit += rate / frameRate;
+            while (callCredit >= 1) {
+                callCredit -= 1;
+                calls++;
+
+                double kind = random.nextDouble();
+                if (kind < purchaseRatio) {
+                    harness.call("logPurchase", harness.table(purchase(++purchaseCount)));
+                } else if (kind < purchaseRatio + revenueRatio) {
+                    harness.call("logRevenueAds", revenueData);
+                } else {
+                    int event = random.nextInt(EVENT_NAMES.length);
+                    harness.call("logEvent", EVENT_NAMES[event], eventParams[event]);
+                }
+            }
+            harness.pump();
+
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                long events = harness.getEventsReceived();
+                report((now - start) / 1000000000L, calls - lastCalls, events - lastEvents, (LuaTable) harness.call("getStats"));
+                lastCalls = calls;
+                lastEvents = events;
+                nextReport += 1000000000L;
+            }
+
+            nextFrame += frameNanos;
+            long sleepNanos = nextFrame - System.nanoTime();
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+            }
+        }
+
+        // let outstanding requests and queued purchase validations finish
+        long drainDeadline = System.currentTimeMillis() + latencyMs + jitterMs + 5000;
+        while ((backend.getInFlight() > 0 || queuedPurchases(harness) > 0) && System.currentTimeMillis() < drainDeadline) {
+            harness.pump();
+            Thread.sleep(10);
+        }
+        Thread.sleep(flushInterval + 100);
+        harness.pump();
+
+        LuaTable stats = (LuaTable) harness.call("getStats");
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        System.out.printf("%ntotal: %d calls in %.1fs, %d SDK requests, %d errors, %d still in flight, %d Lua events%n",
+                calls, elapsedMs / 1000.0, backend.getRequests(), backend.getErrors(), backend.getInFlight(), harness.getEventsReceived());
+        LuaTable sdk = (LuaTable) stats.get("sdk");
+        LuaTable dropped = (LuaTable) stats.get("dropped");
+        System.out.printf("queue limits (%s): %.0f oldest, %.0f newest, %.0f block timeouts, %.0f coalesced dropped%n", overflow,
+                (Double) dropped.get("overflowOldest"), (Double) dropped.get("overflowNewest"),
+                (Double) dropped.get("blockTimeout"), (Double) dropped.get("coalesced"));
+        System.out.printf("purchases: %.0f validation failures, %.0f timeouts, %.0f rejected by a full queue, %.0f still queued%n",
+                (Double) sdk.get("validationFailures"), (Double) sdk.get("validationTimeouts"),
+                (Double) dropped.get("validationQueueFull"), (Double) ((LuaTable) stats.get("queues")).get("purchases"));
+        System.out.printf("latency (p50/p99 ms): luaToSdk %s, sdkCallback %s, luaDispatch %s%n",
+                percentiles(stats, "luaToSdk"), percentiles(stats, "sdkCallback"), percentiles(stats, "luaDispatch"));
+        System.out.printf("heap after GC: %.1fMB at start, %.1fMB at end%n", baseHeap / 1048576.0, usedHeapAfterGc() / 1048576.0);
+
+        harness.close();
+        SimulatedSdkBackend.install(null);
+        backend.shutdown();
+    }
+
+    private static void report(long second, long calls, long events, LuaTable stats) {
+        LuaTable queues = (LuaTable) stats.get("queues");
+        System.out.printf("%3ds  calls %6d/s  Lua events %6d/s  sdkCallback p50/p99 %s ms  queued events %.0f, Lua events %.0f  heap %.1fMB%n",
+                second, calls, events, percentiles(stats, "sdkCallback"),
+                (Double) queues.get("events"), (Double) queues.get("luaEvents"), usedHeap() / 1048576.0);
+    }
+
+    private static double queuedPurchases(PluginHarness harness) {
+        LuaTable queues = (LuaTable) ((LuaTable) harness.call("getStats")).get("queues");
+        return (Double) queues.get("purchases");
+    }
+
+    private static String percentiles(LuaTable stats, String stage) {
+        LuaTable latency = (LuaTable) ((LuaTable) stats.get("latency")).get(stage);
+        return latency.get("p50") + "/" + latency.get("p99");
+    }
+
+    private static Map<String, Object> purchase(long count) {
+        Map<String, Object> productData = new LinkedHashMap<>();
+        productData.put("publicKey", "MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAloadtest");
+        productData.put("signature", "c2lnbmF0dXJlLWxvYWR0ZXN0");
+        productData.put("purchaseData", "{\"productId\":\"coins_100\",\"purchaseToken\":\"token-" + count + "\"}");
+        productData.put("price", "0.99");
+        productData.put("currency", "USD");
+        return productData;
+    }
+
+    private static Map<String, Object> revenueData() {
+        Map<String, Object> revenueData = new LinkedHashMap<>();
+        revenueData.put("monetizationNetwork", "ironsource");
+        revenueData.put("currencyIso4217Code", "USD");
+        revenueData.put("value", 0.0125);
+        revenueData.put("adFormat", "REWARDED");
+        revenueData.put("adSource", "ironsource");
+        return revenueData;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        System.gc();
+        Thread.sleep(100);
+        return usedHeap();
+    }
+}
@@ -0,0 +1,183 @@
+//
+// PluginHarness.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer.benchmark;
+
+import android.os.Looper;
+
+import com.ansca.corona.CoronaActivity;
+import com.ansca.corona.CoronaEnvironment;
+import com.ansca.corona.CoronaRuntime;
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import plugin.appsflyer.LuaLoader;
+
+/**
+ * Runs the plugin on the stand-in runtime, the way a Corona app would use it.
+ * <p>
+ * The plugin is loaded with require() semantics and called through the NamedJavaFunctions it registers.
+ * The thread that creates the harness is the Lua thread, pump() runs the runtime tasks the plugin queued.
+ * By default it is the main thread as well and pump() also runs the main thread messages, so a whole call
+ * path runs synchronously. Otherwise the main thread is a separate background thread.
+ */
+final class PluginHarness {
+    private static final String LIBRARY_NAME = "plugin.appsflyer";
+
+    private final File filesDir;
+    private final LuaState L = new LuaState();
+    private final CoronaRuntime runtime = new CoronaRuntime(L);
+    private final Looper mainLooper;
+    private final LuaLoader loader;
+    private final LuaTable library;
+
+    private long baseCallCount = 0;
+    private long frames = 0;
+    private long eventsReceived = 0;
+    private boolean initialized = false;
+
+    // Lua listener passed to appsflyer.init()
+    private final JavaFunction listener = new JavaFunction() {
+        @Override
+        public int invoke(LuaState luaState) {
+            LuaTable event = (LuaTable) luaState.peek(1);
+            eventsReceived++;
+            if ("init".equals(event.get("phase"))) {
+                initialized = true;
+            }
+            return 0;
+        }
+    };
+
+    private PluginHarness(File filesDir, boolean callerIsMainThread) {
+        this.filesDir = filesDir;
+
+        if (callerIsMainThread) {
+            if (Looper.myLooper() == null) {
+                Looper.prepareMainLooper();
+            }
+            mainLooper = Looper.myLooper();
+        } else {
+            mainLooper = null;
+        }
+        CoronaEnvironment.setCoronaActivity(new CoronaActivity(filesDir));
+
+        // local appsflyer = require( "plugin.appsflyer" ), as in the first Corona activity onLoaded() is not called
+        loader = new LuaLoader();
+        L.pushString(LIBRARY_NAME);
+        loader.invoke(L);
+        library = (LuaTable) L.peek(-1);
+        L.setTop(0);
+    }
+
+    static PluginHarness start(Map<String, Object> options) {
+        return start(options, true);
+    }
+
+    /**
+     * Loads the plugin and calls appsflyer.init() with 'options' plus an appID and devKey.
+     * Returns once the "init" event was delivered.
+     */
+    static PluginHarness start(Map<String, Object> options, boolean callerIsMainThread) {
+        File filesDir;
+        try {
+            filesDir = Files.createTempDirectory("appsflyer-benchmark").toFile();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        PluginHarness harness = new PluginHarness(filesDir, callerIsMainThread);
+        Map<String, Object> initOptions = new HashMap<>(options);
+        initOptions.put("appID", "id000000000");
+        initOptions.put("devKey", "benchmarkDevKey");
+        harness.call("init", harness.listener, initOptions);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!harness.initialized) {
+            if (harness.pump() == 0) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("appsflyer.init() did not complete");
+                }
+                Thread.yield();
+            }
+        }
+        harness.baseCallCount = harness.L.getCallCount();
+        harness.frames = 0;
+        return harness;
+    }
+
+    // converts maps and lists to a Lua table once, so benchmarks can pass the same table on every call
+    LuaTable table(Object value) {
+        L.push(value);
+        LuaTable table = (LuaTable) L.peek(-1);
+        L.setTop(0);
+        return table;
+    }
+
+    // calls appsflyer.<function>(args...) and returns its first result
+    Object call(String function, Object... args) {
+        L.push(library.get(function));
+        for (Object arg : args) {
+            L.push(arg);
+        }
+        L.call(args.length, 1);
+        Object result = L.peek(-1);
+        L.setTop(0);
+        return result;
+    }
+
+    // runs main thread messages (if the caller is the main thread) and runtime tasks until both are idle,
+    // returns the number run. Call it once per operation or frame.
+    int pump() {
+        frames++;
+        int total = 0;
+        int count;
+        do {
+            count = ((mainLooper != null) ? mainLooper.runPending() : 0) + runtime.runPendingTasks();
+            total += count;
+        } while (count > 0);
+        return total;
+    }
+
+    long getEventsReceived() {
+        return eventsReceived;
+    }
+
+    // LuaState calls (JNI crossings on a device) per frame since init, including event delivery
+    double getLuaStateCallsPerFrame() {
+        return (frames > 0) ? (double) (L.getCallCount() - baseCallCount) / frames : 0;
+    }
+
+    // unloads the plugin and removes its files
+    void close() {
+        System.out.printf("%nLuaState calls per operation: %.1f, Lua events received: %d%n", getLuaStateCallsPerFrame(), eventsReceived);
+
+        pump();
+        loader.onExiting(runtime);
+        CoronaEnvironment.removeRuntimeListener(loader);
+        CoronaEnvironment.setCoronaActivity(null);
+        delete(filesDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
@@ -0,0 +1,33 @@
+//
+// Activity.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.app;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Stand-in for an Android activity, with its own application.
+ */
+public class Activity extends Context {
+    private final Application application;
+
+    public Activity(File filesDir) {
+        super(filesDir);
+        application = new Application(filesDir);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return application;
+    }
+
+    public Application getApplication() {
+        return application;
+    }
+}
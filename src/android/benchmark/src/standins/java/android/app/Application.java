@@ -0,0 +1,21 @@
+//
+// Application.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.app;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Stand-in for the Android application.
+ */
+public class Application extends Context {
+    public Application(File filesDir) {
+        super(filesDir);
+    }
+}
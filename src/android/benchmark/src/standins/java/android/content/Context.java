@@ -0,0 +1,29 @@
+//
+// Context.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in for the Android context, backed by a files directory on the local disk.
+ */
+public class Context {
+    private final File filesDir;
+
+    public Context(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
@@ -0,0 +1,23 @@
+//
+// Build.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.os;
+
+/**
+ * Stand-in for the Android build information, reports the plugin's target SDK.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 35;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16;
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int N = 24;
+    }
+}
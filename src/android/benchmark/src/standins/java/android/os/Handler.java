@@ -0,0 +1,39 @@
+//
+// Handler.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.os;
+
+/**
+ * Stand-in for the Android handler, posts to the message queue of a stand-in Looper.
+ */
+public class Handler {
+    private final Looper looper;
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public Looper getLooper() {
+        return looper;
+    }
+
+    public boolean post(Runnable r) {
+        return looper.enqueue(r, SystemClock.uptimeMillis(), false);
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        return looper.enqueue(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis), false);
+    }
+
+    public boolean postAtFrontOfQueue(Runnable r) {
+        return looper.enqueue(r, 0, true);
+    }
+
+    public void removeCallbacks(Runnable r) {
+        looper.remove(r);
+    }
+}
@@ -0,0 +1,67 @@
+//
+// HandlerThread.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.os;
+
+/**
+ * Stand-in for the Android handler thread: a thread running a stand-in Looper.
+ */
+public class HandlerThread extends Thread {
+    private Looper looper;
+
+    public HandlerThread(String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    public HandlerThread(String name, int priority) {
+        this(name);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            looper = Looper.myLooper();
+            notifyAll();
+        }
+        Looper.loop();
+    }
+
+    // waits until the thread has started its looper
+    public Looper getLooper() {
+        synchronized (this) {
+            while (looper == null && isAlive()) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return looper;
+        }
+    }
+
+    public boolean quit() {
+        Looper looper = getLooper();
+        if (looper == null) {
+            return false;
+        }
+        looper.quit();
+        return true;
+    }
+
+    public boolean quitSafely() {
+        Looper looper = getLooper();
+        if (looper == null) {
+            return false;
+        }
+        looper.quitSafely();
+        return true;
+    }
+}
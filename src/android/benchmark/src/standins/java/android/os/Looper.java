@@ -0,0 +1,170 @@
+//
+// Looper.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Stand-in for the Android looper: a message queue of runnables ordered by due time.
+ * <p>
+ * A thread either runs loop(), like a HandlerThread, or drains the due messages itself with runPending().
+ * The latter lets a benchmark thread act as the main thread and run the whole call path synchronously.
+ * If nobody prepared a main looper, getMainLooper() starts a background "main" thread.
+ */
+public final class Looper {
+    private static final ThreadLocal<Looper> threadLooper = new ThreadLocal<>();
+    private static Looper mainLooper = null;
+
+    private static final class Message {
+        final Runnable callback;
+        final long when;
+        final long sequence;
+
+        Message(Runnable callback, long when, long sequence) {
+            this.callback = callback;
+            this.when = when;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Thread thread;
+    private final PriorityQueue<Message> queue = new PriorityQueue<>(16, (a, b) -> {
+        int order = Long.compare(a.when, b.when);
+        return (order != 0) ? order : Long.compare(a.sequence, b.sequence);
+    });
+    private long nextSequence = 0;
+    private long nextFrontSequence = -1;
+    private boolean quitting = false;
+
+    private Looper(Thread thread) {
+        this.thread = thread;
+    }
+
+    public static void prepare() {
+        if (threadLooper.get() != null) {
+            throw new IllegalStateException("Only one Looper may be created per thread");
+        }
+        threadLooper.set(new Looper(Thread.currentThread()));
+    }
+
+    // makes the calling thread the main thread, replacing any earlier main looper
+    public static void prepareMainLooper() {
+        if (threadLooper.get() == null) {
+            prepare();
+        }
+        synchronized (Looper.class) {
+            mainLooper = threadLooper.get();
+        }
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (mainLooper == null) {
+            HandlerThread mainThread = new HandlerThread("main");
+            mainThread.start();
+            mainLooper = mainThread.getLooper();
+        }
+        return mainLooper;
+    }
+
+    public static Looper myLooper() {
+        return threadLooper.get();
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    public boolean isCurrentThread() {
+        return thread == Thread.currentThread();
+    }
+
+    // runs messages on the calling thread until the looper quits
+    public static void loop() {
+        Looper me = myLooper();
+        if (me == null) {
+            throw new IllegalStateException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+
+        while (true) {
+            Message message;
+            synchronized (me) {
+                while (true) {
+                    Message head = me.queue.peek();
+                    long now = SystemClock.uptimeMillis();
+                    if (head != null && head.when <= now) {
+                        message = me.queue.poll();
+                        break;
+                    }
+                    if (me.quitting && head == null) {
+                        return;
+                    }
+                    try {
+                        me.wait(head == null ? 0 : Math.max(1, head.when - now));
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+            message.callback.run();
+        }
+    }
+
+    // stand-in only: runs all messages that are due on the calling thread, returns the number of messages run
+    public int runPending() {
+        int count = 0;
+        while (true) {
+            Message message;
+            synchronized (this) {
+                Message head = queue.peek();
+                if (head == null || head.when > SystemClock.uptimeMillis()) {
+                    return count;
+                }
+                message = queue.poll();
+            }
+            message.callback.run();
+            count++;
+        }
+    }
+
+    // drop all messages and stop
+    public synchronized void quit() {
+        quitting = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    // drop delayed messages, run the ones that are due, then stop
+    public synchronized void quitSafely() {
+        quitting = true;
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().when > now) {
+                it.remove();
+            }
+        }
+        notifyAll();
+    }
+
+    synchronized boolean enqueue(Runnable callback, long when, boolean atFront) {
+        if (quitting) {
+            return false;
+        }
+        queue.add(new Message(callback, atFront ? Long.MIN_VALUE : when, atFront ? nextFrontSequence-- : nextSequence++));
+        notifyAll();
+        return true;
+    }
+
+    synchronized void remove(Runnable callback) {
+        for (Iterator<Message> it = queue.iterator(); it.hasNext(); ) {
+            if (it.next().callback == callback) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+//
+// Process.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Stand-in for the Android process constants and start time.
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private static final long START_UPTIME_MILLIS = SystemClock.uptimeMillis() - ManagementFactory.getRuntimeMXBean().getUptime();
+
+    // the start of the JVM
+    public static long getStartUptimeMillis() {
+        return START_UPTIME_MILLIS;
+    }
+}
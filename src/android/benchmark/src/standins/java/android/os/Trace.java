@@ -0,0 +1,19 @@
+//
+// Trace.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package android.os;
+
+/**
+ * Stand-in for the Android systrace API, sections are not recorded.
+ */
+public final class Trace {
+    public static void beginSection(String sectionName) {
+    }
+
+    public static void endSection() {
+    }
+}
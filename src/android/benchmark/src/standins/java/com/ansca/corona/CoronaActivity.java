@@ -0,0 +1,19 @@
+//
+// CoronaActivity.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+import java.io.File;
+
+/**
+ * Stand-in for the Corona activity.
+ */
+public class CoronaActivity extends android.app.Activity {
+    public CoronaActivity(File filesDir) {
+        super(filesDir);
+    }
+}
@@ -0,0 +1,46 @@
+//
+// CoronaEnvironment.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stand-in for Corona's environment accessors.
+ */
+public class CoronaEnvironment {
+    private static volatile CoronaActivity coronaActivity = null;
+    private static final List<CoronaRuntimeListener> runtimeListeners = new CopyOnWriteArrayList<>();
+
+    public static CoronaActivity getCoronaActivity() {
+        return coronaActivity;
+    }
+
+    // stand-in only
+    public static void setCoronaActivity(CoronaActivity activity) {
+        coronaActivity = activity;
+    }
+
+    public static android.content.Context getApplicationContext() {
+        CoronaActivity activity = coronaActivity;
+        return (activity != null) ? activity.getApplicationContext() : null;
+    }
+
+    public static void addRuntimeListener(CoronaRuntimeListener listener) {
+        runtimeListeners.add(listener);
+    }
+
+    public static void removeRuntimeListener(CoronaRuntimeListener listener) {
+        runtimeListeners.remove(listener);
+    }
+
+    // stand-in only
+    public static List<CoronaRuntimeListener> getRuntimeListeners() {
+        return runtimeListeners;
+    }
+}
@@ -0,0 +1,114 @@
+//
+// CoronaLua.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+import com.naef.jnlua.JavaFunction;
+import com.naef.jnlua.LuaState;
+import com.naef.jnlua.LuaTable;
+import com.naef.jnlua.LuaType;
+
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Stand-in for Corona's Lua helper functions, built on the stand-in LuaState.
+ */
+public class CoronaLua {
+    public static final int REFNIL = -1;
+    public static final int NOREF = -2;
+
+    public static int newRef(LuaState L, int index) {
+        return L.ref(L.peek(index));
+    }
+
+    public static void deleteRef(LuaState L, int reference) {
+        L.unref(reference);
+    }
+
+    // a function, or a table with a function field 'name'
+    public static boolean isListener(LuaState L, int index, String name) {
+        Object value = L.peek(index);
+        if (value instanceof JavaFunction) {
+            return true;
+        }
+        return value instanceof LuaTable && ((LuaTable) value).get(name) instanceof JavaFunction;
+    }
+
+    public static void newEvent(LuaState L, String name) {
+        L.newTable();
+        L.pushString(name);
+        L.setField(-2, CoronaLuaEvent.NAME_KEY);
+    }
+
+    // calls the listener 'reference' with the event on top of the stack, the event is popped
+    public static void dispatchEvent(LuaState L, int reference, int resultCount) {
+        Object listener = L.getReference(reference);
+        Object event = L.peek(-1);
+        L.pop(1);
+
+        if (listener instanceof LuaTable) {
+            Object method = ((LuaTable) listener).get(((LuaTable) event).get(CoronaLuaEvent.NAME_KEY));
+            if (!(method instanceof JavaFunction)) {
+                return;
+            }
+            L.push(method);
+            L.push(listener);
+            L.push(event);
+            L.call(2, resultCount);
+        } else if (listener instanceof JavaFunction) {
+            L.push(listener);
+            L.push(event);
+            L.call(1, resultCount);
+        }
+    }
+
+    public static void pushValue(LuaState L, Object value) {
+        if (value instanceof Map || value == null || value instanceof String || value instanceof Number || value instanceof Boolean) {
+            L.push(value);
+        } else {
+            L.pushString(value.toString());
+        }
+    }
+
+    // copies the table at 'index' (and nested tables) into Hashtables, keys are strings or numbers
+    public static Hashtable<Object, Object> toHashtable(LuaState L, int index) {
+        if (!L.isTable(index)) {
+            return null;
+        }
+        index = L.absIndex(index);
+
+        Hashtable<Object, Object> hashtable = new Hashtable<>();
+        for (L.pushNil(); L.next(index); L.pop(1)) {
+            Object key;
+            LuaType keyType = L.type(-2);
+            if (keyType == LuaType.STRING) {
+                key = L.toString(-2);
+            } else if (keyType == LuaType.NUMBER) {
+                key = L.toNumber(-2);
+            } else {
+                continue;
+            }
+
+            Object value;
+            LuaType valueType = L.type(-1);
+            if (valueType == LuaType.STRING) {
+                value = L.toString(-1);
+            } else if (valueType == LuaType.NUMBER) {
+                value = L.toNumber(-1);
+            } else if (valueType == LuaType.BOOLEAN) {
+                value = L.toBoolean(-1);
+            } else if (valueType == LuaType.TABLE) {
+                value = toHashtable(L, L.getTop());
+            } else {
+                continue;
+            }
+            hashtable.put(key, value);
+        }
+        return hashtable;
+    }
+}
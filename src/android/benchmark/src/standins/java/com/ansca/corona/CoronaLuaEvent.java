@@ -0,0 +1,22 @@
+//
+// CoronaLuaEvent.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+/**
+ * Stand-in for Corona's standard Lua event keys.
+ */
+public class CoronaLuaEvent {
+    public static final String NAME_KEY = "name";
+    public static final String PROVIDER_KEY = "provider";
+    public static final String PHASE_KEY = "phase";
+    public static final String TYPE_KEY = "type";
+    public static final String DATA_KEY = "data";
+    public static final String ISERROR_KEY = "isError";
+    public static final String ERRORTYPE_KEY = "errorType";
+    public static final String RESPONSE_KEY = "response";
+}
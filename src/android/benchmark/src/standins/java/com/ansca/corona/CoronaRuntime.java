@@ -0,0 +1,58 @@
+//
+// CoronaRuntime.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+import com.naef.jnlua.LuaState;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Stand-in for a Corona runtime.
+ * <p>
+ * Tasks sent through a CoronaRuntimeTaskDispatcher are queued and run by runPendingTasks(), which plays
+ * the part of Corona's per-frame task processing. Call it from the thread that owns the LuaState.
+ */
+public class CoronaRuntime {
+    private static final Map<LuaState, CoronaRuntime> runtimes = Collections.synchronizedMap(new WeakHashMap<LuaState, CoronaRuntime>());
+
+    private final LuaState luaState;
+    private final ConcurrentLinkedQueue<CoronaRuntimeTask> tasks = new ConcurrentLinkedQueue<>();
+
+    public CoronaRuntime(LuaState luaState) {
+        this.luaState = luaState;
+        runtimes.put(luaState, this);
+    }
+
+    // stand-in only: the runtime that owns 'luaState', null if there is none
+    static CoronaRuntime forLuaState(LuaState luaState) {
+        return runtimes.get(luaState);
+    }
+
+    public LuaState getLuaState() {
+        return luaState;
+    }
+
+    // stand-in only: queue a task for the Lua thread
+    void post(CoronaRuntimeTask task) {
+        tasks.offer(task);
+    }
+
+    // stand-in only: run the queued tasks, returns the number of tasks run
+    public int runPendingTasks() {
+        int count = 0;
+        CoronaRuntimeTask task;
+        while ((task = tasks.poll()) != null) {
+            task.executeUsing(this);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,23 @@
+//
+// CoronaRuntimeListener.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+/**
+ * Stand-in for Corona's runtime lifecycle listener.
+ */
+public interface CoronaRuntimeListener {
+    void onLoaded(CoronaRuntime runtime);
+
+    void onStarted(CoronaRuntime runtime);
+
+    void onSuspended(CoronaRuntime runtime);
+
+    void onResumed(CoronaRuntime runtime);
+
+    void onExiting(CoronaRuntime runtime);
+}
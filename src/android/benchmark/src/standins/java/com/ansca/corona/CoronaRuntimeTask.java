@@ -0,0 +1,15 @@
+//
+// CoronaRuntimeTask.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+/**
+ * Stand-in for Corona's interface of tasks run on the Lua thread.
+ */
+public interface CoronaRuntimeTask {
+    void executeUsing(CoronaRuntime runtime);
+}
@@ -0,0 +1,39 @@
+//
+// CoronaRuntimeTaskDispatcher.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.ansca.corona;
+
+import com.naef.jnlua.LuaState;
+
+/**
+ * Stand-in for Corona's dispatcher of tasks to the Lua thread.
+ */
+public class CoronaRuntimeTaskDispatcher {
+    private final CoronaRuntime runtime;
+
+    public CoronaRuntimeTaskDispatcher(CoronaRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    public CoronaRuntimeTaskDispatcher(LuaState luaState) {
+        this(CoronaRuntime.forLuaState(luaState));
+    }
+
+    public boolean isRuntimeAvailable() {
+        return runtime != null;
+    }
+
+    public boolean isRuntimeUnavailable() {
+        return runtime == null;
+    }
+
+    public void send(CoronaRuntimeTask task) {
+        if (runtime != null) {
+            runtime.post(task);
+        }
+    }
+}
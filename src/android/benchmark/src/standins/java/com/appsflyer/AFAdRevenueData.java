@@ -0,0 +1,41 @@
+//
+// AFAdRevenueData.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer;
+
+/**
+ * Stand-in for the AppsFlyer ad revenue record.
+ */
+public class AFAdRevenueData {
+    private final String monetizationNetwork;
+    private final MediationNetwork mediationNetwork;
+    private final String currencyIso4217Code;
+    private final double revenue;
+
+    public AFAdRevenueData(String monetizationNetwork, MediationNetwork mediationNetwork, String currencyIso4217Code, double revenue) {
+        this.monetizationNetwork = monetizationNetwork;
+        this.mediationNetwork = mediationNetwork;
+        this.currencyIso4217Code = currencyIso4217Code;
+        this.revenue = revenue;
+    }
+
+    public String getMonetizationNetwork() {
+        return monetizationNetwork;
+    }
+
+    public MediationNetwork getMediationNetwork() {
+        return mediationNetwork;
+    }
+
+    public String getCurrencyIso4217Code() {
+        return currencyIso4217Code;
+    }
+
+    public double getRevenue() {
+        return revenue;
+    }
+}
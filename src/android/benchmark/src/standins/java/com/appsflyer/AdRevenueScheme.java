@@ -0,0 +1,18 @@
+//
+// AdRevenueScheme.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer;
+
+/**
+ * Stand-in for the AppsFlyer ad revenue parameter names.
+ */
+public class AdRevenueScheme {
+    public static final String COUNTRY = "country";
+    public static final String AD_UNIT = "ad_unit";
+    public static final String AD_TYPE = "ad_type";
+    public static final String PLACEMENT = "placement";
+}
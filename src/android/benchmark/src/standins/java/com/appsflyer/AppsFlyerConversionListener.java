@@ -0,0 +1,23 @@
+//
+// AppsFlyerConversionListener.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer;
+
+import java.util.Map;
+
+/**
+ * Stand-in for the AppsFlyer conversion data listener.
+ */
+public interface AppsFlyerConversionListener {
+    void onConversionDataSuccess(Map<String, Object> conversionData);
+
+    void onConversionDataFail(String error);
+
+    void onAppOpenAttribution(Map<String, String> attributionData);
+
+    void onAttributionFailure(String error);
+}
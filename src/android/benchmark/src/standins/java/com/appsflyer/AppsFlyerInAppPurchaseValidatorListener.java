@@ -0,0 +1,17 @@
+//
+// AppsFlyerInAppPurchaseValidatorListener.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer;
+
+/**
+ * Stand-in for the AppsFlyer purchase validation listener.
+ */
+public interface AppsFlyerInAppPurchaseValidatorListener {
+    void onValidateInApp();
+
+    void onValidateInAppFailure(String error);
+}
@@ -0,0 +1,98 @@
+//
+// AppsFlyerLib.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer;
+
+import android.content.Context;
+
+import com.appsflyer.attribution.AppsFlyerRequestListener;
+
+import java.util.Map;
+
+/**
+ * Stand-in for the AppsFlyer SDK entry point.
+ * <p>
+ * Every request succeeds immediately and its listener is called on the calling thread,
+ * so benchmarks measure the plugin and not the SDK.
+ */
+public class AppsFlyerLib {
+    private static final AppsFlyerLib instance = new AppsFlyerLib();
+
+    private volatile AppsFlyerConversionListener conversionListener;
+    private volatile AppsFlyerInAppPurchaseValidatorListener validatorListener;
+
+    public static AppsFlyerLib getInstance() {
+        return instance;
+    }
+
+    public AppsFlyerLib init(String devKey, AppsFlyerConversionListener listener, Context context) {
+        conversionListener = listener;
+        return this;
+    }
+
+    public void start(Context context) {
+    }
+
+    public void start(Context context, String devKey, AppsFlyerRequestListener listener) {
+        if (listener != null) {
+            listener.onSuccess();
+        }
+    }
+
+    public void stop(boolean shouldStop, Context context) {
+    }
+
+    public void registerConversionListener(Context context, AppsFlyerConversionListener listener) {
+        conversionListener = listener;
+    }
+
+    public void setDebugLog(boolean shouldEnable) {
+    }
+
+    public void anonymizeUser(boolean shouldAnonymize) {
+    }
+
+    public void logEvent(Context context, String eventName, Map<String, Object> eventValues) {
+    }
+
+    public void logEvent(Context context, String eventName, Map<String, Object> eventValues, AppsFlyerRequestListener listener) {
+        if (listener != null) {
+            listener.onSuccess();
+        }
+    }
+
+    public void registerValidatorListener(Context context, AppsFlyerInAppPurchaseValidatorListener listener) {
+        validatorListener = listener;
+    }
+
+    public void validateAndLogInAppPurchase(Context context, String publicKey, String signature, String purchaseData,
+                                            String price, String currency, Map<String, String> additionalParameters) {
+        AppsFlyerInAppPurchaseValidatorListener listener = validatorListener;
+        if (listener != null) {
+            listener.onValidateInApp();
+        }
+    }
+
+    public void logAdRevenue(AFAdRevenueData adRevenueData, Map<String, Object> additionalParameters) {
+    }
+
+    public String getSdkVersion() {
+        return "6.16.2 (stand-in)";
+    }
+
+    public String getAppsFlyerUID(Context context) {
+        return "1700000000000-1234567890123456789";
+    }
+
+    // stand-in only: deliver conversion data to the registered listener, as the SDK does after start
+    public void simulateConversionData(Map<String, Object> conversionData) {
+        AppsFlyerConversionListener listener = conversionListener;
+        if (listener != null) {
+            listener.onConversionDataSuccess(conversionData);
+        }
+    }
+}
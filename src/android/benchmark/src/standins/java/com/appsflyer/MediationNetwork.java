@@ -0,0 +1,38 @@
+//
+// MediationNetwork.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer;
+
+/**
+ * Stand-in for the AppsFlyer mediation networks, same constants as SDK 6.16.
+ */
+public enum MediationNetwork {
+    IRONSOURCE("ironsource"),
+    APPLOVIN_MAX("applovinmax"),
+    GOOGLE_ADMOB("googleadmob"),
+    FYBER("fyber"),
+    APPODEAL("appodeal"),
+    ADMOST("Admost"),
+    TOPON("Topon"),
+    TRADPLUS("Tradplus"),
+    YANDEX("Yandex"),
+    CHARTBOOST("chartboost"),
+    UNITY("Unity"),
+    TOPON_PTE("toponpte"),
+    CUSTOM_MEDIATION("customMediation"),
+    DIRECT_MONETIZATION_NETWORK("directMonetizationNetwork");
+
+    private final String value;
+
+    MediationNetwork(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
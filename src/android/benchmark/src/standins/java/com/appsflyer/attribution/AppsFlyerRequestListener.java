@@ -0,0 +1,17 @@
+//
+// AppsFlyerRequestListener.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.appsflyer.attribution;
+
+/**
+ * Stand-in for the AppsFlyer request result listener.
+ */
+public interface AppsFlyerRequestListener {
+    void onSuccess();
+
+    void onError(int code, String error);
+}
@@ -0,0 +1,15 @@
+//
+// JavaFunction.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.naef.jnlua;
+
+/**
+ * Stand-in for the jnlua interface of Java functions callable from Lua.
+ */
+public interface JavaFunction {
+    int invoke(LuaState L);
+}
@@ -0,0 +1,441 @@
+//
+// LuaState.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.naef.jnlua;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in for the jnlua LuaState, implemented in plain Java.
+ * <p>
+ * Values on the stack are null (nil), Boolean, Double, String, LuaTable or JavaFunction.
+ * Functions called through call() get their own stack frame, as in Lua.
+ * <p>
+ * Every public method counts as one call into the Lua VM (a JNI crossing on a device), see getCallCount().
+ */
+public class LuaState {
+    private final ArrayList<Object> stack = new ArrayList<>();
+    private int base = 0; // position of index 1 of the current frame in 'stack'
+
+    private final LuaTable globals = new LuaTable();
+    private final HashMap<Integer, Object> references = new HashMap<>();
+    private int nextReference = 1;
+
+    private long callCount = 0;
+
+    // -------------------------------------------------------
+    // stand-in only
+    // -------------------------------------------------------
+
+    // number of calls made into this state so far
+    public long getCallCount() {
+        return callCount;
+    }
+
+    // push a Java value, maps and lists become (nested) tables
+    public void push(Object value) {
+        stack.add(toLua(value));
+    }
+
+    // the value at 'index', null for nil or none
+    public Object peek(int index) {
+        int position = position(index);
+        return (position >= base && position < stack.size()) ? stack.get(position) : null;
+    }
+
+    public LuaTable getGlobals() {
+        return globals;
+    }
+
+    public int ref(Object value) {
+        int reference = nextReference++;
+        references.put(reference, value);
+        return reference;
+    }
+
+    public Object getReference(int reference) {
+        return references.get(reference);
+    }
+
+    public void unref(int reference) {
+        references.remove(reference);
+    }
+
+    private static Object toLua(Object value) {
+        if (value instanceof Map) {
+            LuaTable table = new LuaTable();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                table.set(entry.getKey(), toLua(entry.getValue()));
+            }
+            return table;
+        }
+        if (value instanceof List) {
+            LuaTable table = new LuaTable();
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                table.set(i + 1, toLua(list.get(i)));
+            }
+            return table;
+        }
+        return LuaTable.normalize(value);
+    }
+
+    private int position(int index) {
+        return (index > 0) ? base + index - 1 : stack.size() + index;
+    }
+
+    private boolean isValid(int index) {
+        int position = position(index);
+        return position >= base && position < stack.size();
+    }
+
+    private LuaTable checkTable(int index) {
+        Object value = peek(index);
+        if (!(value instanceof LuaTable)) {
+            throw new IllegalArgumentException("table expected at index " + index);
+        }
+        return (LuaTable) value;
+    }
+
+    private Object popValue() {
+        if (stack.size() <= base) {
+            throw new IllegalStateException("stack underflow");
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    // -------------------------------------------------------
+    // stack
+    // -------------------------------------------------------
+
+    public int getTop() {
+        callCount++;
+        return stack.size() - base;
+    }
+
+    public void setTop(int index) {
+        callCount++;
+        int size = (index >= 0) ? base + index : stack.size() + index + 1;
+        while (stack.size() > size) {
+            stack.remove(stack.size() - 1);
+        }
+        while (stack.size() < size) {
+            stack.add(null);
+        }
+    }
+
+    public int absIndex(int index) {
+        callCount++;
+        return (index > 0) ? index : stack.size() - base + index + 1;
+    }
+
+    public void pop(int count) {
+        callCount++;
+        for (int i = 0; i < count; i++) {
+            popValue();
+        }
+    }
+
+    public void pushValue(int index) {
+        callCount++;
+        stack.add(peek(index));
+    }
+
+    public void remove(int index) {
+        callCount++;
+        stack.remove(position(index));
+    }
+
+    public void insert(int index) {
+        callCount++;
+        stack.add(position(index), popValue());
+    }
+
+    // -------------------------------------------------------
+    // push
+    // -------------------------------------------------------
+
+    public void pushNil() {
+        callCount++;
+        stack.add(null);
+    }
+
+    public void pushBoolean(boolean value) {
+        callCount++;
+        stack.add(value);
+    }
+
+    public void pushNumber(double value) {
+        callCount++;
+        stack.add(value);
+    }
+
+    public void pushInteger(int value) {
+        callCount++;
+        stack.add((double) value);
+    }
+
+    public void pushString(String value) {
+        callCount++;
+        stack.add(value);
+    }
+
+    public void pushJavaFunction(JavaFunction function) {
+        callCount++;
+        stack.add(function);
+    }
+
+    // -------------------------------------------------------
+    // type checks and conversions
+    // -------------------------------------------------------
+
+    // returns null for an invalid index ("none"), like jnlua
+    public LuaType type(int index) {
+        callCount++;
+        if (!isValid(index)) {
+            return null;
+        }
+        Object value = peek(index);
+        if (value == null) {
+            return LuaType.NIL;
+        } else if (value instanceof Boolean) {
+            return LuaType.BOOLEAN;
+        } else if (value instanceof Double) {
+            return LuaType.NUMBER;
+        } else if (value instanceof String) {
+            return LuaType.STRING;
+        } else if (value instanceof LuaTable) {
+            return LuaType.TABLE;
+        } else if (value instanceof JavaFunction) {
+            return LuaType.FUNCTION;
+        }
+        return LuaType.USERDATA;
+    }
+
+    public String typeName(int index) {
+        LuaType type = type(index);
+        return (type != null) ? type.displayText() : "no value";
+    }
+
+    public boolean isNoneOrNil(int index) {
+        callCount++;
+        return peek(index) == null;
+    }
+
+    public boolean isNil(int index) {
+        callCount++;
+        return isValid(index) && peek(index) == null;
+    }
+
+    public boolean isBoolean(int index) {
+        callCount++;
+        return peek(index) instanceof Boolean;
+    }
+
+    public boolean isNumber(int index) {
+        callCount++;
+        Object value = peek(index);
+        return value instanceof Double || (value instanceof String && parseNumber((String) value) != null);
+    }
+
+    public boolean isString(int index) {
+        callCount++;
+        Object value = peek(index);
+        return value instanceof String || value instanceof Double;
+    }
+
+    public boolean isTable(int index) {
+        callCount++;
+        return peek(index) instanceof LuaTable;
+    }
+
+    public boolean isFunction(int index) {
+        callCount++;
+        return peek(index) instanceof JavaFunction;
+    }
+
+    public boolean toBoolean(int index) {
+        callCount++;
+        Object value = peek(index);
+        return value != null && !Boolean.FALSE.equals(value);
+    }
+
+    public double toNumber(int index) {
+        callCount++;
+        Object value = peek(index);
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        Double number = (value instanceof String) ? parseNumber((String) value) : null;
+        return (number != null) ? number : 0;
+    }
+
+    public int toInteger(int index) {
+        return (int) toNumber(index);
+    }
+
+    public int checkInteger(int index) {
+        callCount++;
+        if (!(peek(index) instanceof Double)) {
+            throw new IllegalArgumentException("number expected at index " + index);
+        }
+        return (int) (double) (Double) peek(index);
+    }
+
+    public String toString(int index) {
+        callCount++;
+        Object value = peek(index);
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Double) {
+            double number = (Double) value;
+            return (number == Math.rint(number) && !Double.isInfinite(number)) ? Long.toString((long) number) : Double.toString(number);
+        }
+        return null;
+    }
+
+    private static Double parseNumber(String value) {
+        try {
+            return Double.valueOf(value.trim());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    // -------------------------------------------------------
+    // tables
+    // -------------------------------------------------------
+
+    public void newTable() {
+        callCount++;
+        stack.add(new LuaTable());
+    }
+
+    public void newTable(int arrayCount, int recordCount) {
+        newTable();
+    }
+
+    public void getField(int index, String key) {
+        callCount++;
+        stack.add(checkTable(index).get(key));
+    }
+
+    public void setField(int index, String key) {
+        callCount++;
+        LuaTable table = checkTable(index);
+        table.set(key, popValue());
+    }
+
+    public void rawGet(int index) {
+        callCount++;
+        LuaTable table = checkTable(index);
+        stack.add(table.get(popValue()));
+    }
+
+    public void rawGet(int index, int key) {
+        callCount++;
+        stack.add(checkTable(index).get(key));
+    }
+
+    public void rawSet(int index) {
+        callCount++;
+        LuaTable table = checkTable(index);
+        Object value = popValue();
+        Object key = popValue();
+        table.set(key, value);
+    }
+
+    public void rawSet(int index, int key) {
+        callCount++;
+        LuaTable table = checkTable(index);
+        table.set(key, popValue());
+    }
+
+    public int length(int index) {
+        callCount++;
+        Object value = peek(index);
+        if (value instanceof String) {
+            return ((String) value).length();
+        }
+        return (value instanceof LuaTable) ? ((LuaTable) value).length() : 0;
+    }
+
+    // pops a key and pushes the next key and value, returns false after the last key
+    public boolean next(int index) {
+        callCount++;
+        LuaTable table = checkTable(index);
+        Object key = table.nextKey(popValue());
+        if (key == null) {
+            return false;
+        }
+        stack.add(key);
+        stack.add(table.get(key));
+        return true;
+    }
+
+    // -------------------------------------------------------
+    // globals and functions
+    // -------------------------------------------------------
+
+    public void getGlobal(String name) {
+        callCount++;
+        stack.add(globals.get(name));
+    }
+
+    public void setGlobal(String name) {
+        callCount++;
+        globals.set(name, popValue());
+    }
+
+    // creates a global table 'name' holding 'functions' and pushes it
+    public void register(String name, NamedJavaFunction[] functions) {
+        callCount++;
+        LuaTable library = new LuaTable();
+        for (NamedJavaFunction function : functions) {
+            library.set(function.getName(), function);
+        }
+        globals.set(name, library);
+        stack.add(library);
+    }
+
+    // calls the function below the 'argCount' arguments on top of the stack, keeps 'returnCount' results
+    public void call(int argCount, int returnCount) {
+        callCount++;
+        int functionPosition = stack.size() - argCount - 1;
+        Object function = stack.get(functionPosition);
+        if (!(function instanceof JavaFunction)) {
+            throw new IllegalStateException("attempt to call a " + (function == null ? "nil" : function.getClass().getSimpleName()) + " value");
+        }
+
+        int savedBase = base;
+        base = functionPosition + 1;
+        int resultCount;
+        try {
+            resultCount = ((JavaFunction) function).invoke(this);
+        } finally {
+            base = savedBase;
+        }
+
+        // move the results into the place of the function
+        int resultsStart = stack.size() - resultCount;
+        int keep = (returnCount < 0) ? resultCount : returnCount;
+        for (int i = 0; i < keep; i++) {
+            Object result = (i < resultCount) ? stack.get(resultsStart + i) : null;
+            if (functionPosition + i < stack.size()) {
+                stack.set(functionPosition + i, result);
+            } else {
+                stack.add(result);
+            }
+        }
+        while (stack.size() > functionPosition + keep) {
+            stack.remove(stack.size() - 1);
+        }
+    }
+}
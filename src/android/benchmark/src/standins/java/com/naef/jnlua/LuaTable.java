@@ -0,0 +1,86 @@
+//
+// LuaTable.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.naef.jnlua;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A Lua table of the stand-in LuaState. Not part of jnlua.
+ * <p>
+ * Keys keep their insertion order, so next() is deterministic. Numbers are stored as Double,
+ * like Lua numbers, so the keys 1 and 1.0 are the same.
+ */
+public final class LuaTable {
+    private final HashMap<Object, Object> values = new HashMap<>();
+    private final ArrayList<Object> keys = new ArrayList<>();
+    private final HashMap<Object, Integer> positions = new HashMap<>();
+
+    public Object get(Object key) {
+        return values.get(normalize(key));
+    }
+
+    public void set(Object key, Object value) {
+        key = normalize(key);
+        if (key == null) {
+            throw new IllegalArgumentException("table index is nil");
+        }
+        value = normalize(value);
+
+        if (value == null) {
+            if (values.remove(key) != null) {
+                keys.remove(key);
+                positions.clear();
+                for (int i = 0; i < keys.size(); i++) {
+                    positions.put(keys.get(i), i);
+                }
+            }
+        } else if (values.put(key, value) == null) {
+            positions.put(key, keys.size());
+            keys.add(key);
+        }
+    }
+
+    // number of entries
+    public int size() {
+        return keys.size();
+    }
+
+    // length of the sequence part, like the Lua # operator
+    public int length() {
+        int n = 0;
+        while (values.containsKey((double) (n + 1))) {
+            n++;
+        }
+        return n;
+    }
+
+    public List<Object> keys() {
+        return keys;
+    }
+
+    // the key following 'key', null after the last key
+    Object nextKey(Object key) {
+        if (key == null) {
+            return keys.isEmpty() ? null : keys.get(0);
+        }
+        Integer position = positions.get(normalize(key));
+        if (position == null || position + 1 >= keys.size()) {
+            return null;
+        }
+        return keys.get(position + 1);
+    }
+
+    static Object normalize(Object value) {
+        if (value instanceof Number && !(value instanceof Double)) {
+            return ((Number) value).doubleValue();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,33 @@
+//
+// LuaType.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.naef.jnlua;
+
+/**
+ * Stand-in for the jnlua Lua value types.
+ */
+public enum LuaType {
+    NIL("nil"),
+    BOOLEAN("boolean"),
+    LIGHTUSERDATA("userdata"),
+    NUMBER("number"),
+    STRING("string"),
+    TABLE("table"),
+    FUNCTION("function"),
+    USERDATA("userdata"),
+    THREAD("thread");
+
+    private final String displayText;
+
+    LuaType(String displayText) {
+        this.displayText = displayText;
+    }
+
+    public String displayText() {
+        return displayText;
+    }
+}
@@ -0,0 +1,15 @@
+//
+// NamedJavaFunction.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package com.naef.jnlua;
+
+/**
+ * Stand-in for the jnlua interface of Java functions registered under a name.
+ */
+public interface NamedJavaFunction extends JavaFunction {
+    String getName();
+}
@@ -0,0 +1,222 @@
+//
+// Aggregator.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates high-frequency signals in memory, so they reach AppsFlyer as one summary event per interval
+ * instead of one event per occurrence.
+ * <p>
+ * appsflyer.increment() adds to a counter (a long). appsflyer.observe() records a value into a distribution:
+ * count, sum, min, max and a histogram, all kept in primitive fields. Each name is one metric
+ * of one kind, names are interned once and the parameter keys of a metric are built when it is created, so
+ * recording does not allocate.
+ * <p>
+ * flush() returns the parameters of the summary event and resets the metrics. Metrics that did not change
+ * since the last flush are left out.
+ */
+class Aggregator {
+    // most distinct names, an observed metric adds 7 parameters to the summary event
+    static final int MAX_METRICS = 50;
+
+    // histogram buckets: bucket 0 holds values below 1, then each power of two from 2^0 to 2^31 is split into
+    // SUB_BUCKETS buckets of equal width, the last bucket holds everything above
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKET_COUNT = 1 + 32 * SUB_BUCKETS;
+
+    private abstract static class Metric {
+        boolean changed = false;
+
+        abstract void flushTo(Map<String, Object> params);
+    }
+
+    private static final class Counter extends Metric {
+        private final String key;
+        private long total = 0;
+
+        Counter(String name) {
+            this.key = name.intern();
+        }
+
+        void add(long delta) {
+            total += delta;
+            changed = true;
+        }
+
+        @Override
+        void flushTo(Map<String, Object> params) {
+            params.put(key, (double) total);
+            total = 0;
+            changed = false;
+        }
+    }
+
+    private static final class Distribution extends Metric {
+        private final String countKey;
+        private final String sumKey;
+        private final String minKey;
+        private final String maxKey;
+        private final String p50Key;
+        private final String p90Key;
+        private final String p99Key;
+
+        private long count = 0;
+        private double sum = 0;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private final long[] buckets = new long[BUCKET_COUNT];
+
+        Distribution(String name) {
+            countKey = (name + "_count").intern();
+            sumKey = (name + "_sum").intern();
+            minKey = (name + "_min").intern();
+            maxKey = (name + "_max").intern();
+            p50Key = (name + "_p50").intern();
+            p90Key = (name + "_p90").intern();
+            p99Key = (name + "_p99").intern();
+        }
+
+        void record(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            buckets[bucketOf(value)]++;
+            changed = true;
+        }
+
+        @Override
+        void flushTo(Map<String, Object> params) {
+            params.put(countKey, (double) count);
+            params.put(sumKey, sum);
+            params.put(minKey, min);
+            params.put(maxKey, max);
+            params.put(p50Key, percentile(0.50));
+            params.put(p90Key, percentile(0.90));
+            params.put(p99Key, percentile(0.99));
+
+            count = 0;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = 0;
+            }
+            changed = false;
+        }
+
+        // upper bound of the bucket holding the percentile, kept within the observed range
+        private double percentile(double fraction) {
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return Math.max(min, Math.min(max, upperBound(i)));
+                }
+            }
+            return max;
+        }
+
+        private static int bucketOf(double value) {
+            if (value < 1) {
+                return 0;
+            }
+            int exponent = Math.min(31, Math.getExponent(value));
+            int sub = Math.min(SUB_BUCKETS - 1, (int) ((value / (1L << exponent) - 1) * SUB_BUCKETS));
+            return 1 + exponent * SUB_BUCKETS + sub;
+        }
+
+        private static double upperBound(int bucket) {
+            if (bucket == 0) {
+                return 1;
+            }
+            int exponent = (bucket - 1) / SUB_BUCKETS;
+            int sub = (bucket - 1) % SUB_BUCKETS;
+            return (1L << exponent) * (1 + (sub + 1) / (double) SUB_BUCKETS);
+        }
+    }
+
+    // guarded by 'this', metrics keep their order of creation
+    private final Map<String, Metric> metrics = new HashMap<>();
+    private final List<Metric> order = new ArrayList<>();
+    private int changed = 0;
+
+    // add 'delta' to the counter 'name', returns false if 'name' is a distribution or there are too many metrics
+    synchronized boolean increment(String name, long delta) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = add(name, new Counter(name));
+            if (metric == null) {
+                return false;
+            }
+        } else if (!(metric instanceof Counter)) {
+            return false;
+        }
+
+        if (!metric.changed) {
+            changed++;
+        }
+        ((Counter) metric).add(delta);
+        return true;
+    }
+
+    // record 'value' in the distribution 'name', returns false if 'name' is a counter or there are too many metrics
+    synchronized boolean observe(String name, double value) {
+        Metric metric = metrics.get(name);
+        if (metric == null) {
+            metric = add(name, new Distribution(name));
+            if (metric == null) {
+                return false;
+            }
+        } else if (!(metric instanceof Distribution)) {
+            return false;
+        }
+
+        if (!metric.changed) {
+            changed++;
+        }
+        ((Distribution) metric).record(value);
+        return true;
+    }
+
+    // true if 'name' is not a metric yet and there is no room for another one
+    synchronized boolean isFull(String name) {
+        return !metrics.containsKey(name) && metrics.size() >= MAX_METRICS;
+    }
+
+    // parameters of the summary event for everything recorded since the last flush, null if nothing was
+    synchronized Map<String, Object> flush() {
+        if (changed == 0) {
+            return null;
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) {
+            Metric metric = order.get(i);
+            if (metric.changed) {
+                metric.flushTo(params);
+            }
+        }
+        changed = 0;
+        return params;
+    }
+
+    private Metric add(String name, Metric metric) {
+        if (metrics.size() >= MAX_METRICS) {
+            return null;
+        }
+        metrics.put(name.intern(), metric);
+        order.add(metric);
+        return metric;
+    }
+}
@@ -0,0 +1,79 @@
+//
+// AppsFlyerLibBackend.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+
+import com.appsflyer.AFAdRevenueData;
+import com.appsflyer.AppsFlyerConversionListener;
+import com.appsflyer.AppsFlyerInAppPurchaseValidatorListener;
+import com.appsflyer.AppsFlyerLib;
+import com.appsflyer.attribution.AppsFlyerRequestListener;
+
+import java.util.Map;
+
+/**
+ * The default SdkBackend, forwards every call to the AppsFlyer SDK.
+ */
+class AppsFlyerLibBackend implements SdkBackend {
+    @Override
+    public void init(String devKey, AppsFlyerConversionListener conversionListener, Context context) {
+        AppsFlyerLib.getInstance().init(devKey, conversionListener, context);
+    }
+
+    @Override
+    public void start(Context context) {
+        AppsFlyerLib.getInstance().start(context);
+    }
+
+    @Override
+    public void registerConversionListener(Context context, AppsFlyerConversionListener conversionListener) {
+        AppsFlyerLib.getInstance().registerConversionListener(context, conversionListener);
+    }
+
+    @Override
+    public void setDebugLog(boolean enabled) {
+        AppsFlyerLib.getInstance().setDebugLog(enabled);
+    }
+
+    @Override
+    public void anonymizeUser(boolean anonymize) {
+        AppsFlyerLib.getInstance().anonymizeUser(anonymize);
+    }
+
+    @Override
+    public void logEvent(Context context, String eventName, Map<String, Object> eventValues, AppsFlyerRequestListener listener) {
+        AppsFlyerLib.getInstance().logEvent(context, eventName, eventValues, listener);
+    }
+
+    @Override
+    public void registerValidatorListener(Context context, AppsFlyerInAppPurchaseValidatorListener listener) {
+        AppsFlyerLib.getInstance().registerValidatorListener(context, listener);
+    }
+
+    @Override
+    public void validateAndLogInAppPurchase(Context context, String publicKey, String signature, String purchaseData,
+                                            String price, String currency, Map<String, String> additionalParameters) {
+        AppsFlyerLib.getInstance().validateAndLogInAppPurchase(context, publicKey, signature, purchaseData, price, currency, additionalParameters);
+    }
+
+    @Override
+    public void logAdRevenue(AFAdRevenueData adRevenueData, Map<String, Object> additionalParameters) {
+        AppsFlyerLib.getInstance().logAdRevenue(adRevenueData, additionalParameters);
+    }
+
+    @Override
+    public String getSdkVersion() {
+        return AppsFlyerLib.getInstance().getSdkVersion();
+    }
+
+    @Override
+    public String getAppsFlyerUID(Context context) {
+        return AppsFlyerLib.getInstance().getAppsFlyerUID(context);
+    }
+}
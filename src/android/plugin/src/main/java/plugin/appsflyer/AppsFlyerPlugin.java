@@ -0,0 +1,196 @@
+//
+// AppsFlyerPlugin.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.util.Log;
+
+import com.ansca.corona.CoronaEnvironment;
+import com.ansca.corona.CoronaLua;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java entry point for other Android plugins of the same app, for example ad mediation plugins that report
+ * impression revenue from their own SDK callbacks.
+ * <p>
+ * Calls go through the same pipeline as the Lua API: the pre-init buffer, event policies and sampling,
+ * the event batcher and its queue limits, and the SDK thread. Consent set with appsflyer.setHasUserConsent()
+ * applies to them as well. The Lua app still has to call appsflyer.init(), calls made before that are held
+ * until it completes like Lua calls are.
+ * <p>
+ * All methods are thread-safe and do not wait for the SDK. With the "block" overflow policy of queueLimits,
+ * logEvent() and logRevenueAds() may wait up to blockTimeout for room in the queue. Results are passed to a
+ * RequestListener, calls without one report to the listener passed to appsflyer.init() like their Lua counterparts.
+ * A RequestListener gets exactly one result per call, also for calls that are dropped: by an event policy,
+ * the pre-init buffer or the queue limits, or because the runtime exited before the call was sent.
+ */
+public final class AppsFlyerPlugin {
+    private static final String CORONA_TAG = "Corona";
+    private static final String ERROR_MSG = "ERROR: ";
+
+    /**
+     * Receives the result of one call. Methods must return quickly. Results of the SDK arrive on the SDK thread,
+     * a call rejected before it reaches the SDK (invalid, or dropped by a policy or the queue limits) is reported
+     * on the calling thread, possibly before the call has returned. Calls dropped when the runtime exits are
+     * reported on the thread that ends the runtime.
+     */
+    public interface RequestListener {
+        void onSuccess(long requestId);
+
+        void onError(long requestId, String error);
+    }
+
+    private AppsFlyerPlugin() {
+    }
+
+    /**
+     * Returns true once appsflyer.init() has been called from Lua.
+     */
+    public static boolean isInitialized() {
+        return LuaLoader.isPluginInitialized();
+    }
+
+    /**
+     * Logs an in-app event, as appsflyer.logEvent(eventName, params) does.
+     *
+     * @param eventName Name of the event.
+     * @param params    Event values, String, Number or Boolean. May be null.
+     * @return Returns the request ID, or 0 if the call was invalid or dropped by the event's policy.
+     */
+    public static long logEvent(String eventName, Map<String, ?> params) {
+        return logEvent(eventName, params, null);
+    }
+
+    /**
+     * Logs an in-app event, as appsflyer.logEvent(eventName, params, callback) does.
+     *
+     * @param eventName Name of the event.
+     * @param params    Event values, String, Number or Boolean. May be null.
+     * @param listener  Receives the result instead of the init listener. May be null. An invalid call is
+     *                  reported to it with request ID 0.
+     * @return Returns the request ID, or 0 if the call was invalid or dropped by the event's policy.
+     */
+    public static long logEvent(String eventName, Map<String, ?> params, RequestListener listener) {
+        LuaLoader.stats.increment(PluginStats.CALLS_LOG_EVENT);
+
+        if (eventName == null || eventName.isEmpty()) {
+            return reject("logEvent", "eventName expected", listener);
+        }
+
+        // copy the values, so the caller can reuse its map, numbers are sent as Lua numbers are
+        Map<String, Object> standardParams = new HashMap<>();
+        if (params != null) {
+            for (Map.Entry<String, ?> entry : params.entrySet()) {
+                Object value = entry.getValue();
+                if (entry.getKey() == null) {
+                    return reject("logEvent", "params has a null key", listener);
+                } else if (value instanceof String || value instanceof Boolean) {
+                    standardParams.put(entry.getKey(), value);
+                } else if (value instanceof Number) {
+                    standardParams.put(entry.getKey(), ((Number) value).doubleValue());
+                } else {
+                    return reject("logEvent", "params." + entry.getKey() + " unhandled type (" +
+                            ((value != null) ? value.getClass().getSimpleName() : "null") + ")", listener);
+                }
+            }
+        }
+
+        // apply rate limits and sampling to valid calls only
+        EventPolicy policy = LuaLoader.eventPolicyFor(eventName);
+        if (policy != null && !policy.allow()) {
+            LuaLoader.stats.increment(PluginStats.DROPPED_BY_POLICY);
+            // not an error of the caller, so it is not logged
+            if (listener != null) {
+                listener.onError(0, "dropped by the event policy");
+            }
+            return 0;
+        }
+
+        // let AppsFlyer know this event is sampled
+        String sampleRateKey = LuaLoader.sampleRateKeyFor(policy);
+        if (sampleRateKey != null) {
+            standardParams.put(sampleRateKey, policy.getSampleRate());
+        }
+
+        return LuaLoader.queueEvent(eventName, standardParams, CoronaLua.REFNIL, listener);
+    }
+
+    /**
+     * Logs ad revenue, as appsflyer.logRevenueAds(revenueData) does.
+     *
+     * @param monetizationNetwork Network that served the ad.
+     * @param adSource            Mediation network, resolved like revenueData.adSource.
+     * @param currencyIso4217Code Currency of 'revenue'.
+     * @param revenue             Revenue of the impression.
+     * @param countryCode         Optional, may be null.
+     * @param adUnitName          Optional, may be null.
+     * @param adFormat            Optional, may be null.
+     */
+    public static void logRevenueAds(String monetizationNetwork, String adSource, String currencyIso4217Code, double revenue,
+                                     String countryCode, String adUnitName, String adFormat) {
+        logRevenueAds(monetizationNetwork, adSource, currencyIso4217Code, revenue, countryCode, adUnitName, adFormat, null);
+    }
+
+    /**
+     * Logs ad revenue, as appsflyer.logRevenueAds(revenueData) does. The SDK has no result for ad revenue,
+     * success means it has been handed to the SDK.
+     *
+     * @param listener Receives the result. May be null, there is no Lua event for ad revenue. An invalid call
+     *                 is reported to it with request ID 0.
+     * @return Returns the request ID, or 0 if the call was invalid.
+     */
+    public static long logRevenueAds(String monetizationNetwork, String adSource, String currencyIso4217Code, double revenue,
+                                     String countryCode, String adUnitName, String adFormat, RequestListener listener) {
+        LuaLoader.stats.increment(PluginStats.CALLS_LOG_REVENUE_ADS);
+
+        if (monetizationNetwork == null || currencyIso4217Code == null || adSource == null) {
+            return reject("logRevenueAds", "monetizationNetwork, adSource and currencyIso4217Code are required", listener);
+        }
+
+        long requestId = LuaLoader.nextRequestId();
+        LuaLoader.queueAdRevenue(monetizationNetwork, adSource, currencyIso4217Code, revenue, countryCode, adUnitName, adFormat,
+                requestId, listener);
+        return requestId;
+    }
+
+    /**
+     * Validates and logs a purchase, as appsflyer.logPurchase(productData) does.
+     * Purchases already validated or being validated are reported as errors.
+     *
+     * @param parameters Additional event values. May be null.
+     * @param listener   Receives the result instead of the init listener. May be null.
+     * @return Returns the request ID, or 0 if the call was invalid.
+     */
+    public static long logPurchase(String publicKey, String signature, String purchaseData, String price, String currency,
+                                   Map<String, String> parameters, RequestListener listener) {
+        LuaLoader.stats.increment(PluginStats.CALLS_LOG_PURCHASE);
+
+        if (CoronaEnvironment.getCoronaActivity() == null) {
+            return reject("logPurchase", "no Corona activity", listener);
+        }
+
+        HashMap<String, String> params = (parameters != null) ? new HashMap<>(parameters) : new HashMap<String, String>();
+        long requestId = LuaLoader.nextRequestId();
+        LuaLoader.queuePurchase(publicKey, signature, purchaseData, price, currency, params, requestId, listener);
+        return requestId;
+    }
+
+    private static void logError(String function, String message) {
+        Log.i(CORONA_TAG, ERROR_MSG + "AppsFlyerPlugin." + function + "(), " + message);
+    }
+
+    // log an invalid call and report it to 'listener', if any, returns the request ID 0
+    private static long reject(String function, String message, RequestListener listener) {
+        logError(function, message);
+        if (listener != null) {
+            listener.onError(0, message);
+        }
+        return 0;
+    }
+}
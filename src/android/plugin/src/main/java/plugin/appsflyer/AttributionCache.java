@@ -0,0 +1,259 @@
+//
+// AttributionCache.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the latest conversion data and app-open attribution, so they are known from the start of a launch.
+ * <p>
+ * The SDK reports attribution through callbacks, some time after it has started. Each kind is kept as the
+ * map last received and persisted to a small binary file in the app's files directory. load() reads the file
+ * once per process, so appsflyer.getAttribution() can answer on the first frame. Values are kept as strings,
+ * booleans and numbers (doubles, as in Lua), anything else as its string form.
+ * <p>
+ * Lookups read an immutable index, a merge of both maps where conversion data wins, so get() and index()
+ * never lock and never do I/O. update() replaces one map and reports whether anything changed, saveLater()
+ * writes the file on the DiskWriter thread, coalescing saves requested before the write has started.
+ */
+class AttributionCache {
+    static final int CONVERSION = 0;
+    static final int APP_OPEN = 1;
+
+    private static final String CORONA_TAG = "Corona";
+    private static final String WARNING_MSG = "WARNING: appsflyer attribution cache, ";
+    private static final int FILE_VERSION = 1;
+
+    // value types in the file
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_NUMBER = 2;
+
+    private final String path;
+
+    // guarded by 'this'
+    private File file = null;
+    private Map<String, Object> conversion = Collections.emptyMap();
+    private Map<String, Object> appOpen = Collections.emptyMap();
+
+    // conversion data over app-open attribution, replaced as a whole
+    private volatile Map<String, Object> index = Collections.emptyMap();
+
+    private final DiskWriter.Coalesced saveTask = new DiskWriter.Coalesced(new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    });
+
+    // 'path' is relative to the app's files directory
+    AttributionCache(String path) {
+        this.path = path;
+    }
+
+    // the value of 'key', null if no attribution received so far has it
+    Object get(String key) {
+        return index.get(key);
+    }
+
+    // all known attribution values, an empty map if there are none, must not be modified
+    Map<String, Object> index() {
+        return index;
+    }
+
+    // read the attribution persisted by earlier launches, only the first call does I/O
+    synchronized void load(Context context) {
+        if (file != null || context == null) {
+            return;
+        }
+
+        file = new File(context.getFilesDir(), path);
+        read();
+        rebuildIndex();
+    }
+
+    /**
+     * Replaces the map of one kind of attribution.
+     *
+     * @return Returns true if it differs from the one known so far and should be saved.
+     */
+    synchronized boolean update(int kind, Map<String, ?> data) {
+        Map<String, Object> values = normalize(data);
+        if (values.equals(kind == CONVERSION ? conversion : appOpen)) {
+            return false;
+        }
+        if (kind == CONVERSION) {
+            conversion = values;
+        } else {
+            appOpen = values;
+        }
+        rebuildIndex();
+        return true;
+    }
+
+    // write the current maps in the background
+    void saveLater() {
+        saveTask.request();
+    }
+
+    // write both maps, conversion data first, to a temporary file and move it into place
+    // the maps are immutable, so they are written outside the lock
+    private void save() {
+        File file;
+        Map<String, Object> conversion;
+        Map<String, Object> appOpen;
+        synchronized (this) {
+            file = this.file;
+            conversion = this.conversion;
+            appOpen = this.appOpen;
+        }
+        if (file == null) {
+            return;
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot create " + parent);
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            writeMap(out, conversion);
+            writeMap(out, appOpen);
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                Log.w(CORONA_TAG, WARNING_MSG + "cannot replace " + file);
+            }
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot write " + file + ": " + ex.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void rebuildIndex() {
+        Map<String, Object> merged = new HashMap<>(appOpen);
+        merged.putAll(conversion);
+        index = Collections.unmodifiableMap(merged);
+    }
+
+    // an immutable copy of 'data' with the value types the file can hold, null keys and values are left out
+    private static Map<String, Object> normalize(Map<String, ?> data) {
+        if (data == null || data.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, ?> entry : data.entrySet()) {
+            Object value = entry.getValue();
+            if (entry.getKey() == null || value == null) {
+                continue;
+            }
+            if (value instanceof Number) {
+                value = ((Number) value).doubleValue();
+            } else if (!(value instanceof String) && !(value instanceof Boolean)) {
+                value = value.toString();
+            }
+            values.put(entry.getKey(), value);
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, Object> values) throws IOException {
+        out.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_NUMBER);
+            out.writeDouble((Double) value);
+        } else {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF(value.toString());
+        }
+    }
+
+    // conversion data first, then app-open attribution
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            conversion = readMap(in);
+            appOpen = readMap(in);
+        } catch (EOFException ex) {
+            // truncated file, keep the maps that were read completely
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot read " + file + ": " + ex.getMessage());
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            if (type == TYPE_BOOLEAN) {
+                values.put(key, in.readBoolean());
+            } else if (type == TYPE_NUMBER) {
+                values.put(key, in.readDouble());
+            } else if (type == TYPE_STRING) {
+                values.put(key, in.readUTF());
+            } else {
+                throw new IOException("unknown value type " + type);
+            }
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+//
+// BoundedQueue.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free FIFO queue with a fixed capacity, for any number of producers and one consumer.
+ * <p>
+ * offer() never blocks, it fails when the queue is full and leaves the decision to the caller.
+ * Elements are kept in a preallocated ring of slots, each with a sequence number that tells producers and
+ * the consumer whose turn it is (as in D. Vyukov's bounded queue), so neither offer() nor poll() allocates.
+ * The size is kept in an atomic counter, so size() is constant time. poll() is for the consumer thread only.
+ */
+class BoundedQueue<E> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final int capacity;
+
+    BoundedQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+
+        // a power of two, so a position maps to its slot with a mask
+        int slotCount = Integer.highestOneBit(this.capacity);
+        if (slotCount < this.capacity) {
+            slotCount <<= 1;
+        }
+        slots = new Object[slotCount];
+        sequences = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            sequences.set(i, i);
+        }
+        mask = slotCount - 1;
+    }
+
+    // add 'element' at the tail, returns false if the queue is full
+    boolean offer(E element) {
+        // reserve a place first, so concurrent producers cannot overshoot the capacity
+        int current;
+        do {
+            current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+
+        // claim the slot at the tail, it is free once its sequence equals the position
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long lag = sequences.get(index) - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (lag < 0) {
+                // the consumer has not released the slot of the previous round yet
+                size.decrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        slots[index] = element;
+        sequences.set(index, position + 1); // publishes the element to the consumer
+        return true;
+    }
+
+    // remove the head, null if the queue is empty
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        head.set(position + 1);
+
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.set(index, position + mask + 1); // free for the producer one round later
+        size.decrementAndGet();
+        return element;
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
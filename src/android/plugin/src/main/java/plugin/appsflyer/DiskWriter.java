@@ -0,0 +1,67 @@
+//
+// DiskWriter.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the file reads and writes of the plugin's small caches on one background thread, so they never run
+ * on the UI thread or the Lua thread.
+ * <p>
+ * The thread is started on first use and kept for the lifetime of the process, tasks run in the order they
+ * were posted. Saves go through a Coalesced write: requests made before the write has started are folded
+ * into one run, which writes the latest state.
+ */
+class DiskWriter {
+    private static final String THREAD_NAME = "AppsFlyerPluginDisk";
+
+    private static Handler handler = null;
+
+    // run 'task' on the disk thread after everything posted before it
+    static void execute(Runnable task) {
+        handler().post(task);
+    }
+
+    private static synchronized Handler handler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * A write that may be requested from any thread, at most one run of it is waiting at a time.
+     */
+    static final class Coalesced {
+        private final AtomicBoolean pending = new AtomicBoolean(false);
+        private final Runnable task;
+
+        Coalesced(final Runnable write) {
+            task = new Runnable() {
+                @Override
+                public void run() {
+                    // requests from now on need another run, this one may already have read the state
+                    pending.set(false);
+                    write.run();
+                }
+            };
+        }
+
+        void request() {
+            if (pending.compareAndSet(false, true)) {
+                execute(task);
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+//
+// EventBatcher.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import com.ansca.corona.CoronaLua;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces logEvent and logRevenueAds calls made from Lua into a single SDK thread task per flush interval.
+ * <p>
+ * Producers (the Lua thread) only append to a lock-free queue. The first producer to find the queue idle
+ * schedules one drain task, which forwards up to maxBatchSize events to the sink and re-schedules itself
+ * while events remain.
+ * <p>
+ * Memory is bounded by QueueLimits. Producers reserve room in the queue with a compare-and-set before they
+ * append, so concurrent producers cannot overrun it. The drain stops while the in-flight budget is used up and
+ * resumes when results come back through PendingEvent.completed(), or when an event has waited longer than
+ * inFlightTimeoutMs for its result and is given up. A full queue is handled by the overflow policy.
+ * <p>
+ * Calls that must not overtake queued events nor be dropped, consent changes and purchases, are queued with
+ * enqueueOrderedCall(). They run in order with the events but are not counted against the queue limits.
+ * <p>
+ * flush() and drainForExit() are for FlushScheduler, which sends the queue early when the app is suspended
+ * or its runtime exits.
+ */
+class EventBatcher {
+    // defaults used when appsflyer.init() does not override them
+    static final long DEFAULT_FLUSH_INTERVAL_MS = 16; // roughly one frame at 60 fps
+    static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    // reasons passed to Sink.dropped()
+    static final int DROPPED_OLDEST = 0;
+    static final int DROPPED_NEWEST = 1;
+    static final int DROPPED_BLOCK_TIMEOUT = 2;
+    static final int DROPPED_COALESCED = 3;
+    static final int DROPPED_EXIT_TIMEOUT = 4;
+    static final int DROPPED_IN_FLIGHT_TIMEOUT = 5;
+
+    /**
+     * Receives events when the queue is drained, always on the drain thread, and events dropped by the
+     * queue limits, on the thread that queued the event (or the drain thread when the runtime exits or no
+     * result arrived in time).
+     */
+    interface Sink {
+        // send 'event' to the SDK and call event.completed() once its result arrives
+        void deliver(PendingEvent event);
+
+        void dropped(PendingEvent event, int reason);
+    }
+
+    /**
+     * A queued logEvent call, or another SDK call ('call' is set) that is run in order with them.
+     * An ordered call is never dropped and takes no room in the queue.
+     * <p>
+     * Once delivered, it runs as the in-flight deadline: whichever comes first of completed() and the deadline
+     * releases the in-flight slot, the other is ignored.
+     */
+    final class PendingEvent implements Runnable {
+        final String eventName;
+        final Map<String, Object> params;
+        final long requestId;
+        final int callback;
+        final int callbackGeneration;
+        final AppsFlyerPlugin.RequestListener listener;
+        final Runnable call;
+        final boolean ordered;
+        final int bytes;
+        final long enqueueNanos;
+
+        // 1 once the result arrived or the deadline passed
+        volatile int settled = 0;
+
+        PendingEvent(String eventName, Map<String, Object> params, long requestId, int callback, int callbackGeneration,
+                     AppsFlyerPlugin.RequestListener listener, Runnable call, boolean ordered, int bytes) {
+            this.eventName = eventName;
+            this.params = params;
+            this.requestId = requestId;
+            this.callback = callback;
+            this.callbackGeneration = callbackGeneration;
+            this.listener = listener;
+            this.call = call;
+            this.ordered = ordered;
+            this.bytes = bytes;
+            this.enqueueNanos = System.nanoTime();
+        }
+
+        // the result of a delivered event arrived, may be called from any thread
+        // returns false if the event was already given up and reported as dropped, the result should be ignored
+        boolean completed() {
+            if (!SETTLED.compareAndSet(this, 0, 1)) {
+                return false;
+            }
+            executor.removeCallbacks(this);
+            release(this);
+            return true;
+        }
+
+        // the in-flight deadline, on the drain thread
+        @Override
+        public void run() {
+            if (SETTLED.compareAndSet(this, 0, 1)) {
+                release(this);
+                sink.dropped(this, DROPPED_IN_FLIGHT_TIMEOUT);
+            }
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<PendingEvent> SETTLED =
+            AtomicIntegerFieldUpdater.newUpdater(PendingEvent.class, "settled");
+
+    private final ConcurrentLinkedQueue<PendingEvent> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger(0);
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong inFlightBytes = new AtomicLong(0);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final SdkExecutor executor;
+    private final Sink sink;
+    private final long flushIntervalMs;
+    private final int maxBatchSize;
+    private final QueueLimits limits;
+
+    // producers blocked by OVERFLOW_BLOCK wait on this
+    private final Object roomLock = new Object();
+    private volatile int roomWaiters = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            drain(Integer.MAX_VALUE);
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain(maxBatchSize);
+            drainScheduled.set(false);
+
+            // events may have been queued while we were draining, wait for a result if nothing can be sent
+            if (sendableHead() != null) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    EventBatcher(SdkExecutor executor, Sink sink, long flushIntervalMs, int maxBatchSize, QueueLimits limits) {
+        this.executor = executor;
+        this.sink = sink;
+        this.flushIntervalMs = Math.max(0, flushIntervalMs);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.limits = limits;
+    }
+
+    // queue a logEvent call, may be called from any thread
+    // 'requestId', 'callback' (a Lua reference, with the generation of the runtime that created it) and 'listener'
+    // (a Java caller's) are passed through to the sink
+    void enqueue(String eventName, Map<String, Object> params, long requestId, int callback, int callbackGeneration,
+                 AppsFlyerPlugin.RequestListener listener) {
+        offer(new PendingEvent(eventName, params, requestId, callback, callbackGeneration, listener, null, false,
+                QueueLimits.estimateBytes(eventName, params)));
+    }
+
+    // queue another SDK call, it runs on the drain thread in order with the events and has no result
+    void enqueueCall(String name, Runnable call, int bytes) {
+        enqueueCall(name, call, bytes, 0, null);
+    }
+
+    // same as enqueueCall(name, call, bytes), a drop by the queue limits is passed to the sink with 'requestId'
+    // and 'listener', the call itself reports its result
+    void enqueueCall(String name, Runnable call, int bytes, long requestId, AppsFlyerPlugin.RequestListener listener) {
+        offer(new PendingEvent(name, null, requestId, CoronaLua.REFNIL, 0, listener, call, false, bytes));
+    }
+
+    // queue an SDK call that must run after the events queued before it and must not be lost, e.g. a consent
+    // change, it runs on the drain thread and is exempt from the queue limits, also when the runtime exits
+    void enqueueOrderedCall(String name, Runnable call) {
+        queue.offer(new PendingEvent(name, null, 0, CoronaLua.REFNIL, 0, null, call, true, 0));
+        scheduleDrain();
+    }
+
+    // send queued events now instead of a batch per flush interval, as many as the in-flight budget allows
+    // the rest follows as results come back
+    void flush() {
+        executor.execute(flushTask);
+    }
+
+    // last chance before the runtime exits, on the drain thread: send queued events regardless of the in-flight
+    // budget until 'deadlineNanos' (a System.nanoTime() value), events left after it are dropped
+    // returns the number of events dropped
+    int drainForExit(long deadlineNanos) {
+        PendingEvent event;
+        while (System.nanoTime() < deadlineNanos && (event = queue.poll()) != null) {
+            removed(event);
+            deliver(event);
+        }
+
+        int dropped = 0;
+        while ((event = queue.poll()) != null) {
+            removed(event);
+            if (event.ordered) {
+                event.call.run();
+                continue;
+            }
+            sink.dropped(event, DROPPED_EXIT_TIMEOUT);
+            dropped++;
+        }
+
+        wakeProducers();
+        return dropped;
+    }
+
+    // number of queued events, ordered calls are not counted
+    int size() {
+        return depth.get();
+    }
+
+    // number of delivered events waiting for their result
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    private void offer(PendingEvent event) {
+        if (!reserve(event.bytes)) {
+            switch (limits.overflow) {
+                case QueueLimits.OVERFLOW_DROP_NEWEST:
+                    sink.dropped(event, DROPPED_NEWEST);
+                    return;
+                case QueueLimits.OVERFLOW_BLOCK:
+                    if (!awaitRoom(event.bytes)) {
+                        sink.dropped(event, DROPPED_BLOCK_TIMEOUT);
+                        return;
+                    }
+                    break;
+                case QueueLimits.OVERFLOW_COALESCE:
+                    // another producer may take the room made in the meantime
+                    if (event.call != null || !removeLast(event.eventName) || !reserve(event.bytes)) {
+                        sink.dropped(event, DROPPED_NEWEST);
+                        return;
+                    }
+                    break;
+                default:
+                    if (!dropOldest(event.bytes)) {
+                        sink.dropped(event, DROPPED_NEWEST);
+                        return;
+                    }
+                    break;
+            }
+        }
+
+        // room for it is reserved
+        queue.offer(event);
+        scheduleDrain();
+    }
+
+    // take room for an event of 'bytes' in the queue, returns false if there is none
+    // the count is claimed with a compare-and-set and the bytes are given back if they do not fit, so the limits
+    // hold with concurrent producers, a single event larger than the byte budget is accepted into an empty queue
+    private boolean reserve(int bytes) {
+        while (true) {
+            int queued = depth.get();
+            if (queued >= limits.maxQueued) {
+                return false;
+            }
+            if (!depth.compareAndSet(queued, queued + 1)) {
+                continue;
+            }
+
+            if (queuedBytes.addAndGet(bytes) <= limits.maxQueuedBytes || queued == 0) {
+                return true;
+            }
+            queuedBytes.addAndGet(-bytes);
+            depth.decrementAndGet();
+            return false;
+        }
+    }
+
+    private boolean hasInFlightRoom() {
+        return inFlight.get() < limits.maxInFlight && inFlightBytes.get() < limits.maxInFlightBytes;
+    }
+
+    // the head of the queue if it can be sent now, ordered calls take no in-flight slot and are never held back
+    private PendingEvent sendableHead() {
+        PendingEvent head = queue.peek();
+        if (head == null || (!head.ordered && !hasInFlightRoom())) {
+            return null;
+        }
+        return head;
+    }
+
+    // wait for room in the queue, gives up right away on the drain thread since only it makes room
+    private boolean awaitRoom(int bytes) {
+        if (executor.isCurrentThread()) {
+            return false;
+        }
+
+        long deadline = System.nanoTime() + limits.blockTimeoutMs * 1000000L;
+        synchronized (roomLock) {
+            roomWaiters++;
+            try {
+                while (!reserve(bytes)) {
+                    long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        return false;
+                    }
+                    roomLock.wait(remainingNanos / 1000000, (int) (remainingNanos % 1000000));
+                }
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                roomWaiters--;
+            }
+        }
+    }
+
+    // drop the oldest queued events and calls until room for 'bytes' is reserved, ordered calls are kept
+    // returns false if only ordered calls are left and there is still no room
+    private boolean dropOldest(int bytes) {
+        for (Iterator<PendingEvent> it = queue.iterator(); it.hasNext(); ) {
+            PendingEvent oldest = it.next();
+            // the drain may have taken it in the meantime
+            if (oldest.ordered || !queue.remove(oldest)) {
+                continue;
+            }
+            removed(oldest);
+            sink.dropped(oldest, DROPPED_OLDEST);
+            if (reserve(bytes)) {
+                return true;
+            }
+        }
+        return reserve(bytes);
+    }
+
+    // drop the newest queued logEvent named 'eventName' in favour of a new one, returns false if there is none
+    private boolean removeLast(String eventName) {
+        PendingEvent last = null;
+        for (Iterator<PendingEvent> it = queue.iterator(); it.hasNext(); ) {
+            PendingEvent event = it.next();
+            if (event.call == null && event.eventName.equals(eventName)) {
+                last = event;
+            }
+        }
+
+        // the drain may have taken it in the meantime
+        if (last == null || !queue.remove(last)) {
+            return false;
+        }
+        removed(last);
+        sink.dropped(last, DROPPED_COALESCED);
+        return true;
+    }
+
+    private void removed(PendingEvent event) {
+        if (event.ordered) {
+            return;
+        }
+        depth.decrementAndGet();
+        queuedBytes.addAndGet(-event.bytes);
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            if (flushIntervalMs == 0) {
+                executor.post(drainTask);
+            } else {
+                executor.postDelayed(drainTask, flushIntervalMs);
+            }
+        }
+    }
+
+    // forward at most 'limit' queued events to the sink while the in-flight budget has room, or the head is an ordered call
+    // returns the number delivered
+    private int drain(int limit) {
+        int delivered = 0;
+        PendingEvent event;
+        while (delivered < limit && (event = sendableHead()) != null) {
+            if (!queue.remove(event)) {
+                continue; // dropped by a producer in the meantime
+            }
+            removed(event);
+            deliver(event);
+            delivered++;
+        }
+
+        if (delivered > 0) {
+            wakeProducers();
+        }
+        return delivered;
+    }
+
+    private void deliver(PendingEvent event) {
+        if (event.call != null) {
+            event.call.run();
+        } else {
+            inFlight.incrementAndGet();
+            inFlightBytes.addAndGet(event.bytes);
+            executor.postDelayed(event, limits.inFlightTimeoutMs);
+            sink.deliver(event);
+        }
+    }
+
+    // give back the in-flight slot of a delivered event, once its result arrived or it was given up
+    private void release(PendingEvent event) {
+        inFlight.decrementAndGet();
+        inFlightBytes.addAndGet(-event.bytes);
+        if (!queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    // let producers blocked by OVERFLOW_BLOCK check for room again
+    private void wakeProducers() {
+        if (roomWaiters > 0) {
+            synchronized (roomLock) {
+                roomLock.notifyAll();
+            }
+        }
+    }
+}
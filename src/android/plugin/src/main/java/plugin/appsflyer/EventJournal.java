@@ -0,0 +1,631 @@
+//
+// EventJournal.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, crash-safe journal of logEvent calls that AppsFlyer has not acknowledged yet.
+ * <p>
+ * Every event is written to the journal before it is sent. A successful send appends an ack record.
+ * Events that failed, or that were never acknowledged by a previous process, are replayed with
+ * exponential backoff.
+ * <p>
+ * Records are appended to segment files through a FileChannel. Writes are not synced one by one. Instead
+ * the journal is synced once per commit interval (group commit). A crash can lose at most the records
+ * written since the last commit. Segments are deleted oldest first once all their events are acknowledged.
+ * If the journal grows beyond its disk budget, the oldest segments are dropped even if events in them
+ * are still pending.
+ * <p>
+ * All file access happens on the journal's own background thread.
+ */
+class EventJournal {
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private static final String CORONA_TAG = "Corona";
+    private static final String WARNING_MSG = "WARNING: appsflyer journal, ";
+    private static final String THREAD_NAME = "AppsFlyerJournal";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final long COMMIT_INTERVAL_MS = 1000;
+    private static final long RETRY_BASE_DELAY_MS = 5 * 1000;
+    private static final long RETRY_MAX_DELAY_MS = 5 * 60 * 1000;
+    private static final long MIN_SEGMENT_BYTES = 16 * 1024;
+    private static final int SEGMENTS_PER_BUDGET = 4;
+
+    // record layout: [int payloadLength][int crc32(payload)][payload]
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 256 * 1024;
+    private static final byte RECORD_EVENT = 1;
+    private static final byte RECORD_ACK = 2;
+
+    // parameter value types
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_BOOLEAN = 2;
+    private static final byte VALUE_NUMBER = 3;
+
+    /**
+     * Sends a journaled event again. Implementations must eventually call acknowledge() or markFailed()
+     * on 'journal', also when the event cannot be sent right now.
+     */
+    interface Replayer {
+        void replay(EventJournal journal, Entry entry, String eventName, Map<String, Object> params);
+    }
+
+    /**
+     * Handle to a journaled event. The id is assigned on the journal thread.
+     */
+    static final class Entry {
+        long id = -1;
+    }
+
+    private static final class Segment {
+        final long sequence;
+        final File file;
+        long bytes;
+        int pending;
+
+        Segment(long sequence, File file, long bytes) {
+            this.sequence = sequence;
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final Replayer replayer;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // the fields below are only touched on the journal thread
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final HashMap<Long, Segment> pendingIds = new HashMap<>();
+    private final TreeMap<Long, Entry> retryable = new TreeMap<>();
+    private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(payloadBytes);
+    private final CRC32 crc = new CRC32();
+    private FileChannel activeChannel;
+    private long nextId = 1;
+    private long totalBytes = 0;
+    private boolean commitScheduled = false;
+    private boolean retryScheduled = false;
+    private int consecutiveFailures = 0;
+    private volatile long droppedEvents = 0;
+    private volatile int pendingEvents = 0;
+
+    // set by close(), records from then on are rejected and counted as dropped
+    private volatile boolean closed = false;
+    private final AtomicLong rejectedEvents = new AtomicLong(0);
+
+    private final Runnable commitTask = new Runnable() {
+        @Override
+        public void run() {
+            commitScheduled = false;
+            commit();
+        }
+    };
+
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            retryScheduled = false;
+            retryPending();
+        }
+    };
+
+    EventJournal(File directory, long maxBytes, Replayer replayer) {
+        this.directory = directory;
+        this.maxBytes = Math.max(MIN_SEGMENT_BYTES, maxBytes);
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, this.maxBytes / SEGMENTS_PER_BUDGET);
+        this.replayer = replayer;
+
+        thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    // -------------------------------------------------------
+    // public interface, may be called from any thread
+    // -------------------------------------------------------
+
+    // write an event ahead of sending it, returns null if the journal is closed and the event is not journaled
+    Entry record(final String eventName, final Map<String, Object> params) {
+        final Entry entry = new Entry();
+        boolean posted = !closed && handler.post(new Runnable() {
+            @Override
+            public void run() {
+                entry.id = nextId++;
+                writeEvent(entry.id, eventName, params);
+            }
+        });
+        if (!posted) {
+            rejectedEvents.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+
+    // AppsFlyer accepted the event
+    void acknowledge(final Entry entry) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                consecutiveFailures = 0;
+                Segment segment = pendingIds.remove(entry.id);
+                if (segment != null) {
+                    segment.pending--;
+                    pendingEvents = pendingIds.size();
+                    writeAck(entry.id);
+                    compact();
+                }
+            }
+        });
+    }
+
+    // AppsFlyer rejected the event or it could not be sent, retry it later
+    void markFailed(final Entry entry) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                consecutiveFailures++;
+                if (pendingIds.containsKey(entry.id)) {
+                    retryable.put(entry.id, entry);
+                    scheduleRetry();
+                }
+            }
+        });
+    }
+
+    // number of events dropped because they were over budget or unreadable, or recorded after close()
+    long getDroppedEvents() {
+        return droppedEvents + rejectedEvents.get();
+    }
+
+    // number of journaled events not acknowledged yet
+    int getPendingEvents() {
+        return pendingEvents;
+    }
+
+    // sync outstanding writes and stop the journal thread
+    void close() {
+        closed = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacks(commitTask);
+                handler.removeCallbacks(retryTask);
+                commit();
+                closeActiveSegment();
+            }
+        });
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            thread.quitSafely();
+        } else {
+            thread.quit();
+        }
+    }
+
+    // -------------------------------------------------------
+    // journal thread
+    // -------------------------------------------------------
+
+    // read existing segments, find events that were never acknowledged and schedule them for replay
+    private void load() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot create journal directory " + directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+
+        final HashMap<Long, Segment> eventSegments = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+
+            final Segment segment = new Segment(sequence, file, file.length());
+            segments.addLast(segment);
+            totalBytes += segment.bytes;
+
+            readSegment(segment, new RecordVisitor() {
+                @Override
+                public void onEvent(long id, String eventName, Map<String, Object> params) {
+                    eventSegments.put(id, segment);
+                    segment.pending++;
+                    nextId = Math.max(nextId, id + 1);
+                }
+
+                @Override
+                public void onAck(long id) {
+                    Segment eventSegment = eventSegments.remove(id);
+                    if (eventSegment != null) {
+                        eventSegment.pending--;
+                    }
+                }
+            });
+        }
+
+        // everything a previous process did not get acknowledged is retried
+        for (Map.Entry<Long, Segment> pending : eventSegments.entrySet()) {
+            Entry entry = new Entry();
+            entry.id = pending.getKey();
+            pendingIds.put(entry.id, pending.getValue());
+            retryable.put(entry.id, entry);
+        }
+        pendingEvents = pendingIds.size();
+
+        openActiveSegment(segments.isEmpty() ? 1 : segments.peekLast().sequence + 1);
+        compact();
+        scheduleRetry();
+    }
+
+    private void openActiveSegment(long sequence) {
+        File file = new File(directory, String.format(Locale.US, "%016d%s", sequence, SEGMENT_SUFFIX));
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            activeChannel = raf.getChannel();
+            activeChannel.position(activeChannel.size());
+            segments.addLast(new Segment(sequence, file, activeChannel.size()));
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot open journal segment " + file + ": " + ex.getMessage());
+            activeChannel = null;
+        }
+    }
+
+    private void closeActiveSegment() {
+        if (activeChannel != null) {
+            try {
+                activeChannel.close();
+            } catch (IOException ignored) {
+            }
+            activeChannel = null;
+        }
+    }
+
+    private void writeEvent(long id, String eventName, Map<String, Object> params) {
+        try {
+            payloadBytes.reset();
+            payload.writeByte(RECORD_EVENT);
+            payload.writeLong(id);
+            payload.writeUTF(eventName);
+
+            int count = 0;
+            for (Object value : params.values()) {
+                if (value instanceof String || value instanceof Boolean || value instanceof Number) {
+                    count++;
+                }
+            }
+            payload.writeInt(count);
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                Object value = param.getValue();
+                if (value instanceof String) {
+                    payload.writeUTF(param.getKey());
+                    payload.writeByte(VALUE_STRING);
+                    payload.writeUTF((String) value);
+                } else if (value instanceof Boolean) {
+                    payload.writeUTF(param.getKey());
+                    payload.writeByte(VALUE_BOOLEAN);
+                    payload.writeBoolean((Boolean) value);
+                } else if (value instanceof Number) {
+                    payload.writeUTF(param.getKey());
+                    payload.writeByte(VALUE_NUMBER);
+                    payload.writeDouble(((Number) value).doubleValue());
+                }
+            }
+        } catch (IOException ex) {
+            // event names and values longer than 64k cannot be journaled, send them unjournaled
+            return;
+        }
+
+        Segment active = segments.peekLast();
+        if (append()) {
+            active.pending++;
+            pendingIds.put(id, active);
+            pendingEvents = pendingIds.size();
+            maintain();
+        }
+    }
+
+    private void writeAck(long id) {
+        try {
+            payloadBytes.reset();
+            payload.writeByte(RECORD_ACK);
+            payload.writeLong(id);
+        } catch (IOException ex) {
+            return;
+        }
+        if (append()) {
+            maintain();
+        }
+    }
+
+    // append the current payload to the active segment, returns false if it could not be written
+    private boolean append() {
+        if (activeChannel == null) {
+            return false;
+        }
+
+        byte[] bytes = payloadBytes.toByteArray();
+        int length = bytes.length;
+        crc.reset();
+        crc.update(bytes, 0, length);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+        record.putInt(length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes, 0, length);
+        record.flip();
+
+        try {
+            while (record.hasRemaining()) {
+                activeChannel.write(record);
+            }
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "journal write failed: " + ex.getMessage());
+            return false;
+        }
+
+        Segment active = segments.peekLast();
+        active.bytes += RECORD_HEADER_BYTES + length;
+        totalBytes += RECORD_HEADER_BYTES + length;
+
+        // group commit
+        if (!commitScheduled) {
+            commitScheduled = true;
+            handler.postDelayed(commitTask, COMMIT_INTERVAL_MS);
+        }
+        return true;
+    }
+
+    // start a new segment when the active one is full and keep the journal within its budget
+    private void maintain() {
+        if (segments.peekLast().bytes >= segmentBytes) {
+            rollSegment();
+        }
+        enforceBudget();
+    }
+
+    private void commit() {
+        if (activeChannel != null) {
+            try {
+                activeChannel.force(false);
+            } catch (IOException ex) {
+                Log.w(CORONA_TAG, WARNING_MSG + "journal sync failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void rollSegment() {
+        commit();
+        closeActiveSegment();
+        openActiveSegment(segments.peekLast().sequence + 1);
+    }
+
+    // delete acknowledged segments, oldest first
+    // acks live in the same or a later segment than their event, so deleting from the head never revives an event
+    private void compact() {
+        while (segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+            if (oldest.pending > 0) {
+                break;
+            }
+            deleteOldestSegment();
+        }
+    }
+
+    // drop the oldest segments, pending events included, until the journal fits its budget
+    private void enforceBudget() {
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+            if (oldest.pending > 0) {
+                Iterator<Map.Entry<Long, Segment>> it = pendingIds.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, Segment> pending = it.next();
+                    if (pending.getValue() == oldest) {
+                        retryable.remove(pending.getKey());
+                        it.remove();
+                    }
+                }
+                droppedEvents += oldest.pending;
+                pendingEvents = pendingIds.size();
+                Log.w(CORONA_TAG, WARNING_MSG + "journal is over its disk budget, dropped " + oldest.pending + " events");
+            }
+            deleteOldestSegment();
+        }
+    }
+
+    private void deleteOldestSegment() {
+        Segment oldest = segments.removeFirst();
+        totalBytes -= oldest.bytes;
+        if (!oldest.file.delete()) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot delete journal segment " + oldest.file);
+        }
+    }
+
+    private void scheduleRetry() {
+        if (retryScheduled || retryable.isEmpty()) {
+            return;
+        }
+
+        long delay = RETRY_BASE_DELAY_MS << Math.min(consecutiveFailures, 16);
+        retryScheduled = true;
+        handler.postDelayed(retryTask, Math.min(delay, RETRY_MAX_DELAY_MS));
+    }
+
+    // replay every retryable event, reading each segment that holds one
+    private void retryPending() {
+        if (retryable.isEmpty()) {
+            return;
+        }
+
+        // make sure everything we are about to read is on disk
+        commit();
+
+        ArrayList<Segment> toRead = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.pending > 0) {
+                toRead.add(segment);
+            }
+        }
+
+        for (Segment segment : toRead) {
+            readSegment(segment, new RecordVisitor() {
+                @Override
+                public void onEvent(long id, String eventName, Map<String, Object> params) {
+                    Entry entry = retryable.remove(id);
+                    if (entry != null) {
+                        replayer.replay(EventJournal.this, entry, eventName, params);
+                    }
+                }
+
+                @Override
+                public void onAck(long id) {
+                }
+            });
+        }
+
+        // anything left could not be read back, give up on it
+        for (Long id : retryable.keySet()) {
+            Segment segment = pendingIds.remove(id);
+            if (segment != null) {
+                segment.pending--;
+                droppedEvents++;
+            }
+        }
+        retryable.clear();
+        pendingEvents = pendingIds.size();
+        compact();
+    }
+
+    private interface RecordVisitor {
+        void onEvent(long id, String eventName, Map<String, Object> params);
+
+        void onAck(long id);
+    }
+
+    // read all valid records of a segment, stops at the first torn or corrupt record
+    private void readSegment(Segment segment, RecordVisitor visitor) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(segment.file, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header)) {
+                    break;
+                }
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (!readFully(channel, body)) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body.array(), 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(), 0, length));
+                byte type = in.readByte();
+                long id = in.readLong();
+                if (type == RECORD_EVENT) {
+                    String eventName = in.readUTF();
+                    int count = in.readInt();
+                    Map<String, Object> params = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        String key = in.readUTF();
+                        byte valueType = in.readByte();
+                        if (valueType == VALUE_STRING) {
+                            params.put(key, in.readUTF());
+                        } else if (valueType == VALUE_BOOLEAN) {
+                            params.put(key, in.readBoolean());
+                        } else {
+                            params.put(key, in.readDouble());
+                        }
+                    }
+                    visitor.onEvent(id, eventName, params);
+                } else if (type == RECORD_ACK) {
+                    visitor.onAck(id);
+                }
+            }
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot read journal segment " + segment.file + ": " + ex.getMessage());
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+//
+// EventPolicy.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+/**
+ * Decides whether a logEvent call for one event name is forwarded to AppsFlyer.
+ * <p>
+ * Rules are applied in this order, an event has to pass all configured rules:
+ * <ul>
+ * <li>firstPerSession: only the first N events of the session pass</li>
+ * <li>maxPerSecond/burst: token bucket rate limit</li>
+ * <li>sampleRate: a fixed fraction (0..1) of the remaining events pass, spread evenly</li>
+ * </ul>
+ * Events that do not pass are counted, see getDropped().
+ */
+class EventPolicy {
+    static final int UNLIMITED = -1;
+
+    private static final double SAMPLE_CREDIT_TOLERANCE = 1e-9;
+
+    private final int firstPerSession;
+    private final double maxPerSecond;
+    private final double burst;
+    private final double sampleRate;
+
+    // state, guarded by 'this'
+    private int seenThisSession = 0;
+    private double tokens;
+    private long lastRefillNanos;
+    private double sampleCredit = 0;
+    private long dropped = 0;
+
+    /**
+     * @param firstPerSession Number of events passed per session, or UNLIMITED.
+     * @param maxPerSecond    Sustained events per second, or UNLIMITED.
+     * @param burst           Bucket size of the rate limit. Values below 1 use maxPerSecond.
+     * @param sampleRate      Fraction of events passed, 1 passes all.
+     */
+    EventPolicy(int firstPerSession, double maxPerSecond, double burst, double sampleRate) {
+        this.firstPerSession = firstPerSession;
+        this.maxPerSecond = maxPerSecond;
+        this.burst = (burst >= 1) ? burst : Math.max(1, maxPerSecond);
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        this.tokens = this.burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    double getSampleRate() {
+        return sampleRate;
+    }
+
+    boolean isSampled() {
+        return sampleRate < 1;
+    }
+
+    // number of events this policy did not pass
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    // returns true if the event should be sent
+    // the session slot and the rate limit token are only used up by events that pass every rule
+    synchronized boolean allow() {
+        if (firstPerSession != UNLIMITED && seenThisSession >= firstPerSession) {
+            dropped++;
+            return false;
+        }
+
+        if (maxPerSecond != UNLIMITED) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * maxPerSecond / 1e9);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                dropped++;
+                return false;
+            }
+        }
+
+        if (sampleRate < 1) {
+            // the tolerance keeps rounding errors from skipping an event, 0.1 added ten times is just below 1
+            sampleCredit += sampleRate;
+            if (sampleCredit < 1 - SAMPLE_CREDIT_TOLERANCE) {
+                dropped++;
+                return false;
+            }
+            sampleCredit -= 1;
+        }
+
+        if (maxPerSecond != UNLIMITED) {
+            tokens -= 1;
+        }
+        seenThisSession++;
+        return true;
+    }
+}
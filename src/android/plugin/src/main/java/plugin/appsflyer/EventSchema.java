@@ -0,0 +1,173 @@
+//
+// EventSchema.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import com.naef.jnlua.LuaType;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The shape of an event registered with appsflyer.defineEvent(): its name and its parameters in order,
+ * each with the one Lua type it accepts.
+ * <p>
+ * logEventFast() reads the parameter values positionally from the Lua stack into a Params map that shares
+ * the schema's interned keys, so a call neither traverses a table nor hashes keys.
+ * Schemas are immutable once created.
+ */
+class EventSchema {
+    // most fields an event can be defined with
+    static final int MAX_FIELDS = 64;
+
+    final String eventName;
+    private final String[] keys;
+    private final LuaType[] types;
+
+    // keys followed by the sample rate parameter, built the first time a sampled event uses this schema
+    private volatile String[] sampledKeys = null;
+
+    EventSchema(String eventName, String[] keys, LuaType[] types) {
+        this.eventName = eventName;
+        this.keys = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            this.keys[i] = keys[i].intern();
+        }
+        this.types = types.clone();
+    }
+
+    // the Lua type for a field declared as "string", "number" or "boolean", null for anything else
+    static LuaType parseType(String typeName) {
+        if ("string".equals(typeName)) {
+            return LuaType.STRING;
+        } else if ("number".equals(typeName)) {
+            return LuaType.NUMBER;
+        } else if ("boolean".equals(typeName)) {
+            return LuaType.BOOLEAN;
+        }
+        return null;
+    }
+
+    int fieldCount() {
+        return keys.length;
+    }
+
+    String key(int field) {
+        return keys[field];
+    }
+
+    LuaType type(int field) {
+        return types[field];
+    }
+
+    // an empty parameter layout for one call, with room for the sample rate parameter if 'sampleRateKey' is set
+    Params newParams(String sampleRateKey) {
+        if (sampleRateKey == null) {
+            return new Params(keys);
+        }
+
+        String[] withSampleRate = sampledKeys;
+        if (withSampleRate == null || !withSampleRate[keys.length].equals(sampleRateKey)) {
+            withSampleRate = new String[keys.length + 1];
+            System.arraycopy(keys, 0, withSampleRate, 0, keys.length);
+            withSampleRate[keys.length] = sampleRateKey;
+            sampledKeys = withSampleRate;
+        }
+        return new Params(withSampleRate);
+    }
+
+    /**
+     * Parameters of one logEventFast() call. Keys are shared with the schema, values are set by position.
+     * Unset (nil) values are left out of the map.
+     */
+    static final class Params extends AbstractMap<String, Object> {
+        private final String[] keys;
+        private final Object[] values;
+        private int size = 0;
+
+        private Params(String[] keys) {
+            this.keys = keys;
+            this.values = new Object[keys.length];
+        }
+
+        // set the value at 'field', each field is set at most once
+        void set(int field, Object value) {
+            if (values[field] == null) {
+                size++;
+            }
+            values[field] = value;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object get(Object key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        private int next = skipUnset(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            if (next >= keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[next], values[next]);
+                            next = skipUnset(next + 1);
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+
+        private int skipUnset(int index) {
+            while (index < values.length && values[index] == null) {
+                index++;
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+//
+// FlushScheduler.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the periodic work of one Corona runtime on the SDK thread and flushes the event queue around the
+ * runtime's lifecycle.
+ * <p>
+ * Periodic tasks (stats events, aggregate summaries) are paused while the app is suspended. suspend() also
+ * sends everything queued right away, since a suspended app may be killed without notice. resume() restarts
+ * the periodic tasks after a random part of their interval and every run is spread by +-10%, so apps resumed
+ * together do not send in lockstep. exit() gives the event queue a bounded time to drain and stops the
+ * SDK thread.
+ * <p>
+ * State changes happen on the SDK thread, so periodic tasks never race with suspend() and resume().
+ */
+class FlushScheduler {
+    static final long DEFAULT_EXIT_DRAIN_TIMEOUT_MS = 500;
+
+    // periodic runs are spread by this fraction of their interval
+    private static final double JITTER = 0.1;
+
+    private final SdkExecutor executor;
+    private final EventBatcher batcher;
+    private final long exitDrainTimeoutMs;
+    private final List<Periodic> periodic = new CopyOnWriteArrayList<>();
+    private final Random random = new Random();
+
+    // SDK thread only
+    private boolean suspended = false;
+    private boolean stopped = false;
+
+    private final class Periodic implements Runnable {
+        final Runnable task;
+        final long intervalMs;
+
+        Periodic(Runnable task, long intervalMs) {
+            this.task = task;
+            this.intervalMs = intervalMs;
+        }
+
+        @Override
+        public void run() {
+            if (suspended || stopped) {
+                return;
+            }
+
+            task.run();
+            executor.postDelayed(this, jittered(intervalMs));
+        }
+    }
+
+    FlushScheduler(SdkExecutor executor, EventBatcher batcher, long exitDrainTimeoutMs) {
+        this.executor = executor;
+        this.batcher = batcher;
+        this.exitDrainTimeoutMs = Math.max(0, exitDrainTimeoutMs);
+    }
+
+    // run 'task' on the SDK thread about every 'intervalMs' milliseconds, except while suspended
+    void schedule(Runnable task, long intervalMs) {
+        final Periodic job = new Periodic(task, intervalMs);
+        periodic.add(job);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!suspended && !stopped) {
+                    executor.postDelayed(job, jittered(job.intervalMs));
+                }
+            }
+        });
+    }
+
+    // the app went to the background: pause periodic tasks and send what is queued
+    void suspend() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stopped) {
+                    return;
+                }
+
+                suspended = true;
+                for (Periodic job : periodic) {
+                    executor.removeCallbacks(job);
+                }
+                batcher.flush();
+            }
+        });
+    }
+
+    // the app is back: restart periodic tasks, each after a random part of its interval
+    void resume() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!suspended || stopped) {
+                    return;
+                }
+
+                suspended = false;
+                for (Periodic job : periodic) {
+                    executor.removeCallbacks(job);
+                    executor.postDelayed(job, (long) (random.nextDouble() * job.intervalMs));
+                }
+            }
+        });
+    }
+
+    // the runtime exits: stop periodic tasks, send queued events until the drain timeout and stop the SDK thread
+    // waits at most the drain timeout, returns false if the drain did not finish by then
+    // on the main thread the drain runs with the same deadline but is not waited for, the main thread may be
+    // busy with the activity's own shutdown and blocking the runtime thread on it gains nothing
+    boolean exit() {
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(exitDrainTimeoutMs);
+        final CountDownLatch drained = new CountDownLatch(1);
+        Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                stopped = true;
+                for (Periodic job : periodic) {
+                    executor.removeCallbacks(job);
+                }
+                batcher.drainForExit(deadlineNanos);
+                drained.countDown();
+            }
+        };
+
+        if (executor.isCurrentThread()) {
+            drain.run();
+        } else {
+            executor.post(drain);
+        }
+        // work queued before this still runs
+        executor.shutdown();
+        if (executor.isMainThread()) {
+            return true;
+        }
+
+        try {
+            return drained.await(exitDrainTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private long jittered(long intervalMs) {
+        return Math.max(1, (long) (intervalMs * (1 - JITTER + 2 * JITTER * random.nextDouble())));
+    }
+}
@@ -0,0 +1,85 @@
+//
+// LuaEvent.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import com.ansca.corona.CoronaLua;
+
+import java.util.Map;
+
+/**
+ * A Lua event waiting to be dispatched, with the fields plugin events have as typed values.
+ * <p>
+ * Records come from a bounded pool, as android.os.Message does: obtain() takes one, recycle() returns it once
+ * the event has been pushed onto the Lua stack or dropped. Results of SDK calls fill only the primitive and
+ * constant fields, so in the steady state dispatching them creates no garbage. Rare events (init, stats,
+ * attribution, version) carry their payload in 'data' or 'fields'.
+ */
+final class LuaEvent {
+    private static final int POOL_SIZE = 256;
+
+    // guarded by 'pool'
+    private static final LuaEvent[] pool = new LuaEvent[POOL_SIZE];
+    private static int pooled = 0;
+
+    String phase;               // "phase" field, null if the event has none
+    String type;                // "type" field, null if the event has none
+    boolean isError;            // "isError" field
+    long requestId;             // "requestId" field, 0 if the event has none
+    Object data;                // "data" field (String, Map or List), null if the event has none
+    Map<String, Object> fields; // any other fields, null if there are none
+    int listener;               // per-call callback, CoronaLua.REFNIL for the listener passed to init
+    int generation;             // runtime that created 'listener', see PluginState.generation
+
+    private LuaEvent() {
+        clear();
+    }
+
+    // an empty event for the init listener
+    static LuaEvent obtain() {
+        synchronized (pool) {
+            if (pooled > 0) {
+                LuaEvent event = pool[--pooled];
+                pool[pooled] = null;
+                return event;
+            }
+        }
+        return new LuaEvent();
+    }
+
+    static LuaEvent obtain(String phase, boolean isError, String data, long requestId, int listener, int generation) {
+        LuaEvent event = obtain();
+        event.phase = phase;
+        event.isError = isError;
+        event.data = data;
+        event.requestId = requestId;
+        event.listener = listener;
+        event.generation = generation;
+        return event;
+    }
+
+    // return the event to the pool, it must not be used afterwards
+    void recycle() {
+        clear();
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = this;
+            }
+        }
+    }
+
+    private void clear() {
+        phase = null;
+        type = null;
+        isError = false;
+        requestId = 0;
+        data = null;
+        fields = null;
+        listener = CoronaLua.REFNIL;
+        generation = 0;
+    }
+}
@@ -18,24 +18,38 @@ import com.ansca.corona.CoronaRuntimeListener;
 
 import com.appsflyer.AFAdRevenueData;
 import com.appsflyer.AdRevenueScheme;
-import com.appsflyer.AppsFlyerInAppPurchaseValidatorListener;
 import com.appsflyer.MediationNetwork;
 import com.appsflyer.attribution.AppsFlyerRequestListener;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.naef.jnlua.JavaFunction;
 import com.naef.jnlua.LuaType;
 import com.naef.jnlua.NamedJavaFunction;
 import com.naef.jnlua.LuaState;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
 import android.util.Log;
 
 // AppsFlyer imports
-import com.appsflyer.AppsFlyerLib;
 import com.appsflyer.AppsFlyerConversionListener;
 
 /**
@@ -49,8 +63,16 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     private static final String PLUGIN_NAME = "plugin.appsflyer";
     private static final String PLUGIN_VERSION = "1.1.0";
 
+    // the SDK version is constant for the backend, so it is only asked for once
+    private static volatile String sdkVersion = null;
+
     private static String PLUGIN_SDK_VERSION() {
-        return AppsFlyerLib.getInstance().getSdkVersion();
+        String version = sdkVersion;
+        if (version == null) {
+            version = sdk.getSdkVersion();
+            sdkVersion = version;
+        }
+        return version;
     }
 
     private static final String EVENT_NAME = "analyticsRequest";
@@ -59,28 +81,130 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     // analytics types
     private static final String TYPE_ATTRIBUTION = "attribution";
 
+    // attribution data formats
+    private static final String ATTRIBUTION_FORMAT_STRING = "string";
+    private static final String ATTRIBUTION_FORMAT_TABLE = "table";
+
+    // init option startMode
+    private static final String START_MODE_IMMEDIATE = "immediate";
+    private static final String START_MODE_AFTER_FIRST_FRAME = "afterFirstFrame";
+    private static final String START_MODE_MANUAL = "manual";
+
+    // names of the startup sections in systrace / Perfetto
+    private static final String TRACE_START = "AppsFlyer.start";
+    private static final String TRACE_SDK_INIT = "AppsFlyer.sdkInit";
+    private static final String TRACE_REPLAY = "AppsFlyer.replay";
+
     // event phases
     private static final String PHASE_INIT = "init";
     private static final String PHASE_RECEIVED = "received";
     private static final String PHASE_RECORDED = "recorded";
     private static final String PHASE_FAILED = "failed";
+    private static final String PHASE_BATCH = "batch";
+    private static final String PHASE_DUPLICATE = "duplicate";
+    private static final String PHASE_STATS = "stats";
 
     // add missing event keys
     private static final String EVENT_PHASE_KEY = "phase";
     private static final String EVENT_DATA_KEY = "data";
     private static final String EVENT_TYPE_KEY = "type";
     private static final String EVENT_IS_ERROR_KEY = "isError";
+    private static final String EVENT_EVENTS_KEY = "events";
+    private static final String EVENT_REQUEST_ID_KEY = "requestId";
 
     // message constants
     private static final String CORONA_TAG = "Corona";
     private static final String ERROR_MSG = "ERROR: ";
     private static final String WARNING_MSG = "WARNING: ";
 
-    private static int coronaListener = CoronaLua.REFNIL;
-    private static CoronaRuntimeTaskDispatcher coronaRuntimeTaskDispatcher = null;
+    // listener, dispatcher and SDK executor of the current runtime, read and replaced as a whole, see PluginState
+    private static final AtomicReference<PluginState> state = new AtomicReference<>(PluginState.EMPTY);
+
+    // all AppsFlyer SDK calls go through this backend
+    private static volatile SdkBackend sdk = new AppsFlyerLibBackend();
+
+    // signature of the API function being called on this thread, for log messages
+    private static final ThreadLocal<String> callSignature = new ThreadLocal<String>() {
+        @Override
+        protected String initialValue() {
+            return "";
+        }
+    };
+
+    // SDK start prepared by init and not run yet, see startSdk()
+    private static final AtomicReference<Runnable> pendingSdkStart = new AtomicReference<>();
+
+    // runtime counters and latencies, kept for the lifetime of the process
+    static final PluginStats stats = new PluginStats();
+
+    // ID of the last logEvent call (or Java API request), IDs increase with every call
+    private static final AtomicLong lastRequestId = new AtomicLong(0);
+
+    // Lua events waiting for the next runtime task, or for a runtime and a listener to deliver them to
+    private static final int MAX_PENDING_LUA_EVENTS = 5000;
+    private static final BoundedQueue<LuaEvent> pendingLuaEvents = new BoundedQueue<>(MAX_PENDING_LUA_EVENTS);
+    private static final AtomicBoolean luaDispatchScheduled = new AtomicBoolean(false);
+
+    // events whose per-call callback reference must be deleted by the next dispatch task, because they did not fit
+    // in the queue, references can only be deleted on the Lua thread, and every dropped event still holds one
+    private static final ConcurrentLinkedQueue<LuaEvent> orphanedCallbacks = new ConcurrentLinkedQueue<>();
+
+    // the last runtime generation handed out, see PluginState.generation
+    private static final AtomicInteger lastGeneration = new AtomicInteger(0);
+    private static volatile long luaDispatchScheduledNanos = 0;
+
+    // write-ahead journal of logEvent calls, if enabled in init
+    private static final String JOURNAL_DIRECTORY = "plugin.appsflyer/journal";
+
+    // event schemas registered by appsflyer.defineEvent(), the handle is the index + 1 (Lua thread only)
+    private static final ArrayList<EventSchema> eventSchemas = new ArrayList<>();
+    private static final int MAX_EVENT_SCHEMAS = 256;
+
+    // counters and distributions from appsflyer.increment() and observe(), kept for the lifetime of the process
+    // and sent as one summary event every aggregate interval, when the app is suspended and when the runtime exits
+    private static final Aggregator aggregator = new Aggregator();
+    private static final long DEFAULT_AGGREGATE_INTERVAL_MS = 60000;
+    private static final String DEFAULT_AGGREGATE_EVENT_NAME = "aggregates";
+
+    // summary events have no Lua callback, their failures are only logged
+    private static final AppsFlyerPlugin.RequestListener AGGREGATE_LISTENER = new AppsFlyerPlugin.RequestListener() {
+        @Override
+        public void onSuccess(long requestId) {
+        }
+
+        @Override
+        public void onError(long requestId, String error) {
+            Log.w(CORONA_TAG, WARNING_MSG + PLUGIN_NAME + ": summary event failed: " + error);
+        }
+    };
+
+    // recently validated purchases, if enabled in init
+    private static final String PURCHASE_CACHE_FILE = "plugin.appsflyer/purchases.bin";
+
+    // the AppsFlyer UID, persisted once resolved and kept for the lifetime of the process
+    private static final UidCache uidCache = new UidCache("plugin.appsflyer/uid");
+
+    // the latest conversion data and app-open attribution, persisted and loaded when the plugin is required
+    private static final AttributionCache attributionCache = new AttributionCache("plugin.appsflyer/attribution.bin");
+
+    // logEvent, logPurchase and logRevenueAds calls made before init has finished
+    private static final PreInitBuffer preInitBuffer = new PreInitBuffer();
+
+    // estimated heap size of a queued logRevenueAds call
+    private static final int AD_REVENUE_CALL_BYTES = 512;
+
+    // Gson instances are thread safe and can be shared
+    private static final Gson GSON = new Gson();
+
+    // 'adSource' name (upper case) -> mediation network, filled in on first use of each name
+    private static final int MAX_MEDIATION_NETWORK_CACHE_SIZE = 64;
+    private static final ConcurrentHashMap<String, MediationNetwork> mediationNetworks = new ConcurrentHashMap<>();
 
-    private static String functionSignature = "";
-    private static AppsFlyerConversionListener appsflyerDelegate = null;
+    static {
+        for (MediationNetwork medNet : MediationNetwork.values()) {
+            mediationNetworkFor(medNet.toString());
+        }
+    }
 
     // -------------------------------------------------------
     // Plugin lifecycle events
@@ -123,11 +247,26 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 new SetHasUserConsent(),
                 new GetAppsFlyerUID(),
                 new LogPurchase(),
-                new LogRevenueAds()
+                new LogRevenueAds(),
+                new GetStats(),
+                new Start(),
+                new DefineEvent(),
+                new LogEventFast(),
+                new Increment(),
+                new Observe(),
+                new GetAttribution()
         };
         String libName = L.toString(1);
         L.register(libName, luaFunctions);
 
+        // read the attribution of earlier launches, so appsflyer.getAttribution() can answer on the first frame
+        attributionCache.load(CoronaEnvironment.getApplicationContext());
+
+        // onLoaded() is not called for the first Corona activity, so the dispatcher is created here for it
+        if (state.get().dispatcher == null) {
+            setDispatcherIfAbsent(new CoronaRuntimeTaskDispatcher(L));
+        }
+
         // Returning 1 indicates that the Lua require() function will return the above Lua library
         return 1;
     }
@@ -147,9 +286,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         // this plugin has been required-in by Lua, which occurs after the onLoaded() event.
         // However, this method will be called when a 2nd Corona activity has been created.
 
-        if (coronaRuntimeTaskDispatcher == null) {
-            coronaRuntimeTaskDispatcher = new CoronaRuntimeTaskDispatcher(runtime);
+        if (state.get().dispatcher == null) {
+            setDispatcherIfAbsent(new CoronaRuntimeTaskDispatcher(runtime));
         }
+        scheduleLuaDispatch();
     }
 
     /**
@@ -174,6 +314,19 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
      */
     @Override
     public void onSuspended(CoronaRuntime runtime) {
+        final PluginState current = state.get();
+        if (current.isInitialized()) {
+            // pause periodic work and send the queued events, the app may not come back
+            current.scheduler.suspend();
+
+            // the same for what has been aggregated so far, once the SDK can take events
+            runWhenReady(new Runnable() {
+                @Override
+                public void run() {
+                    flushAggregates(current, true);
+                }
+            });
+        }
     }
 
     /**
@@ -185,6 +338,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
      */
     @Override
     public void onResumed(CoronaRuntime runtime) {
+        FlushScheduler scheduler = state.get().scheduler;
+        if (scheduler != null) {
+            scheduler.resume();
+        }
     }
 
     /**
@@ -200,23 +357,96 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
      */
     @Override
     public void onExiting(final CoronaRuntime runtime) {
-        // reset class variables
-        CoronaLua.deleteRef(runtime.getLuaState(), coronaListener);
-        coronaListener = CoronaLua.REFNIL;
+        // drop the runtime's state in one step, Lua events that arrive from now on are held for the next runtime
+        PluginState exited = state.getAndSet(PluginState.EMPTY);
+
+        // send what has been aggregated before the SDK thread stops, otherwise it is kept for the next runtime
+        if (exited.isStarted()) {
+            flushAggregates(exited, false);
+        }
+        // give queued events a bounded time to reach the SDK (and the journal), then stop the SDK thread
+        if (exited.scheduler != null && !exited.scheduler.exit()) {
+            Log.w(CORONA_TAG, WARNING_MSG + PLUGIN_NAME + ": the event queue did not drain within exitDrainTimeout");
+        }
 
-        appsflyerDelegate = null;
-        coronaRuntimeTaskDispatcher = null;
-        functionSignature = "";
+        // reset class variables
+        CoronaLua.deleteRef(runtime.getLuaState(), exited.listener);
+
+        pendingSdkStart.set(null);
+        releaseCallbackEvents(runtime.getLuaState(), exited.generation);
+        luaDispatchScheduled.set(false);
+        // calls still held for init are reported as failed to whoever waits for their result
+        stats.add(PluginStats.DROPPED_NOT_INITIALIZED, preInitBuffer.reset());
+        eventSchemas.clear();
+        // the rest of the exited state stays with the work that captured it, a drain that ran out of time
+        // still has its purchase validator, only its events are no longer journaled
+        if (exited.journal != null) {
+            exited.journal.close();
+        }
+        callSignature.remove();
     }
 
     // --------------------------------------------------------------------------
     // helper functions
     // --------------------------------------------------------------------------
 
+    // replace the AppsFlyer SDK, e.g. with a simulated backend for load tests (call before appsflyer.init())
+    static void setSdkBackend(SdkBackend backend) {
+        sdk = (backend != null) ? backend : new AppsFlyerLibBackend();
+        sdkVersion = null;
+    }
+
+    // publish the dispatcher of a loaded runtime with a new generation, unless another thread has published one
+    private static void setDispatcherIfAbsent(CoronaRuntimeTaskDispatcher dispatcher) {
+        int generation = lastGeneration.incrementAndGet();
+        PluginState current;
+        do {
+            current = state.get();
+            if (current.dispatcher != null) {
+                return;
+            }
+        } while (!state.compareAndSet(current, current.withDispatcher(dispatcher, generation)));
+    }
+
+    private static void setListener(int listener) {
+        PluginState current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current.withListener(listener)));
+    }
+
+    // publish the executor, batcher and scheduler created by init, returns false if another init got there first
+    private static boolean setSdk(SdkExecutor executor, EventBatcher batcher, FlushScheduler scheduler, PluginState.Options options) {
+        PluginState current;
+        do {
+            current = state.get();
+            if (current.isInitialized()) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, current.withSdk(executor, batcher, scheduler, options)));
+        return true;
+    }
+
+    // publish what the SDK start created, unless the runtime of 'executor' has exited
+    // returns the published state, or null if the runtime has exited
+    private static PluginState setDelegate(SdkExecutor executor, AppsFlyerConversionListener delegate, EventJournal journal,
+                                           PurchaseDedupCache dedupCache, PurchaseValidator validator) {
+        PluginState current;
+        PluginState started;
+        do {
+            current = state.get();
+            if (current.executor != executor) {
+                return null;
+            }
+            started = current.withDelegate(delegate, journal, dedupCache, validator);
+        } while (!state.compareAndSet(current, started));
+        return started;
+    }
+
     // log message to console
     @SuppressWarnings("SameParameterValue")
-    private void logMsg(String msgType, String errorMsg) {
-        String functionID = functionSignature;
+    private static void logMsg(String msgType, String errorMsg) {
+        String functionID = callSignature.get();
         if (!functionID.isEmpty()) {
             functionID += ", ";
         }
@@ -224,50 +454,684 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         Log.i(CORONA_TAG, msgType + functionID + errorMsg);
     }
 
-    // return true if SDK is properly initialized
-    private boolean isSDKInitialized() {
-        if (appsflyerDelegate == null) {
-            logMsg(ERROR_MSG, "appsflyer.init() must be called before calling other API functions");
+    // appsflyer.init() has been called and the runtime has not exited since
+    static boolean isPluginInitialized() {
+        return state.get().isInitialized();
+    }
+
+    // run 'call' now, or hold it in the pre-init buffer until appsflyer.init() has finished
+    private static void runWhenReady(Runnable call) {
+        runWhenReady(call, null);
+    }
+
+    // same as runWhenReady(call), 'onDropped' is told if the pre-init buffer drops the call, may be null
+    private static void runWhenReady(Runnable call, PreInitBuffer.DropListener onDropped) {
+        if (preInitBuffer.offer(call, onDropped)) {
+            if (!state.get().isInitialized()) {
+                logMsg(WARNING_MSG, "appsflyer.init() has not been called yet, the call is held until it completes");
+            }
+            return;
+        }
+
+        call.run();
+    }
+
+    // run the SDK start prepared by init, if it has not run yet, returns false if there is none
+    private static boolean startSdk() {
+        // take the start only once it can run, so an early call does not lose it
+        SdkExecutor executor = state.get().executor;
+        if (executor == null) {
+            return false;
+        }
+        Runnable start = pendingSdkStart.getAndSet(null);
+        if (start == null) {
             return false;
         }
 
+        stats.mark(PluginStats.STARTUP_START_REQUESTED);
+        executor.execute(start);
         return true;
     }
 
-    // dispatch a Lua event to our callback (dynamic handling of properties through map)
-    private void dispatchLuaEvent(final Map<String, Object> event) {
-        if (coronaRuntimeTaskDispatcher != null) {
-            coronaRuntimeTaskDispatcher.send(new CoronaRuntimeTask() {
-                public void executeUsing(CoronaRuntime runtime) {
-                    try {
-                        LuaState L = runtime.getLuaState();
-                        CoronaLua.newEvent(L, EVENT_NAME);
-                        boolean hasErrorKey = false;
+    // record when the first frame after init has been drawn, and start the SDK then if 'startSdk' is set
+    // runtime tasks run at the start of a frame, so the second of two chained tasks runs after the first frame
+    private static void afterFirstFrame(final boolean startSdk) {
+        final CoronaRuntimeTaskDispatcher dispatcher = state.get().dispatcher;
+        if (dispatcher == null) {
+            if (startSdk) {
+                startSdk();
+            }
+            return;
+        }
+
+        dispatcher.send(new CoronaRuntimeTask() {
+            @Override
+            public void executeUsing(CoronaRuntime runtime) {
+                dispatcher.send(new CoronaRuntimeTask() {
+                    @Override
+                    public void executeUsing(CoronaRuntime runtime) {
+                        stats.mark(PluginStats.STARTUP_FIRST_FRAME);
+                        if (startSdk) {
+                            startSdk();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // systrace sections are available from Android 4.3
+    private static void traceBegin(String sectionName) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(sectionName);
+        }
+    }
 
-                        // add event parameters from map
-                        for (String key : event.keySet()) {
-                            CoronaLua.pushValue(L, event.get(key));           // push value
-                            L.setField(-2, key);                              // push key
+    private static void traceEnd() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
 
-                            if (!hasErrorKey) {
-                                hasErrorKey = key.equals(CoronaLuaEvent.ISERROR_KEY);
-                            }
+    // hand out the ID of a new request
+    static long nextRequestId() {
+        return lastRequestId.incrementAndGet();
+    }
+
+    // a DropListener that reports a call dropped before it was queued as "failed" to 'callback' or 'listener'
+    private static PreInitBuffer.DropListener failOnDrop(final long requestId, final int callback, final int callbackGeneration,
+                                                        final AppsFlyerPlugin.RequestListener listener) {
+        return new PreInitBuffer.DropListener() {
+            @Override
+            public void dropped(String reason) {
+                dispatchResult(PHASE_FAILED, true, reason, requestId, callback, callbackGeneration, listener);
+            }
+        };
+    }
+
+    // count a call that was to be queued after the runtime had exited, and report it to 'onDropped', if any
+    private static void dropAfterExit(PreInitBuffer.DropListener onDropped) {
+        stats.increment(PluginStats.DROPPED_NOT_INITIALIZED);
+        if (onDropped != null) {
+            onDropped.dropped("dropped, the runtime has exited");
+        }
+    }
+
+    // queue a logEvent call with the batcher of the current runtime once init has finished, returns its request ID
+    // nothing is queued once the runtime has exited, like a queue limit drop that is reported to a callback or listener
+    // a 'callback' is a reference in the Lua state of the calling thread's runtime
+    static long queueEvent(final String eventName, final Map<String, Object> params, final int callback,
+                           final AppsFlyerPlugin.RequestListener listener) {
+        final long requestId = nextRequestId();
+        final int callbackGeneration = (callback != CoronaLua.REFNIL) ? state.get().generation : 0;
+        final PreInitBuffer.DropListener onDropped = (callback != CoronaLua.REFNIL || listener != null)
+                ? failOnDrop(requestId, callback, callbackGeneration, listener) : null;
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                EventBatcher batcher = state.get().batcher;
+                if (batcher != null) {
+                    batcher.enqueue(eventName, params, requestId, callback, callbackGeneration, listener);
+                } else {
+                    dropAfterExit(onDropped);
+                }
+            }
+        }, onDropped);
+        return requestId;
+    }
+
+    // queue an ad revenue call with the logEvent calls, so it counts against the same queue limits
+    // 'countryCode', 'adUnitName' and 'adType' are optional
+    // only a Java caller's 'listener' gets the result, with 'requestId', Lua has no result event for ad revenue
+    static void queueAdRevenue(String monetizationNetwork, String adSource, String currencyIso4217Code, double revenue,
+                               String countryCode, String adUnitName, String adType, final long requestId,
+                               final AppsFlyerPlugin.RequestListener listener) {
+        final AFAdRevenueData adRevenueData = new AFAdRevenueData(
+                monetizationNetwork,
+                mediationNetworkFor(adSource),
+                currencyIso4217Code,
+                revenue
+        );
+
+        final Map<String, Object> additionalParameters = new HashMap<>();
+        if (countryCode != null) {
+            additionalParameters.put(AdRevenueScheme.COUNTRY, countryCode);
+        }
+        if (adUnitName != null) {
+            additionalParameters.put(AdRevenueScheme.AD_UNIT, adUnitName);
+        }
+        if (adType != null) {
+            additionalParameters.put(AdRevenueScheme.AD_TYPE, adType);
+        }
+
+        final long callNanos = System.nanoTime();
+        final PreInitBuffer.DropListener onDropped = (listener != null) ? failOnDrop(requestId, CoronaLua.REFNIL, 0, listener) : null;
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                EventBatcher batcher = state.get().batcher;
+                if (batcher == null) {
+                    dropAfterExit(onDropped);
+                    return;
+                }
+                batcher.enqueueCall("logRevenueAds", new Runnable() {
+                    @Override
+                    public void run() {
+                        stats.recordSince(PluginStats.LATENCY_LUA_TO_SDK, callNanos);
+                        sdk.logAdRevenue(adRevenueData, additionalParameters);
+                        // the SDK has no result for ad revenue, it is recorded once handed over
+                        if (listener != null) {
+                            dispatchResult(PHASE_RECORDED, false, null, requestId, CoronaLua.REFNIL, 0, listener);
+                        }
+                    }
+                }, AD_REVENUE_CALL_BYTES, requestId, listener);
+            }
+        }, onDropped);
+    }
+
+    // validate a purchase on the SDK thread once init has finished, after the events logged before it
+    // the result goes to the Java caller's 'listener' with 'requestId', otherwise to the init listener
+    static void queuePurchase(final String publicKey, final String signature, final String purchaseData, final String price,
+                              final String currency, final HashMap<String, String> params, final long requestId,
+                              final AppsFlyerPlugin.RequestListener listener) {
+        final long callNanos = System.nanoTime();
+        runInOrderWhenReady("logPurchase", failOnDrop(requestId, CoronaLua.REFNIL, 0, listener), new OrderedCall() {
+            @Override
+            public void run(PluginState runtime) {
+                // skip purchases that were already validated or are being validated
+                final PurchaseDedupCache cache = (purchaseData != null) ? runtime.dedupCache : null;
+                final long purchaseKey = (cache != null) ? PurchaseDedupCache.hash(purchaseTokenFrom(purchaseData)) : 0;
+                stats.recordSince(PluginStats.LATENCY_LUA_TO_SDK, callNanos);
+                if (cache != null && !cache.begin(purchaseKey)) {
+                    stats.increment(PluginStats.DUPLICATE_PURCHASES);
+                    // Lua gets its own "duplicate" phase, a Java caller only knows success and error
+                    if (listener != null) {
+                        dispatchResult(PHASE_DUPLICATE, true, "duplicate purchase", requestId, CoronaLua.REFNIL, 0, listener);
+                    } else {
+                        dispatchResult(PHASE_DUPLICATE, false, null, requestId, CoronaLua.REFNIL, 0, null);
+                    }
+                    return;
+                }
+
+                // send parameters to AppsFlyer once a validation slot is free
+                runtime.validator.submit(publicKey, signature, purchaseData, price, currency, params, new PurchaseValidator.Callback() {
+                    @Override
+                    public void onValidated(long sdkCallNanos) {
+                        stats.recordSince(PluginStats.LATENCY_SDK_CALLBACK, sdkCallNanos);
+                        stats.increment(PluginStats.SDK_SUCCESS);
+                        if (cache != null) {
+                            cache.succeeded(purchaseKey);
+                        }
+
+                        // send Corona Lua event
+                        dispatchResult(PHASE_RECORDED, false, null, requestId, CoronaLua.REFNIL, 0, listener);
+                    }
+
+                    @Override
+                    public void onFailed(String error, boolean timedOut, long sdkCallNanos) {
+                        if (sdkCallNanos == 0) {
+                            stats.increment(PluginStats.VALIDATION_QUEUE_FULL);
+                        } else {
+                            stats.recordSince(PluginStats.LATENCY_SDK_CALLBACK, sdkCallNanos);
+                            stats.increment(timedOut ? PluginStats.VALIDATION_TIMEOUTS : PluginStats.VALIDATION_FAILURES);
+                        }
+                        if (cache != null) {
+                            cache.failed(purchaseKey);
                         }
 
-                        // add error key if not in map
-                        if (!hasErrorKey) {
-                            L.pushBoolean(false);
-                            L.setField(-2, CoronaLuaEvent.ISERROR_KEY);
+                        // send Corona Lua event
+                        dispatchResult(PHASE_FAILED, true, error, requestId, CoronaLua.REFNIL, 0, listener);
+                    }
+                });
+            }
+        });
+    }
+
+    // the event policy for 'eventName', null if it has none
+    static EventPolicy eventPolicyFor(String eventName) {
+        Map<String, EventPolicy> policies = state.get().options.eventPolicies;
+        return (policies != null) ? policies.get(eventName) : null;
+    }
+
+    // name of the parameter that carries the sample rate of events sampled by 'policy', null if there is none
+    static String sampleRateKeyFor(EventPolicy policy) {
+        return (policy != null && policy.isSampled()) ? state.get().options.samplingRateParameter : null;
+    }
+
+    // send a call's result to the Java caller's 'listener', otherwise as a Lua event to 'callback' or the init listener
+    // 'data' (the error message) and 'requestId' are left out of the Lua event if they are null and 0
+    // 'callbackGeneration' is the runtime that created 'callback', 0 if there is none
+    private static void dispatchResult(String phase, boolean isError, String data, long requestId, int callback,
+                                       int callbackGeneration, AppsFlyerPlugin.RequestListener listener) {
+        if (listener == null) {
+            dispatchLuaEvent(LuaEvent.obtain(phase, isError, data, requestId, callback, callbackGeneration));
+            return;
+        }
+
+        try {
+            if (isError) {
+                listener.onError(requestId, (data != null) ? data : "");
+            } else {
+                listener.onSuccess(requestId);
+            }
+        } catch (RuntimeException ex) {
+            // a faulty listener must not break the SDK thread
+            Log.w(CORONA_TAG, WARNING_MSG + PLUGIN_NAME + ": request listener failed: " + ex);
+        }
+    }
+
+    // an SDK call queued by runInOrderWhenReady()
+    private interface OrderedCall {
+        // 'runtime' is the state of the runtime the call was queued for, it may have exited since
+        void run(PluginState runtime);
+    }
+
+    // same as runWhenReady(), but 'call' runs on the SDK thread after the events queued before it
+    // it is neither dropped by the queue limits nor sent out of order, 'onDropped' (may be null) is told if it
+    // is dropped before it is queued: by the pre-init buffer, or because the runtime has exited
+    private static void runInOrderWhenReady(final String name, final PreInitBuffer.DropListener onDropped, final OrderedCall call) {
+        runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                // the buffer runs calls once the SDK has started, so this is the state of the started runtime
+                final PluginState runtime = state.get();
+                if (runtime.batcher == null) {
+                    dropAfterExit(onDropped);
+                    return;
+                }
+                runtime.batcher.enqueueOrderedCall(name, new Runnable() {
+                    @Override
+                    public void run() {
+                        call.run(runtime);
+                    }
+                });
+            }
+        }, onDropped);
+    }
+
+    // dispatch a Lua event to its per-call callback, a reference which is deleted after the dispatch,
+    // or to the init listener if that is CoronaLua.REFNIL
+    // events are queued and delivered together by a single runtime task, which recycles them
+    private static void dispatchLuaEvent(LuaEvent event) {
+        // a per-call callback belongs to the Lua state of its runtime, once that has exited there is nobody to call,
+        // also when another runtime has been loaded since
+        if (event.listener != CoronaLua.REFNIL && event.generation != state.get().generation) {
+            stats.increment(PluginStats.DROPPED_LUA_CALLBACK_EXPIRED);
+            event.recycle();
+            return;
+        }
+
+        if (!pendingLuaEvents.offer(event)) {
+            // the events held longest are kept, the reference of a per-call callback is released on the Lua thread
+            stats.increment(PluginStats.DROPPED_LUA_EVENT_OVERFLOW);
+            if (event.listener != CoronaLua.REFNIL) {
+                orphanedCallbacks.offer(event);
+                scheduleLuaDispatch();
+                return;
+            }
+            event.recycle();
+            return;
+        }
+        stats.increment(PluginStats.LUA_EVENTS);
+        scheduleLuaDispatch();
+    }
+
+    // send the dispatch task if events are queued, there is a runtime to run it and a listener to receive them
+    // until then events are held, e.g. conversion data that arrives while the activity is being recreated
+    // orphaned callback references only need a runtime
+    private static void scheduleLuaDispatch() {
+        final PluginState current = state.get();
+        boolean deliverable = current.listener != CoronaLua.REFNIL && !pendingLuaEvents.isEmpty();
+        if (current.dispatcher == null || (!deliverable && orphanedCallbacks.isEmpty())) {
+            return;
+        }
+
+        if (luaDispatchScheduled.compareAndSet(false, true)) {
+            luaDispatchScheduledNanos = System.nanoTime();
+            current.dispatcher.send(luaDispatchTask);
+        }
+    }
+
+    // drop held events for per-call callbacks of a runtime that is exiting, their references die with it
+    // events for the init listener are kept, in order, and go to the listener of the next appsflyer.init()
+    // 'L' is the Lua state of runtime 'generation'
+    private static void releaseCallbackEvents(LuaState L, int generation) {
+        releaseOrphanedCallbacks(L, generation);
+
+        // the queue only hands out its head, so every held event is taken once and the kept ones queued again
+        for (int held = pendingLuaEvents.size(); held > 0; held--) {
+            LuaEvent event = pendingLuaEvents.poll();
+            if (event == null) {
+                break;
+            }
+            if (event.listener != CoronaLua.REFNIL) {
+                releaseCallback(L, generation, event);
+                stats.increment(PluginStats.DROPPED_LUA_CALLBACK_EXPIRED);
+            } else if (!pendingLuaEvents.offer(event)) {
+                stats.increment(PluginStats.DROPPED_LUA_EVENT_OVERFLOW);
+                event.recycle();
+            }
+        }
+    }
+
+    private static void releaseOrphanedCallbacks(LuaState L, int generation) {
+        LuaEvent event;
+        while ((event = orphanedCallbacks.poll()) != null) {
+            releaseCallback(L, generation, event);
+        }
+    }
+
+    // delete the per-call callback reference of 'event' if it belongs to 'L', the Lua state of runtime 'generation',
+    // the reference of an earlier runtime died with its Lua state, the same number may now be in use in 'L'
+    // the event is recycled
+    private static void releaseCallback(LuaState L, int generation, LuaEvent event) {
+        if (event.generation == generation) {
+            CoronaLua.deleteRef(L, event.listener);
+        }
+        event.recycle();
+    }
+
+    // delivers all queued Lua events in one runtime task
+    private static final CoronaRuntimeTask luaDispatchTask = new CoronaRuntimeTask() {
+        public void executeUsing(CoronaRuntime runtime) {
+            // clear the flag first, events queued from now on schedule a new task
+            stats.recordSince(PluginStats.LATENCY_LUA_DISPATCH, luaDispatchScheduledNanos);
+            stats.increment(PluginStats.LUA_DISPATCH_TASKS);
+            luaDispatchScheduled.set(false);
+
+            try {
+                // the task runs in the runtime of the current dispatcher, once that has exited there is nothing to do
+                PluginState current = state.get();
+                if (current.dispatcher == null) {
+                    return;
+                }
+                LuaState L = runtime.getLuaState();
+                releaseOrphanedCallbacks(L, current.generation);
+
+                // the task may have been sent for orphaned references only
+                int listener = current.listener;
+                if (listener == CoronaLua.REFNIL) {
+                    return;
+                }
+                LuaEvent event = pendingLuaEvents.poll();
+                if (event == null) {
+                    return;
+                }
+
+                if (current.options.groupLuaEvents && !pendingLuaEvents.isEmpty()) {
+                    // deliver one event with an 'events' array, events for per-call callbacks still go out one by one
+                    CoronaLua.newEvent(L, EVENT_NAME);
+                    L.newTable();
+                    int index = 0;
+                    do {
+                        if (event.listener != CoronaLua.REFNIL) {
+                            deliverLuaEvent(L, current.generation, event, listener);
+                            continue;
                         }
+                        pushEvent(L, event);
+                        event.recycle();
+                        L.rawSet(-2, ++index);
+                    } while ((event = pendingLuaEvents.poll()) != null);
+
+                    if (index == 0) {
+                        L.pop(2);
+                        return;
+                    }
+                    L.setField(-2, EVENT_EVENTS_KEY);
+
+                    L.pushString(PHASE_BATCH);
+                    L.setField(-2, EVENT_PHASE_KEY);
+                    L.pushBoolean(false);
+                    L.setField(-2, CoronaLuaEvent.ISERROR_KEY);
+                    L.pushString(PROVIDER_NAME);
+                    L.setField(-2, CoronaLuaEvent.PROVIDER_KEY);
+
+                    CoronaLua.dispatchEvent(L, listener, 0);
+                } else {
+                    // one dispatch per event
+                    do {
+                        deliverLuaEvent(L, current.generation, event, listener);
+                    } while ((event = pendingLuaEvents.poll()) != null);
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    };
+
+    // dispatch one event to its per-call callback, whose reference is released afterwards, or to 'listener'
+    // 'L' is the Lua state of runtime 'generation', a callback of another runtime is not called, the event is recycled
+    private static void deliverLuaEvent(LuaState L, int generation, LuaEvent event, int listener) {
+        int callback = event.listener;
+        if (callback != CoronaLua.REFNIL && event.generation != generation) {
+            stats.increment(PluginStats.DROPPED_LUA_CALLBACK_EXPIRED);
+            event.recycle();
+            return;
+        }
+        pushEvent(L, event);
+        event.recycle();
+        if (callback != CoronaLua.REFNIL) {
+            CoronaLua.dispatchEvent(L, callback, 0);
+            CoronaLua.deleteRef(L, callback);
+        } else {
+            CoronaLua.dispatchEvent(L, listener, 0);
+        }
+    }
 
-                        // add provider
-                        L.pushString(PROVIDER_NAME);
-                        L.setField(-2, CoronaLuaEvent.PROVIDER_KEY);
+    // push a new event table with the fields of 'event' onto the Lua stack
+    // typed fields are pushed directly, only 'data' and 'fields' go through pushLuaValue()
+    private static void pushEvent(LuaState L, LuaEvent event) {
+        CoronaLua.newEvent(L, EVENT_NAME);
+
+        boolean hasErrorKey = false;
+        if (event.fields != null) {
+            for (Map.Entry<String, Object> field : event.fields.entrySet()) {
+                pushLuaValue(L, field.getValue());
+                L.setField(-2, field.getKey());
+                hasErrorKey |= field.getKey().equals(CoronaLuaEvent.ISERROR_KEY);
+            }
+        }
+        if (event.phase != null) {
+            L.pushString(event.phase);
+            L.setField(-2, EVENT_PHASE_KEY);
+        }
+        if (event.type != null) {
+            L.pushString(event.type);
+            L.setField(-2, EVENT_TYPE_KEY);
+        }
+        if (event.requestId != 0) {
+            L.pushNumber(event.requestId);
+            L.setField(-2, EVENT_REQUEST_ID_KEY);
+        }
+        if (event.data != null) {
+            pushLuaValue(L, event.data);
+            L.setField(-2, EVENT_DATA_KEY);
+        }
+        if (!hasErrorKey) {
+            L.pushBoolean(event.isError);
+            L.setField(-2, CoronaLuaEvent.ISERROR_KEY);
+        }
+
+        // add provider
+        L.pushString(PROVIDER_NAME);
+        L.setField(-2, CoronaLuaEvent.PROVIDER_KEY);
+    }
+
+    // push a Java value onto the Lua stack, maps and lists become (nested) Lua tables
+    private static void pushLuaValue(LuaState L, Object value) {
+        if (value == null) {
+            L.pushNil();
+        } else if (value instanceof String) {
+            L.pushString((String) value);
+        } else if (value instanceof Boolean) {
+            L.pushBoolean((Boolean) value);
+        } else if (value instanceof Number) {
+            L.pushNumber(((Number) value).doubleValue());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            L.newTable(0, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (entry.getKey() != null) {
+                    pushLuaValue(L, entry.getValue());
+                    L.setField(-2, entry.getKey().toString());
+                }
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            L.newTable(list.size(), 0);
+            for (int i = 0; i < list.size(); i++) {
+                pushLuaValue(L, list.get(i));
+                L.rawSet(-2, i + 1);
+            }
+        } else {
+            CoronaLua.pushValue(L, value);
+        }
+    }
+
+    // send an event to AppsFlyer (called on the SDK thread by the event batcher), written ahead to 'journal' if not null
+    // the result goes to the Java caller's listener, to 'callback' (a Lua reference) or to the init listener
+    private static void sendEvent(CoronaActivity coronaActivity, final EventJournal journal, final EventBatcher.PendingEvent event) {
+        stats.recordSince(PluginStats.LATENCY_LUA_TO_SDK, event.enqueueNanos);
+        final long sdkCallNanos = System.nanoTime();
+        final long requestId = event.requestId;
+        final int callback = event.callback;
+        final AppsFlyerPlugin.RequestListener listener = event.listener;
+
+        // write ahead to the journal, if enabled
+        final EventJournal.Entry journalEntry = (journal != null) ? journal.record(event.eventName, event.params) : null;
+
+        sdk.logEvent(coronaActivity.getApplicationContext(), event.eventName, event.params, new AppsFlyerRequestListener() {
+            @Override
+            public void onSuccess() {
+                if (journalEntry != null) {
+                    journal.acknowledge(journalEntry);
+                }
+                // already reported as dropped if it came after the in-flight timeout
+                if (!event.completed()) {
+                    return;
+                }
+                stats.recordSince(PluginStats.LATENCY_SDK_CALLBACK, sdkCallNanos);
+                stats.increment(PluginStats.SDK_SUCCESS);
+
+                dispatchResult(PHASE_RECORDED, false, null, requestId, callback, event.callbackGeneration, listener);
+            }
+
+            @Override
+            public void onError(int i, String s) {
+                if (journalEntry != null) {
+                    journal.markFailed(journalEntry);
+                }
+                if (!event.completed()) {
+                    return;
+                }
+                stats.recordSince(PluginStats.LATENCY_SDK_CALLBACK, sdkCallNanos);
+                stats.increment(PluginStats.SDK_ERRORS);
+
+                dispatchResult(PHASE_FAILED, true, s, requestId, callback, event.callbackGeneration, listener);
+            }
+        });
+    }
+
+    // count an event dropped by the queue limits, a per-call callback or listener still gets a "failed" event
+    private static void dropEvent(EventBatcher.PendingEvent event, int reason) {
+        switch (reason) {
+            case EventBatcher.DROPPED_OLDEST:
+                stats.increment(PluginStats.DROPPED_OVERFLOW_OLDEST);
+                break;
+            case EventBatcher.DROPPED_NEWEST:
+                stats.increment(PluginStats.DROPPED_OVERFLOW_NEWEST);
+                break;
+            case EventBatcher.DROPPED_BLOCK_TIMEOUT:
+                stats.increment(PluginStats.DROPPED_BLOCK_TIMEOUT);
+                break;
+            case EventBatcher.DROPPED_EXIT_TIMEOUT:
+                stats.increment(PluginStats.DROPPED_EXIT_TIMEOUT);
+                break;
+            case EventBatcher.DROPPED_IN_FLIGHT_TIMEOUT:
+                stats.increment(PluginStats.DROPPED_IN_FLIGHT_TIMEOUT);
+                break;
+            default:
+                stats.increment(PluginStats.DROPPED_COALESCED);
+                break;
+        }
+
+        if (event.callback != CoronaLua.REFNIL || event.listener != null) {
+            dispatchResult(PHASE_FAILED, true, dropReason(reason), event.requestId, event.callback, event.callbackGeneration,
+                    event.listener);
+        }
+    }
+
+    private static String dropReason(int reason) {
+        switch (reason) {
+            case EventBatcher.DROPPED_COALESCED:
+                return "replaced by a newer event";
+            case EventBatcher.DROPPED_EXIT_TIMEOUT:
+                return "dropped, not sent before the runtime exited";
+            case EventBatcher.DROPPED_IN_FLIGHT_TIMEOUT:
+                return "no result from the SDK in time";
+            default:
+                return "dropped, event queue is full";
+        }
+    }
+
+    // sends the events of one runtime's batcher, with the journal of that runtime once its SDK has started
+    // it keeps that state after the runtime exits, so the exit drain still sends through it
+    private static class BatcherSink implements EventBatcher.Sink {
+        private final CoronaActivity coronaActivity;
+        private volatile PluginState runtime = PluginState.EMPTY;
+
+        BatcherSink(CoronaActivity coronaActivity) {
+            this.coronaActivity = coronaActivity;
+        }
+
+        void started(PluginState runtime) {
+            this.runtime = runtime;
+        }
+
+        @Override
+        public void deliver(EventBatcher.PendingEvent event) {
+            sendEvent(coronaActivity, runtime.journal, event);
+        }
+
+        @Override
+        public void dropped(EventBatcher.PendingEvent event, int reason) {
+            dropEvent(event, reason);
+        }
+    }
+
+    // re-sends journaled events on the SDK thread, no Lua events are dispatched for replays
+    private static class JournalReplayer implements EventJournal.Replayer {
+        @Override
+        public void replay(final EventJournal journal, final EventJournal.Entry entry, final String eventName,
+                           final Map<String, Object> params) {
+            // the runtime of the journal has exited, the journal retries the event later or in the next launch
+            PluginState current = state.get();
+            final SdkExecutor executor = current.executor;
+            if (executor == null || current.journal != journal) {
+                journal.markFailed(entry);
+                return;
+            }
 
-                        CoronaLua.dispatchEvent(L, coronaListener, 0);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+                    if (coronaActivity == null) {
+                        journal.markFailed(entry);
+                        return;
                     }
+
+                    sdk.logEvent(coronaActivity.getApplicationContext(), eventName, params, new AppsFlyerRequestListener() {
+                        @Override
+                        public void onSuccess() {
+                            journal.acknowledge(entry);
+                        }
+
+                        @Override
+                        public void onError(int i, String s) {
+                            journal.markFailed(entry);
+                        }
+                    });
                 }
             });
         }
@@ -306,13 +1170,38 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             String devKey = null;
             boolean localHasUserConsent = false;
             boolean debugMode = false;
+            long eventFlushInterval = EventBatcher.DEFAULT_FLUSH_INTERVAL_MS;
+            int eventBatchSize = EventBatcher.DEFAULT_MAX_BATCH_SIZE;
+            String executionMode = SdkExecutor.MODE_MAIN_THREAD;
+            String startMode = START_MODE_IMMEDIATE;
+            QueueLimits queueLimits = QueueLimits.DEFAULT;
+            boolean groupEvents = false;
+            String attributionFormat = ATTRIBUTION_FORMAT_STRING;
+            int preInitBufferSize = PreInitBuffer.DEFAULT_CAPACITY;
+            boolean journal = false;
+            long journalMaxBytes = EventJournal.DEFAULT_MAX_BYTES;
+            int purchaseDedupSize = PurchaseDedupCache.DEFAULT_CAPACITY;
+            int purchaseValidationConcurrency = PurchaseValidator.DEFAULT_MAX_IN_FLIGHT;
+            int purchaseValidationQueueSize = PurchaseValidator.DEFAULT_MAX_QUEUED;
+            long purchaseValidationTimeout = PurchaseValidator.DEFAULT_TIMEOUT_MS;
+            Map<String, EventPolicy> policies = null;
+            String samplingRateParam = null;
+            long statsInterval = 0;
+            long aggregateInterval = DEFAULT_AGGREGATE_INTERVAL_MS;
+            long exitDrainTimeout = FlushScheduler.DEFAULT_EXIT_DRAIN_TIMEOUT_MS;
+            String aggregateEvent = DEFAULT_AGGREGATE_EVENT_NAME;
 
             // prevent init from being called twice
-            if (appsflyerDelegate != null) {
+            if (state.get().isInitialized()) {
                 return 0;
             }
 
-            functionSignature = "appsflyer.init(listener, options)";
+            callSignature.set("appsflyer.init(listener, options)");
+            stats.increment(PluginStats.CALLS_INIT);
+            stats.mark(PluginStats.STARTUP_INIT);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                stats.mark(PluginStats.STARTUP_PROCESS, Process.getStartUptimeMillis());
+            }
 
             // check number of args
             int nargs = luaState.getTop();
@@ -323,7 +1212,10 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
 
             // Get the listener (required)
             if (CoronaLua.isListener(luaState, 1, PROVIDER_NAME)) {
-                coronaListener = CoronaLua.newRef(luaState, 1);
+                setListener(CoronaLua.newRef(luaState, 1));
+
+                // deliver events held while there was no listener
+                scheduleLuaDispatch();
             } else {
                 logMsg(ERROR_MSG, "Listener expected, got: " + luaState.typeName(1));
                 return 0;
@@ -368,12 +1260,182 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                                 return 0;
                             }
                             break;
-                        default:
-                            logMsg(ERROR_MSG, "Invalid option '" + key + "'");
-                            return 0;
-                    }
-                }
-            } else {
+                        case "eventFlushInterval":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                eventFlushInterval = (long) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.eventFlushInterval (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "eventBatchSize":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                eventBatchSize = (int) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.eventBatchSize (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "startMode":
+                            if (luaState.type(-1) == LuaType.STRING
+                                    && (START_MODE_IMMEDIATE.equals(luaState.toString(-1)) || START_MODE_AFTER_FIRST_FRAME.equals(luaState.toString(-1))
+                                    || START_MODE_MANUAL.equals(luaState.toString(-1)))) {
+                                startMode = luaState.toString(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.startMode ('" + START_MODE_IMMEDIATE + "', '" + START_MODE_AFTER_FIRST_FRAME + "' or '"
+                                        + START_MODE_MANUAL + "') expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "queueLimits":
+                            if (luaState.type(-1) == LuaType.TABLE) {
+                                queueLimits = getQueueLimits(luaState, luaState.getTop());
+                                if (queueLimits == null) {
+                                    return 0;
+                                }
+                            } else {
+                                logMsg(ERROR_MSG, "options.queueLimits (table) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "executionMode":
+                            if (luaState.type(-1) == LuaType.STRING && SdkExecutor.isValidMode(luaState.toString(-1))) {
+                                executionMode = luaState.toString(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.executionMode ('" + SdkExecutor.MODE_MAIN_THREAD + "' or '" + SdkExecutor.MODE_WORKER + "') expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "groupEvents":
+                            if (luaState.type(-1) == LuaType.BOOLEAN) {
+                                groupEvents = luaState.toBoolean(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.groupEvents (boolean) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "attributionFormat":
+                            if (luaState.type(-1) == LuaType.STRING
+                                    && (ATTRIBUTION_FORMAT_STRING.equals(luaState.toString(-1)) || ATTRIBUTION_FORMAT_TABLE.equals(luaState.toString(-1)))) {
+                                attributionFormat = luaState.toString(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.attributionFormat ('" + ATTRIBUTION_FORMAT_STRING + "' or '" + ATTRIBUTION_FORMAT_TABLE + "') expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "preInitBufferSize":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                preInitBufferSize = (int) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.preInitBufferSize (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "journal":
+                            if (luaState.type(-1) == LuaType.BOOLEAN) {
+                                journal = luaState.toBoolean(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.journal (boolean) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "journalMaxBytes":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                journalMaxBytes = (long) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.journalMaxBytes (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "purchaseDedupSize":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                purchaseDedupSize = (int) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.purchaseDedupSize (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "purchaseValidationConcurrency":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                purchaseValidationConcurrency = (int) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.purchaseValidationConcurrency (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "purchaseValidationQueueSize":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                purchaseValidationQueueSize = (int) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.purchaseValidationQueueSize (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "purchaseValidationTimeout":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                purchaseValidationTimeout = (long) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.purchaseValidationTimeout (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "eventPolicies":
+                            if (luaState.type(-1) == LuaType.TABLE) {
+                                policies = getEventPolicies(luaState, luaState.getTop());
+                                if (policies == null) {
+                                    return 0;
+                                }
+                            } else {
+                                logMsg(ERROR_MSG, "options.eventPolicies (table) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "samplingRateParameter":
+                            if (luaState.type(-1) == LuaType.STRING) {
+                                samplingRateParam = luaState.toString(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.samplingRateParameter (string) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "statsInterval":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                statsInterval = (long) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.statsInterval (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "aggregateInterval":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                aggregateInterval = (long) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.aggregateInterval (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "exitDrainTimeout":
+                            if (luaState.type(-1) == LuaType.NUMBER) {
+                                exitDrainTimeout = (long) luaState.toNumber(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.exitDrainTimeout (number) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        case "aggregateEventName":
+                            if (luaState.type(-1) == LuaType.STRING) {
+                                aggregateEvent = luaState.toString(-1);
+                            } else {
+                                logMsg(ERROR_MSG, "options.aggregateEventName (string) expected, got " + luaState.typeName(-1));
+                                return 0;
+                            }
+                            break;
+                        default:
+                            logMsg(ERROR_MSG, "Invalid option '" + key + "'");
+                            return 0;
+                    }
+                }
+            } else {
                 logMsg(ERROR_MSG, "options table expected, got " + luaState.typeName(2));
                 return 0;
             }
@@ -391,38 +1453,305 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             final String fDevKey = devKey;
             final boolean fLocalHasUserConsent = localHasUserConsent;
             final boolean fDebugMode = debugMode;
+            final boolean fJournal = journal;
+            final long fJournalMaxBytes = journalMaxBytes;
+            final int fPurchaseDedupSize = purchaseDedupSize;
+            final int fPurchaseValidationConcurrency = purchaseValidationConcurrency;
+            final int fPurchaseValidationQueueSize = purchaseValidationQueueSize;
+            final long fPurchaseValidationTimeout = purchaseValidationTimeout;
+            final long fStatsInterval = statsInterval;
+            final long fAggregateInterval = aggregateInterval;
+
+            preInitBuffer.setCapacity(preInitBufferSize);
+            final PluginState.Options options = new PluginState.Options(groupEvents,
+                    ATTRIBUTION_FORMAT_TABLE.equals(attributionFormat), policies, samplingRateParam, aggregateEvent);
 
             if (coronaActivity != null) {
-                coronaActivity.runOnUiThread(new Runnable() {
+                final SdkExecutor sdkExecutor = SdkExecutor.create(executionMode);
+                final BatcherSink sink = new BatcherSink(coronaActivity);
+                EventBatcher eventBatcher = new EventBatcher(sdkExecutor, sink, eventFlushInterval, eventBatchSize, queueLimits);
+                final FlushScheduler flushScheduler = new FlushScheduler(sdkExecutor, eventBatcher, exitDrainTimeout);
+                if (!setSdk(sdkExecutor, eventBatcher, flushScheduler, options)) {
+                    sdkExecutor.shutdown();
+                    logMsg(ERROR_MSG, "appsflyer.init() was called concurrently, this call is ignored");
+                    return 0;
+                }
+
+                // read the UID persisted by an earlier launch, so getAppsFlyerUID() does not wait for the SDK start
+                uidCache.load(coronaActivity.getApplicationContext());
+
+                // calls made until this has run are held by the pre-init buffer
+                pendingSdkStart.set(new Runnable() {
                     @Override
                     public void run() {
+                        traceBegin(TRACE_START);
+                        traceBegin(TRACE_SDK_INIT);
 
-                        appsflyerDelegate = new AppsflyerDelegate();
+                        AppsflyerDelegate appsflyerDelegate = new AppsflyerDelegate(options.attributionAsTable);
 
-                        AppsFlyerLib.getInstance().init(fDevKey, appsflyerDelegate, coronaActivity.getApplicationContext());
-                        AppsFlyerLib.getInstance().start(coronaActivity.getApplication());
+                        sdk.init(fDevKey, appsflyerDelegate, coronaActivity.getApplicationContext());
+                        sdk.start(coronaActivity.getApplication());
 
-                        AppsFlyerLib.getInstance().registerConversionListener(coronaActivity.getApplicationContext(), appsflyerDelegate);
-                        AppsFlyerLib.getInstance().setDebugLog(fDebugMode);
-                        AppsFlyerLib.getInstance().anonymizeUser(!fLocalHasUserConsent);
+                        sdk.registerConversionListener(coronaActivity.getApplicationContext(), appsflyerDelegate);
+                        sdk.setDebugLog(fDebugMode);
+                        sdk.anonymizeUser(!fLocalHasUserConsent);
+
+                        traceEnd();
+                        stats.mark(PluginStats.STARTUP_SDK_STARTED);
+
+                        // open the journal, this also schedules events a previous launch could not send
+                        EventJournal journal = null;
+                        if (fJournal) {
+                            File journalDirectory = new File(coronaActivity.getApplicationContext().getFilesDir(), JOURNAL_DIRECTORY);
+                            journal = new EventJournal(journalDirectory, fJournalMaxBytes, new JournalReplayer());
+                        }
+
+                        // load purchases validated by earlier launches
+                        PurchaseDedupCache dedupCache = null;
+                        if (fPurchaseDedupSize > 0) {
+                            File purchaseCacheFile = new File(coronaActivity.getApplicationContext().getFilesDir(), PURCHASE_CACHE_FILE);
+                            dedupCache = new PurchaseDedupCache(purchaseCacheFile, fPurchaseDedupSize);
+                        }
+
+                        // registers the one validator listener used for all purchases
+                        PurchaseValidator validator = new PurchaseValidator(sdkExecutor, sdk, coronaActivity.getApplicationContext(),
+                                fPurchaseValidationConcurrency, fPurchaseValidationQueueSize, fPurchaseValidationTimeout);
+
+                        // the runtime may have exited while the SDK was starting, its calls stay held for the next one
+                        PluginState started = setDelegate(sdkExecutor, appsflyerDelegate, journal, dedupCache, validator);
+                        if (started == null) {
+                            if (journal != null) {
+                                journal.close();
+                            }
+                            traceEnd();
+                            return;
+                        }
+                        sink.started(started);
 
                         // Log plugin version to device log
                         Log.i(CORONA_TAG, PLUGIN_NAME + ": " + PLUGIN_VERSION + " (SDK: " + PLUGIN_SDK_VERSION() + ")");
 
+                        // ask the SDK for the UID in the background if no earlier launch persisted it
+                        uidCache.resolve(sdk, coronaActivity.getApplicationContext());
+
+                        // replay calls made before init finished
+                        traceBegin(TRACE_REPLAY);
+                        PreInitBuffer.ReplayResult replay = preInitBuffer.replay();
+                        stats.add(PluginStats.DROPPED_PRE_INIT_OVERFLOW, replay.dropped);
+                        traceEnd();
+
                         // send Corona Lua event
-                        Map<String, Object> coronaEvent = new HashMap<>();
-                        coronaEvent.put(EVENT_PHASE_KEY, PHASE_INIT);
+                        LuaEvent coronaEvent = LuaEvent.obtain();
+                        coronaEvent.phase = PHASE_INIT;
+                        if (replay.replayed > 0 || replay.dropped > 0) {
+                            Map<String, Object> replayData = new HashMap<>();
+                            replayData.put("replayed", replay.replayed);
+                            replayData.put("dropped", replay.dropped);
+                            replayData.put("heldFor", replay.oldestCallTime > 0 ? System.currentTimeMillis() - replay.oldestCallTime : 0);
+                            coronaEvent.data = replayData;
+                        }
                         dispatchLuaEvent(coronaEvent);
+                        stats.mark(PluginStats.STARTUP_READY);
+
+                        // periodic stats events
+                        if (fStatsInterval > 0) {
+                            scheduleStatsEvents(flushScheduler, fStatsInterval);
+                        }
+
+                        // periodic summary events of aggregated metrics
+                        if (fAggregateInterval > 0) {
+                            scheduleAggregateFlushes(started, fAggregateInterval);
+                        }
 
+                        traceEnd();
 //						sendToBeacon(CoronaBeacon.IMPRESSION, null);
                     }
                 });
+
+                if (START_MODE_IMMEDIATE.equals(startMode)) {
+                    startSdk();
+                }
+                // the first frame is measured in every mode, for comparing startup times
+                afterFirstFrame(START_MODE_AFTER_FIRST_FRAME.equals(startMode));
             }
 
             return 0;
         }
     }
 
+    // read options.eventPolicies at 'index', returns null after logging an error if it is invalid
+    private Map<String, EventPolicy> getEventPolicies(LuaState luaState, int index) {
+        Map<String, EventPolicy> policies = new HashMap<>();
+
+        for (luaState.pushNil(); luaState.next(index); luaState.pop(1)) {
+            if (luaState.type(-2) != LuaType.STRING || luaState.type(-1) != LuaType.TABLE) {
+                logMsg(ERROR_MSG, "options.eventPolicies must map event names to tables");
+                return null;
+            }
+            String eventName = luaState.toString(-2);
+            int policyIndex = luaState.getTop();
+
+            int firstPerSession = EventPolicy.UNLIMITED;
+            double maxPerSecond = EventPolicy.UNLIMITED;
+            double burst = 0;
+            double sampleRate = 1;
+
+            for (luaState.pushNil(); luaState.next(policyIndex); luaState.pop(1)) {
+                String key = luaState.type(-2) == LuaType.STRING ? luaState.toString(-2) : "";
+                if (luaState.type(-1) != LuaType.NUMBER) {
+                    logMsg(ERROR_MSG, "options.eventPolicies." + eventName + "." + key + " (number) expected, got " + luaState.typeName(-1));
+                    return null;
+                }
+
+                switch (key) {
+                    case "firstPerSession":
+                        firstPerSession = (int) luaState.toNumber(-1);
+                        break;
+                    case "maxPerSecond":
+                        maxPerSecond = luaState.toNumber(-1);
+                        break;
+                    case "burst":
+                        burst = luaState.toNumber(-1);
+                        break;
+                    case "sampleRate":
+                        sampleRate = luaState.toNumber(-1);
+                        break;
+                    default:
+                        logMsg(ERROR_MSG, "Invalid option 'eventPolicies." + eventName + "." + key + "'");
+                        return null;
+                }
+            }
+
+            policies.put(eventName, new EventPolicy(firstPerSession, maxPerSecond, burst, sampleRate));
+        }
+
+        return policies;
+    }
+
+    // read options.queueLimits at 'index', returns null after logging an error if it is invalid
+    private QueueLimits getQueueLimits(LuaState luaState, int index) {
+        int maxQueued = QueueLimits.DEFAULT_MAX_QUEUED;
+        long maxQueuedBytes = QueueLimits.DEFAULT_MAX_QUEUED_BYTES;
+        int maxInFlight = QueueLimits.DEFAULT_MAX_IN_FLIGHT;
+        long maxInFlightBytes = QueueLimits.DEFAULT_MAX_IN_FLIGHT_BYTES;
+        String overflow = QueueLimits.OVERFLOW_DROP_OLDEST;
+        long blockTimeout = QueueLimits.DEFAULT_BLOCK_TIMEOUT_MS;
+        long inFlightTimeout = QueueLimits.DEFAULT_IN_FLIGHT_TIMEOUT_MS;
+
+        for (luaState.pushNil(); luaState.next(index); luaState.pop(1)) {
+            String key = luaState.type(-2) == LuaType.STRING ? luaState.toString(-2) : "";
+
+            if (key.equals("overflow")) {
+                if (luaState.type(-1) == LuaType.STRING && QueueLimits.isValidOverflow(luaState.toString(-1))) {
+                    overflow = luaState.toString(-1);
+                } else {
+                    logMsg(ERROR_MSG, "options.queueLimits.overflow ('" + QueueLimits.OVERFLOW_DROP_OLDEST + "', '" + QueueLimits.OVERFLOW_DROP_NEWEST
+                            + "', '" + QueueLimits.OVERFLOW_BLOCK + "' or '" + QueueLimits.OVERFLOW_COALESCE + "') expected, got " + luaState.typeName(-1));
+                    return null;
+                }
+                continue;
+            }
+            if (luaState.type(-1) != LuaType.NUMBER) {
+                logMsg(ERROR_MSG, "options.queueLimits." + key + " (number) expected, got " + luaState.typeName(-1));
+                return null;
+            }
+
+            switch (key) {
+                case "maxQueued":
+                    maxQueued = (int) luaState.toNumber(-1);
+                    break;
+                case "maxQueuedBytes":
+                    maxQueuedBytes = (long) luaState.toNumber(-1);
+                    break;
+                case "maxInFlight":
+                    maxInFlight = (int) luaState.toNumber(-1);
+                    break;
+                case "maxInFlightBytes":
+                    maxInFlightBytes = (long) luaState.toNumber(-1);
+                    break;
+                case "blockTimeout":
+                    blockTimeout = (long) luaState.toNumber(-1);
+                    break;
+                case "inFlightTimeout":
+                    inFlightTimeout = (long) luaState.toNumber(-1);
+                    break;
+                default:
+                    logMsg(ERROR_MSG, "Invalid option 'queueLimits." + key + "'");
+                    return null;
+            }
+        }
+
+        return new QueueLimits(maxQueued, maxQueuedBytes, maxInFlight, maxInFlightBytes, overflow, blockTimeout, inFlightTimeout);
+    }
+
+    // current queue depths, for stats snapshots
+    private static Map<String, Object> getQueueDepths() {
+        Map<String, Object> queues = new HashMap<>();
+        PluginState current = state.get();
+        EventBatcher batcher = current.batcher;
+        EventJournal journal = current.journal;
+        PurchaseValidator validator = current.validator;
+        queues.put("events", (double) (batcher != null ? batcher.size() : 0));
+        queues.put("eventsInFlight", (double) (batcher != null ? batcher.inFlight() : 0));
+        queues.put("purchases", (double) (validator != null ? validator.getQueued() : 0));
+        queues.put("purchasesInFlight", (double) (validator != null ? validator.getInFlight() : 0));
+        queues.put("luaEvents", (double) pendingLuaEvents.size());
+        queues.put("preInit", (double) preInitBuffer.size());
+        queues.put("journal", (double) (journal != null ? journal.getPendingEvents() : 0));
+        queues.put("journalDropped", (double) (journal != null ? journal.getDroppedEvents() : 0));
+        return queues;
+    }
+
+    // events dropped per event name by eventPolicies, for stats snapshots
+    private static Map<String, Object> getPolicyDrops() {
+        Map<String, Object> drops = new HashMap<>();
+        Map<String, EventPolicy> policies = state.get().options.eventPolicies;
+        if (policies != null) {
+            for (Map.Entry<String, EventPolicy> policy : policies.entrySet()) {
+                drops.put(policy.getKey(), (double) policy.getValue().getDropped());
+            }
+        }
+        return drops;
+    }
+
+    // queue the summary event of everything aggregated since the last flush with the batcher of 'runtime'
+    // 'sendNow' sends it without waiting for the event flush interval
+    private static void flushAggregates(PluginState runtime, boolean sendNow) {
+        EventBatcher batcher = runtime.batcher;
+        Map<String, Object> params = aggregator.flush();
+        if (params == null || batcher == null) {
+            return;
+        }
+
+        batcher.enqueue(runtime.options.aggregateEventName, params, nextRequestId(), CoronaLua.REFNIL, 0, AGGREGATE_LISTENER);
+        if (sendNow) {
+            batcher.flush();
+        }
+    }
+
+    // flush the aggregated metrics of 'runtime' about every 'intervalMs' milliseconds while the app runs
+    private static void scheduleAggregateFlushes(final PluginState runtime, long intervalMs) {
+        runtime.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushAggregates(runtime, false);
+            }
+        }, intervalMs);
+    }
+
+    // dispatch a "stats" event about every 'intervalMs' milliseconds while the app runs
+    private void scheduleStatsEvents(FlushScheduler scheduler, long intervalMs) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LuaEvent coronaEvent = LuaEvent.obtain();
+                coronaEvent.phase = PHASE_STATS;
+                coronaEvent.data = stats.snapshot(getQueueDepths(), getPolicyDrops());
+                dispatchLuaEvent(coronaEvent);
+            }
+        }, intervalMs);
+    }
+
     // [Lua] appsflyer.getVersion()
     private class GetVersion implements NamedJavaFunction {
         // Gets the name of the Lua function as it would appear in the Lua script
@@ -434,46 +1763,96 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         // This method is executed when the Lua function is called
         @Override
         public int invoke(LuaState luaState) {
-            functionSignature = "appsflyer.getVersion()";
-
-            if (!isSDKInitialized()) {
-                return 0;
+            callSignature.set("appsflyer.getVersion()");
+            stats.increment(PluginStats.CALLS_GET_VERSION);
+
+            // both versions are constant, so they are returned right away
+            HashMap<String, Object> versions = new HashMap<>();
+            versions.put("pluginVersion", PLUGIN_VERSION);
+            versions.put("sdkVersion", PLUGIN_SDK_VERSION());
+
+            // the listener still gets them as an event, as in earlier versions of the plugin
+            if (state.get().listener != CoronaLua.REFNIL) {
+                LuaEvent coronaEvent = LuaEvent.obtain();
+                coronaEvent.fields = new HashMap<>(versions);
+                dispatchLuaEvent(coronaEvent);
             }
 
-            // declare final vars for inner loop
-            final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+            pushLuaValue(luaState, versions);
+            return 1;
+        }
+    }
 
-            if (coronaActivity != null) {
-                coronaActivity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Log.i(CORONA_TAG, PLUGIN_NAME + ": " + PLUGIN_VERSION + " (SDK: " + PLUGIN_SDK_VERSION() + ")");
-                        // Dispatch the Lua event
-                        HashMap<String, Object> event = new HashMap<>();
-                        event.put("pluginVersion", PLUGIN_VERSION);
-                        event.put("sdkVersion", PLUGIN_SDK_VERSION());
-                        dispatchLuaEvent(event);
-                    }
-                });
+    // [Lua] appsflyer.getAppsFlyerUID()
+    private static class GetAppsFlyerUID implements NamedJavaFunction {
+        // Gets the name of the Lua function as it would appear in the Lua script
+        @Override
+        public String getName() {
+            return "getAppsFlyerUID";
+        }
+
+        // This method is executed when the Lua function is called
+        @Override
+        public int invoke(LuaState luaState) {
+            stats.increment(PluginStats.CALLS_GET_APPSFLYER_UID);
+
+            // resolved by init in the background, or by an earlier call
+            String uid = uidCache.get();
+            if (uid == null) {
+                // not known yet, ask the SDK as the plugin always did, the cache persists it in the background
+                final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+                if (coronaActivity != null) {
+                    uid = sdk.getAppsFlyerUID(coronaActivity.getApplicationContext());
+                    uidCache.remember(uid);
+                }
             }
 
-            return 0;
+            if (uid != null) {
+                luaState.pushString(uid);
+            } else {
+                luaState.pushNil();
+            }
+            return 1;
         }
     }
 
-    private static class GetAppsFlyerUID implements NamedJavaFunction {
+    // [Lua] appsflyer.getAttribution([key])
+    private static class GetAttribution implements NamedJavaFunction {
         // Gets the name of the Lua function as it would appear in the Lua script
         @Override
         public String getName() {
-            return "getAppsFlyerUID";
+            return "getAttribution";
         }
 
         // This method is executed when the Lua function is called
         @Override
         public int invoke(LuaState luaState) {
-            final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
-            String uid = AppsFlyerLib.getInstance().getAppsFlyerUID(coronaActivity.getApplicationContext());
-            luaState.pushString(uid);
+            callSignature.set("appsflyer.getAttribution([key])");
+            stats.increment(PluginStats.CALLS_GET_ATTRIBUTION);
+
+            // check number or args
+            int nargs = luaState.getTop();
+            if (nargs > 1) {
+                logMsg(ERROR_MSG, "Expected 0 or 1 argument, got " + nargs);
+                return 0;
+            }
+
+            // answered from memory, the file was read when the plugin was required
+            if (luaState.isNoneOrNil(1)) {
+                pushLuaValue(luaState, attributionCache.index());
+                return 1;
+            }
+
+            if (luaState.type(1) != LuaType.STRING) {
+                logMsg(ERROR_MSG, "key (string) expected, got " + luaState.typeName(1));
+                return 0;
+            }
+            Object value = attributionCache.get(luaState.toString(1));
+            if (value != null) {
+                pushLuaValue(luaState, value);
+            } else {
+                luaState.pushNil();
+            }
             return 1;
         }
     }
@@ -501,16 +1880,13 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
          */
         @Override
         public int invoke(LuaState luaState) {
-            functionSignature = "appsflyer.logEvent(eventName, options)";
-
-            if (!isSDKInitialized()) {
-                return 0;
-            }
+            callSignature.set("appsflyer.logEvent(eventName, options [, callback])");
+            stats.increment(PluginStats.CALLS_LOG_EVENT);
 
             // check number or args
             int nargs = luaState.getTop();
-            if ((nargs < 1) || (nargs > 2)) {
-                logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got " + nargs);
+            if ((nargs < 1) || (nargs > 3)) {
+                logMsg(ERROR_MSG, "Expected 1 to 3 arguments, got " + nargs);
                 return 0;
             }
 
@@ -548,46 +1924,334 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 }
             }
 
-            // declare final values for inner loop
-            final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
+            // get the optional callback, it receives the result instead of the init listener
+            boolean hasCallback = !luaState.isNoneOrNil(3);
+            if (hasCallback && !CoronaLua.isListener(luaState, 3, PROVIDER_NAME)) {
+                logMsg(ERROR_MSG, "callback (function) expected, got " + luaState.typeName(3));
+                return 0;
+            }
 
-            if (coronaActivity != null) {
-                coronaActivity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        // send parameters to AppsFlyer
-
-                        AppsFlyerLib.getInstance().logEvent(coronaActivity.getApplicationContext(), eventName, standardParams, new AppsFlyerRequestListener() {
-                            @Override
-                            public void onSuccess() {
-                                Map<String, Object> coronaEvent = new HashMap<>();
-                                coronaEvent.put(EVENT_PHASE_KEY, PHASE_RECORDED);
-                                coronaEvent.put(EVENT_IS_ERROR_KEY, false);
-                                dispatchLuaEvent(coronaEvent);
-                            }
+            // apply rate limits and sampling once the call is known to be valid, so a bad call uses up no quota
+            final EventPolicy policy = eventPolicyFor(eventName);
+            if (policy != null && !policy.allow()) {
+                stats.increment(PluginStats.DROPPED_BY_POLICY);
+                return 0;
+            }
+            final int callback = hasCallback ? CoronaLua.newRef(luaState, 3) : CoronaLua.REFNIL;
 
-                            @Override
-                            public void onError(int i, String s) {
-                                Map<String, Object> coronaEvent = new HashMap<>();
-                                coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
-                                coronaEvent.put(EVENT_IS_ERROR_KEY, true);
-                                coronaEvent.put(EVENT_DATA_KEY, s);
-                                dispatchLuaEvent(coronaEvent);
+            // let AppsFlyer know this event is sampled
+            final String sampleRateKey = sampleRateKeyFor(policy);
+            if (sampleRateKey != null) {
+                standardParams.put(sampleRateKey, policy.getSampleRate());
+            }
 
-                            }
-                        });
-                        // send Corona Lua event
-                        Map<String, Object> coronaEvent = new HashMap<>();
-                        coronaEvent.put(EVENT_PHASE_KEY, PHASE_RECORDED);
-                        dispatchLuaEvent(coronaEvent);
+            // queue the event, it is sent to AppsFlyer with the next batch
+            long requestId = queueEvent(eventName, standardParams, callback, null);
+
+            // return the request ID, the result event carries the same ID
+            luaState.pushNumber(requestId);
+            return 1;
+        }
+    }
+
+    // [Lua] appsflyer.defineEvent(eventName, fields)
+    private class DefineEvent implements NamedJavaFunction {
+        // Gets the name of the Lua function as it would appear in the Lua script
+        @Override
+        public String getName() {
+            return "defineEvent";
+        }
+
+        // This method is executed when the Lua function is called
+        @Override
+        public int invoke(LuaState luaState) {
+            callSignature.set("appsflyer.defineEvent(eventName, fields)");
+            stats.increment(PluginStats.CALLS_DEFINE_EVENT);
+
+            // check number or args
+            int nargs = luaState.getTop();
+            if (nargs != 2) {
+                logMsg(ERROR_MSG, "Expected 2 arguments, got " + nargs);
+                return 0;
+            }
+
+            final String eventName;
+            if (luaState.type(1) == LuaType.STRING) {
+                eventName = luaState.toString(1);
+            } else {
+                logMsg(ERROR_MSG, "eventName (string) expected, got " + luaState.typeName(1));
+                return 0;
+            }
+
+            if (luaState.type(2) != LuaType.TABLE) {
+                logMsg(ERROR_MSG, "fields (table) expected, got " + luaState.typeName(2));
+                return 0;
+            }
+
+            // fields are either a list of {fieldName = type} tables, which gives their order,
+            // or a single {fieldName = type, ...} table, whose fields are ordered by name
+            Map<String, String> fields = new TreeMap<>();
+            List<String> order = new ArrayList<>();
+            int fieldCount = luaState.length(2);
+            if (fieldCount > 0) {
+                for (int i = 1; i <= fieldCount; i++) {
+                    luaState.rawGet(2, i);
+                    if (luaState.type(-1) != LuaType.TABLE) {
+                        logMsg(ERROR_MSG, "fields[" + i + "] ({fieldName = type}) expected, got " + luaState.typeName(-1));
+                        luaState.pop(1);
+                        return 0;
                     }
-                });
+                    int entries = 0;
+                    for (luaState.pushNil(); luaState.next(-2); luaState.pop(1)) {
+                        if (luaState.type(-2) != LuaType.STRING || luaState.type(-1) != LuaType.STRING) {
+                            entries = -1;
+                            luaState.pop(2);
+                            break;
+                        }
+                        fields.put(luaState.toString(-2), luaState.toString(-1));
+                        order.add(luaState.toString(-2));
+                        entries++;
+                    }
+                    luaState.pop(1);
+                    if (entries != 1) {
+                        logMsg(ERROR_MSG, "fields[" + i + "] must hold exactly one fieldName = type pair");
+                        return 0;
+                    }
+                }
+            } else {
+                for (luaState.pushNil(); luaState.next(2); luaState.pop(1)) {
+                    if (luaState.type(-2) != LuaType.STRING || luaState.type(-1) != LuaType.STRING) {
+                        logMsg(ERROR_MSG, "fields." + luaState.toString(-2) + " (string) expected, got " + luaState.typeName(-1));
+                        luaState.pop(2);
+                        return 0;
+                    }
+                    fields.put(luaState.toString(-2), luaState.toString(-1));
+                }
+                order.addAll(fields.keySet());
+            }
+
+            if (order.size() != fields.size()) {
+                logMsg(ERROR_MSG, "fields must not repeat a field name");
+                return 0;
+            }
+            if (order.size() > EventSchema.MAX_FIELDS) {
+                logMsg(ERROR_MSG, "at most " + EventSchema.MAX_FIELDS + " fields expected, got " + order.size());
+                return 0;
+            }
+
+            // validate the types once, logEventFast() only compares them
+            String[] keys = new String[order.size()];
+            LuaType[] types = new LuaType[order.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = order.get(i);
+                types[i] = EventSchema.parseType(fields.get(keys[i]));
+                if (types[i] == null) {
+                    logMsg(ERROR_MSG, "fields." + keys[i] + " must be \"string\", \"number\" or \"boolean\", got \"" + fields.get(keys[i]) + "\"");
+                    return 0;
+                }
+            }
+
+            if (eventSchemas.size() >= MAX_EVENT_SCHEMAS) {
+                logMsg(ERROR_MSG, "at most " + MAX_EVENT_SCHEMAS + " events can be defined");
+                return 0;
+            }
+            eventSchemas.add(new EventSchema(eventName, keys, types));
+
+            // return the handle passed to logEventFast()
+            luaState.pushNumber(eventSchemas.size());
+            return 1;
+        }
+    }
+
+    // [Lua] appsflyer.logEventFast(handle, value1, value2, ... [, callback])
+    private class LogEventFast implements NamedJavaFunction {
+        // Gets the name of the Lua function as it would appear in the Lua script
+        @Override
+        public String getName() {
+            return "logEventFast";
+        }
+
+        // This method is executed when the Lua function is called
+        @Override
+        public int invoke(LuaState luaState) {
+            callSignature.set("appsflyer.logEventFast(handle, ...)");
+            stats.increment(PluginStats.CALLS_LOG_EVENT_FAST);
+
+            // get the schema
+            int nargs = luaState.getTop();
+            if (nargs < 1 || luaState.type(1) != LuaType.NUMBER) {
+                logMsg(ERROR_MSG, "handle (number) expected, got " + (nargs < 1 ? "no value" : luaState.typeName(1)));
+                return 0;
+            }
+            int handle = (int) luaState.toNumber(1);
+            if (handle < 1 || handle > eventSchemas.size()) {
+                logMsg(ERROR_MSG, "unknown handle " + luaState.toString(1) + ", use the value returned by appsflyer.defineEvent()");
+                return 0;
+            }
+            final EventSchema schema = eventSchemas.get(handle - 1);
+
+            // check number or args
+            int fieldCount = schema.fieldCount();
+            if (nargs > fieldCount + 2) {
+                logMsg(ERROR_MSG, "Expected at most " + (fieldCount + 2) + " arguments for " + schema.eventName + ", got " + nargs);
+                return 0;
+            }
+
+            // let AppsFlyer know this event is sampled
+            final EventPolicy policy = eventPolicyFor(schema.eventName);
+            final String sampleRateKey = sampleRateKeyFor(policy);
+
+            // read the values by position, nil leaves a field out
+            final EventSchema.Params params = schema.newParams(sampleRateKey);
+            for (int field = 0; field < fieldCount; field++) {
+                int index = field + 2;
+                if (index > nargs) {
+                    break;
+                }
+
+                LuaType type = luaState.type(index);
+                if (type == LuaType.NIL) {
+                    continue;
+                }
+                if (type != schema.type(field)) {
+                    logMsg(ERROR_MSG, schema.key(field) + " (" + schema.type(field).displayText() + ") expected, got " + luaState.typeName(index));
+                    return 0;
+                }
+
+                if (type == LuaType.STRING) {
+                    params.set(field, luaState.toString(index));
+                } else if (type == LuaType.NUMBER) {
+                    params.set(field, luaState.toNumber(index));
+                } else {
+                    params.set(field, luaState.toBoolean(index));
+                }
+            }
+            if (sampleRateKey != null) {
+                params.set(fieldCount, policy.getSampleRate());
             }
 
+            // get the optional callback after the values, it receives the result instead of the init listener
+            int callbackIndex = fieldCount + 2;
+            boolean hasCallback = nargs >= callbackIndex && !luaState.isNoneOrNil(callbackIndex);
+            if (hasCallback && !CoronaLua.isListener(luaState, callbackIndex, PROVIDER_NAME)) {
+                logMsg(ERROR_MSG, "callback (function) expected, got " + luaState.typeName(callbackIndex));
+                return 0;
+            }
+
+            // apply rate limits and sampling once the call is known to be valid, so a bad call uses up no quota
+            if (policy != null && !policy.allow()) {
+                stats.increment(PluginStats.DROPPED_BY_POLICY);
+                return 0;
+            }
+            final int callback = hasCallback ? CoronaLua.newRef(luaState, callbackIndex) : CoronaLua.REFNIL;
+
+            // queue the event like logEvent(), it is sent to AppsFlyer with the next batch
+            long requestId = queueEvent(schema.eventName, params, callback, null);
+
+            // return the request ID, the result event carries the same ID
+            luaState.pushNumber(requestId);
+            return 1;
+        }
+    }
+
+    // [Lua] appsflyer.increment(name [, delta])
+    private class Increment implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "increment";
+        }
+
+        @Override
+        public int invoke(LuaState luaState) {
+            callSignature.set("appsflyer.increment(name [, delta])");
+            stats.increment(PluginStats.CALLS_INCREMENT);
+
+            // check number or args
+            int nargs = luaState.getTop();
+            if ((nargs < 1) || (nargs > 2)) {
+                logMsg(ERROR_MSG, "Expected 1 or 2 arguments, got " + nargs);
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.STRING || luaState.toString(1).isEmpty()) {
+                logMsg(ERROR_MSG, "name (string) expected, got " + luaState.typeName(1));
+                return 0;
+            }
+            String name = luaState.toString(1);
+
+            // counters hold whole numbers
+            long delta = 1;
+            if (!luaState.isNoneOrNil(2)) {
+                if (luaState.type(2) != LuaType.NUMBER) {
+                    logMsg(ERROR_MSG, "delta (integer) expected, got " + luaState.typeName(2));
+                    return 0;
+                }
+                double value = luaState.toNumber(2);
+                if (value != Math.rint(value) || Double.isInfinite(value)) {
+                    logMsg(ERROR_MSG, "delta (integer) expected, got " + value);
+                    return 0;
+                }
+                delta = (long) value;
+            }
+
+            if (!aggregator.increment(name, delta)) {
+                logAggregateError(name, "observe()");
+            }
             return 0;
         }
     }
 
+    // [Lua] appsflyer.observe(name, value)
+    private class Observe implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "observe";
+        }
+
+        @Override
+        public int invoke(LuaState luaState) {
+            callSignature.set("appsflyer.observe(name, value)");
+            stats.increment(PluginStats.CALLS_OBSERVE);
+
+            // check number or args
+            int nargs = luaState.getTop();
+            if (nargs != 2) {
+                logMsg(ERROR_MSG, "Expected 2 arguments, got " + nargs);
+                return 0;
+            }
+
+            if (luaState.type(1) != LuaType.STRING || luaState.toString(1).isEmpty()) {
+                logMsg(ERROR_MSG, "name (string) expected, got " + luaState.typeName(1));
+                return 0;
+            }
+            String name = luaState.toString(1);
+
+            if (luaState.type(2) != LuaType.NUMBER) {
+                logMsg(ERROR_MSG, "value (number) expected, got " + luaState.typeName(2));
+                return 0;
+            }
+            double value = luaState.toNumber(2);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                logMsg(ERROR_MSG, "value (finite number) expected, got " + value);
+                return 0;
+            }
+
+            if (!aggregator.observe(name, value)) {
+                logAggregateError(name, "increment()");
+            }
+            return 0;
+        }
+    }
+
+    // explain why the aggregator refused 'name', 'otherFunction' is the one that created it
+    private static void logAggregateError(String name, String otherFunction) {
+        if (aggregator.isFull(name)) {
+            logMsg(ERROR_MSG, "at most " + Aggregator.MAX_METRICS + " names can be aggregated");
+        } else {
+            logMsg(ERROR_MSG, "'" + name + "' is already used with appsflyer." + otherFunction);
+        }
+    }
+
     private class LogPurchase implements NamedJavaFunction {
         /**
          * Gets the name of the Lua function as it would appear in the Lua script.
@@ -610,11 +2274,8 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
          */
         @Override
         public int invoke(LuaState luaState) {
-            functionSignature = "appsflyer.logPurchase()";
-
-            if (!isSDKInitialized()) {
-                return 0;
-            }
+            callSignature.set("appsflyer.logPurchase()");
+            stats.increment(PluginStats.CALLS_LOG_PURCHASE);
 
             // check number or args
             int nargs = luaState.getTop();
@@ -695,47 +2356,16 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 return 0;
             }
 
-            // declare final values for inner loop
-            final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
-            final String fPublicKey = publicKey;
-            final String fSignature = signature;
-            final String fPurchaseData = purchaseData;
-            final String fPrice = price;
-            final String fCurrency = currency;
-            final HashMap<String, String> fParams = getHashMapFromHashTable(params);
-
-            if (coronaActivity != null) {
-                coronaActivity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        AppsFlyerLib.getInstance().registerValidatorListener(coronaActivity.getApplicationContext(), new
-                                AppsFlyerInAppPurchaseValidatorListener() {
-                                    public void onValidateInApp() {
-                                        // send Corona Lua event
-                                        Map<String, Object> coronaEvent = new HashMap<>();
-                                        coronaEvent.put(EVENT_PHASE_KEY, PHASE_RECORDED);
-                                        dispatchLuaEvent(coronaEvent);
-                                    }
-
-                                    public void onValidateInAppFailure(String error) {
-                                        // send Corona Lua event
-                                        Map<String, Object> coronaEvent = new HashMap<>();
-                                        coronaEvent.put(EVENT_PHASE_KEY, PHASE_FAILED);
-                                        coronaEvent.put(EVENT_DATA_KEY, error);
-                                        coronaEvent.put(EVENT_IS_ERROR_KEY, true);
-                                        dispatchLuaEvent(coronaEvent);
-                                    }
-                                });
-                        // send parameters to AppsFlyer
-                        AppsFlyerLib.getInstance().validateAndLogInAppPurchase(coronaActivity.getApplicationContext(), fPublicKey, fSignature, fPurchaseData, fPrice, fCurrency, fParams);
-                    }
-                });
+            if (CoronaEnvironment.getCoronaActivity() != null) {
+                queuePurchase(publicKey, signature, purchaseData, price, currency, getStringMapFromHashtable(params), 0, null);
             }
 
             return 0;
         }
     }
 
+    // [Lua] appsflyer.logRevenueAds(revenueData)
+    // revenueData is either a table or the same table encoded as a JSON string
     private class LogRevenueAds implements NamedJavaFunction {
 
         @Override
@@ -745,11 +2375,8 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
 
         @Override
         public int invoke(LuaState luaState) {
-            functionSignature = "appsflyer.logRevenueAds()";
-
-            if (!isSDKInitialized()) {
-                return 0;
-            }
+            callSignature.set("appsflyer.logRevenueAds()");
+            stats.increment(PluginStats.CALLS_LOG_REVENUE_ADS);
 
             int nargs = luaState.getTop();
             if (nargs != 1) {
@@ -757,49 +2384,255 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
                 return 0;
             }
 
-            Gson gson = new Gson();
-            JsonObject revenueData = gson.fromJson(luaState.toString( -1), JsonObject.class);
+            AdRevenueData revenueData = new AdRevenueData();
+            String error = null;
+            if (luaState.type(1) == LuaType.TABLE) {
+                // read the fields straight off the Lua stack
+                for (luaState.pushNil(); luaState.next(1); luaState.pop(1)) {
+                    if (luaState.type(-2) != LuaType.STRING) {
+                        error = "revenueData keys (string) expected, got " + luaState.typeName(-2);
+                    } else {
+                        Object value = null;
+                        if (luaState.type(-1) == LuaType.STRING) {
+                            value = luaState.toString(-1);
+                        } else if (luaState.type(-1) == LuaType.NUMBER) {
+                            value = luaState.toNumber(-1);
+                        }
+                        error = revenueData.set(luaState.toString(-2), value, luaState.typeName(-1));
+                    }
 
-            String monetizationNetwork = revenueData.get("monetizationNetwork").getAsString();
-            String currencyIso4217Code = revenueData.get("currencyIso4217Code").getAsString();
-            double revenue = revenueData.get("value").getAsDouble(); //'value' is IronSource style name
-            String countryCode = revenueData.get("countryCode").getAsString();
-            String adUnitName = revenueData.get("adUnitName").getAsString();
-            String adType = revenueData.get("adFormat").getAsString(); //'adFormat' is IronSource style name
+                    if (error != null) {
+                        luaState.pop(2); // the key and value next() left on the stack
+                        break;
+                    }
+                }
+            } else if (luaState.type(1) == LuaType.STRING) {
+                JsonObject json;
+                try {
+                    json = GSON.fromJson(luaState.toString(1), JsonObject.class);
+                } catch (RuntimeException ex) {
+                    json = null;
+                }
 
-            String medNetwork = revenueData.get("adSource").getAsString().toUpperCase(); //'adSource' is IronSource style name
-            MediationNetwork mediationNetwork = MediationNetwork.CUSTOM_MEDIATION;
+                if (json == null) {
+                    error = "revenueData is not a JSON object";
+                } else {
+                    for (Map.Entry<String, JsonElement> field : json.entrySet()) {
+                        error = revenueData.set(field.getKey(), jsonValue(field.getValue()), jsonTypeName(field.getValue()));
+                        if (error != null) {
+                            break;
+                        }
+                    }
+                }
+            } else {
+                error = "revenueData (table or JSON string) expected, got " + luaState.typeName(1);
+            }
 
-// medNetwork must be one of: IRONSOURCE, APPLOVIN_MAX, GOOGLE_ADMOB, FYBER, APPODEAL, ADMOST, TOPON, TRADPLUS, YANDEX, CHARTBOOST, UNITY, TOPON_PTE,
-            for(MediationNetwork medNet : MediationNetwork.values()) {
-                if (medNet.toString().contains(medNetwork)) {
-                   mediationNetwork = medNet;
-               }
+            if (error == null) {
+                error = revenueData.checkRequired();
+            }
+            if (error != null) {
+                logMsg(ERROR_MSG, error);
+                return 0;
             }
 
-            AFAdRevenueData adRevenueData = new AFAdRevenueData(
-                    monetizationNetwork,
-                    mediationNetwork,
-                    currencyIso4217Code,
-                    revenue
-            );
+            if (CoronaEnvironment.getCoronaActivity() != null) {
+                queueAdRevenue(revenueData.monetizationNetwork, revenueData.adSource, revenueData.currencyIso4217Code,
+                        revenueData.value, revenueData.countryCode, revenueData.adUnitName, revenueData.adFormat, 0, null);
+            }
 
-            Map<String, Object> additionalParameters = new HashMap<>();
-            additionalParameters.put(AdRevenueScheme.COUNTRY, countryCode);
-            additionalParameters.put(AdRevenueScheme.AD_UNIT, adUnitName);
-            additionalParameters.put(AdRevenueScheme.AD_TYPE, adType);
+            return 0;
+        }
+    }
 
-            final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
-            if (coronaActivity != null) {
-                coronaActivity.runOnUiThread(() -> AppsFlyerLib.getInstance().logAdRevenue(adRevenueData, additionalParameters));
+    /**
+     * The fields of appsflyer.logRevenueAds(). Fields passed as a table and as a JSON string are checked the
+     * same way: every key must be a known field of the right type, and the required fields must be set.
+     */
+    private static final class AdRevenueData {
+        String monetizationNetwork = null;
+        String currencyIso4217Code = null;
+        double value = 0;
+        boolean hasValue = false;
+        String countryCode = null;
+        String adUnitName = null;
+        String adFormat = null;
+        String adSource = null;
+
+        /**
+         * Sets one field.
+         *
+         * @param value    A String, a Double, or null for a value of any other type.
+         * @param typeName Lua type name of the value, for the error message.
+         * @return Returns an error message, or null if the field was set.
+         */
+        String set(String key, Object value, String typeName) {
+            if ("value".equals(key)) { //'value' is IronSource style name
+                if (!(value instanceof Double)) {
+                    return "revenueData.value (number) expected, got " + typeName;
+                }
+                this.value = (Double) value;
+                hasValue = true;
+                return null;
             }
 
+            if (!(value instanceof String)) {
+                switch (key) {
+                    case "monetizationNetwork":
+                    case "currencyIso4217Code":
+                    case "countryCode":
+                    case "adUnitName":
+                    case "adFormat":
+                    case "adSource":
+                        return "revenueData." + key + " (string) expected, got " + typeName;
+                    default:
+                        return "Invalid option 'revenueData." + key + "'";
+                }
+            }
+
+            String string = (String) value;
+            switch (key) {
+                case "monetizationNetwork":
+                    monetizationNetwork = string;
+                    break;
+                case "currencyIso4217Code":
+                    currencyIso4217Code = string;
+                    break;
+                case "countryCode":
+                    countryCode = string;
+                    break;
+                case "adUnitName":
+                    adUnitName = string;
+                    break;
+                case "adFormat": //'adFormat' is IronSource style name
+                    adFormat = string;
+                    break;
+                case "adSource": //'adSource' is IronSource style name
+                    adSource = string;
+                    break;
+                default:
+                    return "Invalid option 'revenueData." + key + "'";
+            }
+            return null;
+        }
+
+        // an error message if a required field is missing, otherwise null
+        String checkRequired() {
+            if (monetizationNetwork == null || currencyIso4217Code == null || !hasValue || adSource == null) {
+                return "revenueData.monetizationNetwork, currencyIso4217Code, value and adSource are required";
+            }
+            return null;
+        }
+    }
+
+    // a JSON value as AdRevenueData.set() takes it
+    private static Object jsonValue(JsonElement element) {
+        if (element != null && element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isString()) {
+                return primitive.getAsString();
+            } else if (primitive.isNumber()) {
+                return primitive.getAsDouble();
+            }
+        }
+        return null;
+    }
+
+    // the Lua type name a JSON value decodes to
+    private static String jsonTypeName(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return "nil";
+        } else if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            return primitive.isBoolean() ? "boolean" : primitive.isNumber() ? "number" : "string";
+        }
+        return "table";
+    }
+
+    // resolve an 'adSource' name to a mediation network
+    // the first lookup of a name scans MediationNetwork.values(), later lookups hit the cache
+    private static MediationNetwork mediationNetworkFor(String adSource) {
+        String medNetwork = adSource.toUpperCase(Locale.US);
+        MediationNetwork mediationNetwork = mediationNetworks.get(medNetwork);
+        if (mediationNetwork != null) {
+            return mediationNetwork;
+        }
+
+        // medNetwork must be one of: IRONSOURCE, APPLOVIN_MAX, GOOGLE_ADMOB, FYBER, APPODEAL, ADMOST, TOPON, TRADPLUS, YANDEX, CHARTBOOST, UNITY, TOPON_PTE,
+        // the last network whose name contains medNetwork wins, otherwise it is a custom mediation
+        mediationNetwork = MediationNetwork.CUSTOM_MEDIATION;
+        for (MediationNetwork medNet : MediationNetwork.values()) {
+            if (medNet.toString().contains(medNetwork)) {
+                mediationNetwork = medNet;
+            }
+        }
+
+        // keep the cache bounded in case the app passes arbitrary names
+        if (mediationNetworks.size() < MAX_MEDIATION_NETWORK_CACHE_SIZE) {
+            mediationNetworks.put(medNetwork, mediationNetwork);
+        }
+        return mediationNetwork;
+    }
+
+    // the purchase token identifies a purchase, fall back to the whole purchase data if there is none
+    private static String purchaseTokenFrom(String purchaseData) {
+        try {
+            JsonObject purchase = GSON.fromJson(purchaseData, JsonObject.class);
+            if (purchase != null && purchase.has("purchaseToken")) {
+                return purchase.get("purchaseToken").getAsString();
+            }
+        } catch (RuntimeException ignored) {
+            // not JSON
+        }
+        return purchaseData;
+    }
+
+    // the SDK takes purchase parameters as strings, Lua numbers and booleans are passed as their string form
+    private HashMap<String, String> getStringMapFromHashtable(Hashtable<Object, Object> hashtable) {
+        HashMap<String, String> map = new HashMap<>();
+        for (Map.Entry<Object, Object> entry : hashtable.entrySet()) {
+            map.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+        return map;
+    }
+
+    // [Lua] appsflyer.start()
+    // starts the SDK when init was called with startMode "manual" or "afterFirstFrame", no-op once it has started
+    private class Start implements NamedJavaFunction {
+        @Override
+        public String getName() {
+            return "start";
+        }
+
+        @Override
+        public int invoke(LuaState luaState) {
+            callSignature.set("appsflyer.start()");
+            stats.increment(PluginStats.CALLS_START);
+
+            if (!state.get().isInitialized()) {
+                logMsg(ERROR_MSG, "appsflyer.init() must be called first");
+                return 0;
+            }
+
+            startSdk();
             return 0;
         }
     }
 
-    private HashMap getHashMapFromHashTable(Hashtable hashtable) {
-        return new HashMap(hashtable);
+    // [Lua] appsflyer.getStats()
+    private static class GetStats implements NamedJavaFunction {
+        // Gets the name of the Lua function as it would appear in the Lua script
+        @Override
+        public String getName() {
+            return "getStats";
+        }
+
+        // This method is executed when the Lua function is called
+        @Override
+        public int invoke(LuaState luaState) {
+            pushLuaValue(luaState, stats.snapshot(getQueueDepths(), getPolicyDrops()));
+            return 1;
+        }
     }
 
     // [Lua] setHasUserConsent(bool)
@@ -825,9 +2658,13 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
          */
         @Override
         public int invoke(LuaState luaState) {
-            functionSignature = "appsflyer.setHasUserConsent(boolean)";
+            callSignature.set("appsflyer.setHasUserConsent(boolean)");
+            stats.increment(PluginStats.CALLS_SET_HAS_USER_CONSENT);
 
-            if (!isSDKInitialized()) {
+            // the SDK itself may start later (startMode), the change is then held until it has started
+            if (!isPluginInitialized()) {
+                logMsg(ERROR_MSG, "appsflyer.init() must be called before calling other API functions");
+                stats.increment(PluginStats.DROPPED_NOT_INITIALIZED);
                 return 0;
             }
 
@@ -841,16 +2678,14 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
             // check for consent boolean (required)
             if (luaState.type(1) == LuaType.BOOLEAN) {
                 final Boolean fLocalHasUserConsent = luaState.toBoolean(-1);
-                final CoronaActivity coronaActivity = CoronaEnvironment.getCoronaActivity();
-                if (coronaActivity != null) {
-                    coronaActivity.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            // send consent to AppsFlyer
-                            AppsFlyerLib.getInstance().anonymizeUser(!fLocalHasUserConsent);
-                        }
-                    });
-                }
+                // events logged before the change are still sent with the consent they were logged under
+                runInOrderWhenReady("setHasUserConsent", null, new OrderedCall() {
+                    @Override
+                    public void run(PluginState runtime) {
+                        // send consent to AppsFlyer
+                        sdk.anonymizeUser(!fLocalHasUserConsent);
+                    }
+                });
             } else {
                 logMsg(ERROR_MSG, "Boolean expected, got " + luaState.typeName(1));
             }
@@ -863,21 +2698,31 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
     // -------------------------------------------------------
 
     private class AppsflyerDelegate implements AppsFlyerConversionListener {
+        private final boolean attributionAsTable;
+
+        AppsflyerDelegate(boolean attributionAsTable) {
+            this.attributionAsTable = attributionAsTable;
+        }
+
         @Override
         public void onAppOpenAttribution(Map<String, String> map) {
-            Map<String, Object> coronaEvent = new HashMap<>();
-            coronaEvent.put(EVENT_PHASE_KEY, PHASE_RECEIVED);
-            coronaEvent.put(EVENT_TYPE_KEY, TYPE_ATTRIBUTION);
-            coronaEvent.put(EVENT_DATA_KEY, map.toString());
+            rememberAttribution(AttributionCache.APP_OPEN, map);
+
+            LuaEvent coronaEvent = LuaEvent.obtain();
+            coronaEvent.phase = PHASE_RECEIVED;
+            coronaEvent.type = TYPE_ATTRIBUTION;
+            coronaEvent.data = attributionAsTable ? map : map.toString();
             dispatchLuaEvent(coronaEvent);
         }
 
         @Override
         public void onConversionDataSuccess(Map<String, Object> map) {
-            Map<String, Object> coronaEvent = new HashMap<>();
-            coronaEvent.put(EVENT_PHASE_KEY, PHASE_RECEIVED);
-            coronaEvent.put(EVENT_TYPE_KEY, TYPE_ATTRIBUTION);
-            coronaEvent.put(EVENT_DATA_KEY, map.toString());
+            rememberAttribution(AttributionCache.CONVERSION, map);
+
+            LuaEvent coronaEvent = LuaEvent.obtain();
+            coronaEvent.phase = PHASE_RECEIVED;
+            coronaEvent.type = TYPE_ATTRIBUTION;
+            coronaEvent.data = attributionAsTable ? map : map.toString();
             dispatchLuaEvent(coronaEvent);
         }
 
@@ -890,5 +2735,13 @@ public class LuaLoader implements JavaFunction, CoronaRuntimeListener {
         public void onAttributionFailure(String s) {
 
         }
+
+        // keep the attribution for appsflyer.getAttribution(), the file is only written when it changed
+        // the SDK reports the same conversion data on every launch
+        private void rememberAttribution(int kind, Map<String, ?> map) {
+            if (attributionCache.update(kind, map)) {
+                attributionCache.saveLater();
+            }
+        }
     }
 }
@@ -0,0 +1,119 @@
+//
+// PluginState.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import com.ansca.corona.CoronaLua;
+import com.ansca.corona.CoronaRuntimeTaskDispatcher;
+import com.appsflyer.AppsFlyerConversionListener;
+
+import java.util.Map;
+
+/**
+ * The state the plugin holds for the current Corona runtime: who receives Lua events, what sends SDK calls and
+ * the options passed to appsflyer.init().
+ * <p>
+ * Instances are immutable. LuaLoader publishes the current one through an AtomicReference, so a thread that
+ * reads it once sees a consistent set of values however other threads change it. Changes build a new instance
+ * with one of the with*() methods and publish it with compareAndSet(). Work that may outlive the runtime, like
+ * the drain when the runtime exits, keeps the instance it started with instead of reading the current one.
+ */
+final class PluginState {
+    /**
+     * Options of appsflyer.init() that are read after init has returned.
+     */
+    static final class Options {
+        static final Options NONE = new Options(false, false, null, null, null);
+
+        final boolean groupLuaEvents;
+        final boolean attributionAsTable;
+
+        // per event name logEvent policies (read-only) and the optional sample rate parameter name, may be null
+        final Map<String, EventPolicy> eventPolicies;
+        final String samplingRateParameter;
+
+        // name of the summary event of aggregated metrics
+        final String aggregateEventName;
+
+        Options(boolean groupLuaEvents, boolean attributionAsTable, Map<String, EventPolicy> eventPolicies,
+                String samplingRateParameter, String aggregateEventName) {
+            this.groupLuaEvents = groupLuaEvents;
+            this.attributionAsTable = attributionAsTable;
+            this.eventPolicies = eventPolicies;
+            this.samplingRateParameter = samplingRateParameter;
+            this.aggregateEventName = aggregateEventName;
+        }
+    }
+
+    static final PluginState EMPTY = new PluginState(0, CoronaLua.REFNIL, null, null, null, null, Options.NONE,
+            null, null, null, null);
+
+    // the runtime the dispatcher belongs to, a new number for every runtime and 0 while there is none
+    // Lua references are only valid in the runtime that created them
+    final int generation;
+
+    // reference to the listener passed to appsflyer.init(), CoronaLua.REFNIL before init
+    final int listener;
+
+    // sends tasks to the Lua thread, null until the plugin is loaded and after the runtime exited
+    final CoronaRuntimeTaskDispatcher dispatcher;
+
+    // set together by appsflyer.init()
+    final SdkExecutor executor;
+    final EventBatcher batcher;
+    final FlushScheduler scheduler;
+    final Options options;
+
+    // set together once the SDK has started, 'journal' and 'dedupCache' are null unless enabled in init
+    final AppsFlyerConversionListener delegate;
+    final EventJournal journal;
+    final PurchaseDedupCache dedupCache;
+    final PurchaseValidator validator;
+
+    private PluginState(int generation, int listener, CoronaRuntimeTaskDispatcher dispatcher, SdkExecutor executor, EventBatcher batcher,
+                        FlushScheduler scheduler, Options options, AppsFlyerConversionListener delegate,
+                        EventJournal journal, PurchaseDedupCache dedupCache, PurchaseValidator validator) {
+        this.generation = generation;
+        this.listener = listener;
+        this.dispatcher = dispatcher;
+        this.executor = executor;
+        this.batcher = batcher;
+        this.scheduler = scheduler;
+        this.options = options;
+        this.delegate = delegate;
+        this.journal = journal;
+        this.dedupCache = dedupCache;
+        this.validator = validator;
+    }
+
+    PluginState withListener(int listener) {
+        return new PluginState(generation, listener, dispatcher, executor, batcher, scheduler, options, delegate, journal, dedupCache, validator);
+    }
+
+    PluginState withDispatcher(CoronaRuntimeTaskDispatcher dispatcher, int generation) {
+        return new PluginState(generation, listener, dispatcher, executor, batcher, scheduler, options, delegate, journal, dedupCache, validator);
+    }
+
+    PluginState withSdk(SdkExecutor executor, EventBatcher batcher, FlushScheduler scheduler, Options options) {
+        return new PluginState(generation, listener, dispatcher, executor, batcher, scheduler, options, delegate, journal, dedupCache, validator);
+    }
+
+    PluginState withDelegate(AppsFlyerConversionListener delegate, EventJournal journal, PurchaseDedupCache dedupCache,
+                             PurchaseValidator validator) {
+        return new PluginState(generation, listener, dispatcher, executor, batcher, scheduler, options, delegate, journal, dedupCache, validator);
+    }
+
+    // appsflyer.init() has been called
+    boolean isInitialized() {
+        return executor != null;
+    }
+
+    // the SDK has started
+    boolean isStarted() {
+        return delegate != null;
+    }
+}
@@ -0,0 +1,207 @@
+//
+// PluginStats.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms describing what the plugin does at runtime.
+ * <p>
+ * Recording only touches preallocated atomic arrays, so it is safe from any thread and allocation free.
+ * Latencies go into log2 buckets of microseconds: bucket i holds values below 2^i microseconds.
+ * Startup marks hold the uptime of the first occurrence of each startup step.
+ * Only snapshot() allocates, to build the table returned to Lua.
+ */
+class PluginStats {
+    // counters
+    static final int CALLS_INIT = 0;
+    static final int CALLS_LOG_EVENT = 1;
+    static final int CALLS_LOG_PURCHASE = 2;
+    static final int CALLS_LOG_REVENUE_ADS = 3;
+    static final int CALLS_SET_HAS_USER_CONSENT = 4;
+    static final int CALLS_GET_VERSION = 5;
+    static final int CALLS_GET_APPSFLYER_UID = 6;
+    static final int CALLS_START = 7;
+    static final int CALLS_DEFINE_EVENT = 8;
+    static final int CALLS_LOG_EVENT_FAST = 9;
+    static final int CALLS_INCREMENT = 10;
+    static final int CALLS_OBSERVE = 11;
+    static final int CALLS_GET_ATTRIBUTION = 12;
+    static final int DROPPED_NOT_INITIALIZED = 13;
+    static final int DROPPED_PRE_INIT_OVERFLOW = 14;
+    static final int DROPPED_BY_POLICY = 15;
+    static final int DUPLICATE_PURCHASES = 16;
+    static final int VALIDATION_QUEUE_FULL = 17;
+    static final int DROPPED_OVERFLOW_OLDEST = 18;
+    static final int DROPPED_OVERFLOW_NEWEST = 19;
+    static final int DROPPED_BLOCK_TIMEOUT = 20;
+    static final int DROPPED_COALESCED = 21;
+    static final int DROPPED_LUA_EVENT_OVERFLOW = 22;
+    static final int DROPPED_LUA_CALLBACK_EXPIRED = 23;
+    static final int DROPPED_EXIT_TIMEOUT = 24;
+    static final int DROPPED_IN_FLIGHT_TIMEOUT = 25;
+    static final int VALIDATION_FAILURES = 26;
+    static final int VALIDATION_TIMEOUTS = 27;
+    static final int SDK_SUCCESS = 28;
+    static final int SDK_ERRORS = 29;
+    static final int LUA_EVENTS = 30;
+    static final int LUA_DISPATCH_TASKS = 31;
+    private static final int COUNTER_COUNT = 32;
+
+    private static final String[] COUNTER_NAMES = {
+            "init", "logEvent", "logPurchase", "logRevenueAds", "setHasUserConsent", "getVersion", "getAppsFlyerUID", "start",
+            "defineEvent", "logEventFast", "increment", "observe", "getAttribution",
+            "notInitialized", "preInitOverflow", "policy", "duplicatePurchases", "validationQueueFull",
+            "overflowOldest", "overflowNewest", "blockTimeout", "coalesced", "luaEventOverflow", "luaCallbackExpired", "exitTimeout",
+            "inFlightTimeout",
+            "validationFailures", "validationTimeouts", "success", "errors",
+            "events", "tasks"
+    };
+
+    // latency stages
+    static final int LATENCY_LUA_TO_SDK = 0;     // Lua call until the SDK call starts on the SDK thread
+    static final int LATENCY_SDK_CALLBACK = 1;   // SDK call until its success or error callback
+    static final int LATENCY_LUA_DISPATCH = 2;   // Lua event queued until the runtime task delivers it
+    private static final int LATENCY_COUNT = 3;
+
+    private static final String[] LATENCY_NAMES = {"luaToSdk", "sdkCallback", "luaDispatch"};
+
+    private static final int BUCKET_COUNT = 32;
+
+    // startup marks, SystemClock.uptimeMillis() at which each step first happened
+    static final int STARTUP_PROCESS = 0;         // process start (Android 7.0 and later)
+    static final int STARTUP_INIT = 1;            // appsflyer.init() called
+    static final int STARTUP_FIRST_FRAME = 2;     // first frame drawn after init
+    static final int STARTUP_START_REQUESTED = 3; // SDK start requested (at init, after the first frame, or by appsflyer.start())
+    static final int STARTUP_SDK_STARTED = 4;     // SDK init and start calls returned
+    static final int STARTUP_READY = 5;           // held calls replayed and the "init" event queued
+    private static final int STARTUP_COUNT = 6;
+
+    private static final String[] STARTUP_NAMES = {"processStart", "init", "firstFrame", "startRequested", "sdkStarted", "ready"};
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray startup = new AtomicLongArray(STARTUP_COUNT);
+
+    void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    // record the time elapsed since 'startNanos' (a System.nanoTime() value)
+    void recordSince(int stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    void record(int stage, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(stage * BUCKET_COUNT + bucket);
+    }
+
+    // remember when a startup step happened, only the first time
+    void mark(int step, long uptimeMillis) {
+        startup.compareAndSet(step, 0, uptimeMillis);
+    }
+
+    void mark(int step) {
+        mark(step, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Builds a snapshot of all counters and latency percentiles.
+     *
+     * @param queues   Current queue depths, added as is.
+     * @param policies Events dropped by each event name's policy, added as is.
+     */
+    Map<String, Object> snapshot(Map<String, Object> queues, Map<String, Object> policies) {
+        Map<String, Object> calls = new HashMap<>();
+        for (int i = CALLS_INIT; i <= CALLS_GET_ATTRIBUTION; i++) {
+            calls.put(COUNTER_NAMES[i], (double) counters.get(i));
+        }
+
+        Map<String, Object> dropped = new HashMap<>();
+        for (int i = DROPPED_NOT_INITIALIZED; i <= DROPPED_IN_FLIGHT_TIMEOUT; i++) {
+            dropped.put(COUNTER_NAMES[i], (double) counters.get(i));
+        }
+
+        Map<String, Object> sdk = new HashMap<>();
+        for (int i = VALIDATION_FAILURES; i <= SDK_ERRORS; i++) {
+            sdk.put(COUNTER_NAMES[i], (double) counters.get(i));
+        }
+
+        Map<String, Object> lua = new HashMap<>();
+        for (int i = LUA_EVENTS; i <= LUA_DISPATCH_TASKS; i++) {
+            lua.put(COUNTER_NAMES[i], (double) counters.get(i));
+        }
+
+        Map<String, Object> latency = new HashMap<>();
+        for (int stage = 0; stage < LATENCY_COUNT; stage++) {
+            latency.put(LATENCY_NAMES[stage], latencySnapshot(stage));
+        }
+
+        Map<String, Object> startupMarks = new HashMap<>();
+        for (int i = 0; i < STARTUP_COUNT; i++) {
+            long uptimeMillis = startup.get(i);
+            if (uptimeMillis != 0) {
+                startupMarks.put(STARTUP_NAMES[i], (double) uptimeMillis);
+            }
+        }
+
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("calls", calls);
+        snapshot.put("dropped", dropped);
+        snapshot.put("sdk", sdk);
+        snapshot.put("luaEvents", lua);
+        snapshot.put("queues", queues);
+        snapshot.put("policies", policies);
+        snapshot.put("latency", latency);
+        snapshot.put("startup", startupMarks);
+        return snapshot;
+    }
+
+    // count and percentiles (upper bucket bounds, in milliseconds) of one latency stage
+    private Map<String, Object> latencySnapshot(int stage) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(stage * BUCKET_COUNT + i);
+            total += counts[i];
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("count", (double) total);
+        result.put("p50", percentile(counts, total, 0.50));
+        result.put("p90", percentile(counts, total, 0.90));
+        result.put("p99", percentile(counts, total, 0.99));
+        return result;
+    }
+
+    private static double percentile(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (counts.length - 1)) / 1000.0;
+    }
+}
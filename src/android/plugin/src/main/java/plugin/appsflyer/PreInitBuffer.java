@@ -0,0 +1,163 @@
+//
+// PreInitBuffer.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds API calls made before appsflyer.init() has finished, so they can be replayed in order afterwards.
+ * <p>
+ * The buffer is bounded. Once it is full, newer calls are dropped and counted. After replay() the buffer
+ * is "open" and offer() refuses new calls, so callers run them directly instead. A call that is dropped,
+ * or still held when the runtime exits, is reported to its DropListener, if it has one.
+ * <p>
+ * Each entry remembers when the call was made, so the replay can report how long calls were held.
+ */
+class PreInitBuffer {
+    static final int DEFAULT_CAPACITY = 100;
+
+    static final String REASON_FULL = "dropped, pre-init buffer is full";
+    static final String REASON_RESET = "dropped, the runtime exited before init finished";
+
+    /**
+     * Told when a call is dropped instead of being run. Called without the buffer's lock held.
+     */
+    interface DropListener {
+        void dropped(String reason);
+    }
+
+    /**
+     * Result of a replay, used to report what happened to the buffered calls.
+     */
+    static final class ReplayResult {
+        final int replayed;
+        final int dropped;
+        final long oldestCallTime; // System.currentTimeMillis() of the first buffered call, 0 if none
+
+        ReplayResult(int replayed, int dropped, long oldestCallTime) {
+            this.replayed = replayed;
+            this.dropped = dropped;
+            this.oldestCallTime = oldestCallTime;
+        }
+    }
+
+    private static final class Entry {
+        final long callTime;
+        final Runnable call;
+        final DropListener onDropped;
+
+        Entry(long callTime, Runnable call, DropListener onDropped) {
+            this.callTime = callTime;
+            this.call = call;
+            this.onDropped = onDropped;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int capacity = DEFAULT_CAPACITY;
+    private int dropped = 0;
+    private boolean open = false;
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * Buffers a call if the SDK is not ready yet.
+     *
+     * @return Returns false if the buffer is open, in which case the caller must run the call itself.
+     */
+    boolean offer(Runnable call) {
+        return offer(call, null);
+    }
+
+    /**
+     * Same as offer(Runnable), 'onDropped' is told if the buffer is full or reset() forgets the call. May be null.
+     */
+    boolean offer(Runnable call, DropListener onDropped) {
+        synchronized (this) {
+            if (open) {
+                return false;
+            }
+
+            if (entries.size() < capacity) {
+                entries.addLast(new Entry(System.currentTimeMillis(), call, onDropped));
+                return true;
+            }
+            dropped++;
+        }
+
+        if (onDropped != null) {
+            onDropped.dropped(REASON_FULL);
+        }
+        return true;
+    }
+
+    /**
+     * Runs all buffered calls in the order they were made, then opens the buffer.
+     * Calls offered while the replay is running are still buffered and replayed, so ordering is preserved.
+     */
+    ReplayResult replay() {
+        int replayed = 0;
+        int droppedCount = 0;
+        long oldestCallTime = 0;
+
+        while (true) {
+            ArrayDeque<Entry> pending;
+            synchronized (this) {
+                droppedCount += dropped;
+                dropped = 0;
+                if (entries.isEmpty()) {
+                    open = true;
+                    break;
+                }
+                pending = new ArrayDeque<>(entries);
+                entries.clear();
+            }
+
+            if (oldestCallTime == 0) {
+                oldestCallTime = pending.peekFirst().callTime;
+            }
+            for (Entry entry : pending) {
+                entry.call.run();
+                replayed++;
+            }
+        }
+
+        return new ReplayResult(replayed, droppedCount, oldestCallTime);
+    }
+
+    // number of calls currently held
+    synchronized int size() {
+        return entries.size();
+    }
+
+    // close the buffer again and forget any buffered calls, returns how many there were
+    int reset() {
+        List<DropListener> forgotten = new ArrayList<>();
+        int count;
+        synchronized (this) {
+            count = entries.size();
+            for (Entry entry : entries) {
+                if (entry.onDropped != null) {
+                    forgotten.add(entry.onDropped);
+                }
+            }
+            entries.clear();
+            dropped = 0;
+            open = false;
+        }
+
+        for (DropListener onDropped : forgotten) {
+            onDropped.dropped(REASON_RESET);
+        }
+        return count;
+    }
+}
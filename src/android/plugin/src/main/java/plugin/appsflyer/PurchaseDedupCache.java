@@ -0,0 +1,193 @@
+//
+// PurchaseDedupCache.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers recently validated purchases so the same purchase is not validated and logged twice.
+ * <p>
+ * Purchases are identified by a 64-bit hash of their purchase token. The most recent hashes are kept in
+ * a bounded LRU and persisted to a small file, so duplicates are also caught across restarts.
+ * A purchase is "in flight" from begin() until its validation finishes, so concurrent duplicates
+ * are caught as well. Failed validations are forgotten, so the purchase can be retried.
+ * <p>
+ * The file is read and written on the DiskWriter thread. Saves are coalesced, so a burst of purchases
+ * writes the file once. Purchases checked before the file has been read are only compared with this launch.
+ */
+class PurchaseDedupCache {
+    static final int DEFAULT_CAPACITY = 500;
+
+    private static final String CORONA_TAG = "Corona";
+    private static final String WARNING_MSG = "WARNING: appsflyer purchase cache, ";
+    private static final int FILE_VERSION = 1;
+
+    private final File file;
+    private final LinkedHashMap<Long, Boolean> validated;
+    private final HashSet<Long> inFlight = new HashSet<>();
+    private final DiskWriter.Coalesced saveTask = new DiskWriter.Coalesced(new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    });
+
+    PurchaseDedupCache(File file, final int capacity) {
+        this.file = file;
+        this.validated = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+        DiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    // 64-bit FNV-1a hash of a purchase token
+    static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Marks a purchase as in flight.
+     *
+     * @return Returns false if the purchase was already validated or is being validated.
+     */
+    synchronized boolean begin(long key) {
+        if (validated.containsKey(key) || inFlight.contains(key)) {
+            return false;
+        }
+        inFlight.add(key);
+        return true;
+    }
+
+    // validation succeeded, remember the purchase for good
+    void succeeded(long key) {
+        synchronized (this) {
+            inFlight.remove(key);
+            validated.put(key, Boolean.TRUE);
+        }
+        saveTask.request();
+    }
+
+    // validation failed, allow the purchase to be retried
+    synchronized void failed(long key) {
+        inFlight.remove(key);
+    }
+
+    // read purchases validated by earlier launches, they count as older than the ones of this launch
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        List<Long> keys = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readLong());
+            }
+        } catch (EOFException ex) {
+            // truncated file, keep what we could read
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot read " + file + ": " + ex.getMessage());
+        } finally {
+            closeQuietly(in);
+        }
+
+        synchronized (this) {
+            List<Long> recent = new ArrayList<>(validated.keySet());
+            validated.clear();
+            for (Long key : keys) {
+                validated.put(key, Boolean.TRUE);
+            }
+            for (Long key : recent) {
+                validated.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    // write the LRU (oldest first) to a temporary file and move it into place
+    private void save() {
+        long[] keys;
+        synchronized (this) {
+            keys = new long[validated.size()];
+            int i = 0;
+            for (Long key : validated.keySet()) {
+                keys[i++] = key;
+            }
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot create " + parent);
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(keys.length);
+            for (long key : keys) {
+                out.writeLong(key);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                Log.w(CORONA_TAG, WARNING_MSG + "cannot replace " + file);
+            }
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot write " + file + ": " + ex.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
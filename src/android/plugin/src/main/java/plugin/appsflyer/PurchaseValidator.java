@@ -0,0 +1,230 @@
+//
+// PurchaseValidator.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.appsflyer.AppsFlyerInAppPurchaseValidatorListener;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Queues purchase validations and matches the SDK's results to them.
+ * <p>
+ * The SDK has a single validator listener, and its results do not say which purchase they belong to.
+ * One listener is registered when the validator is created, and results are matched to validations in the
+ * order the validations were started. At most maxInFlight validations run at once (1 by default, which keeps
+ * the matching exact), the rest wait in a bounded queue. A validation without a result after timeoutMs fails.
+ * <p>
+ * A timed out validation keeps its slot and its place in the start order for another timeoutMs, and no other
+ * validation starts meanwhile. Its late result is then matched to it, never to a newer validation. If no
+ * result arrives by then, the SDK is assumed to have lost the request and the slot is freed.
+ * <p>
+ * All methods, and the callbacks, run on the SDK thread.
+ */
+class PurchaseValidator {
+    // defaults used when appsflyer.init() does not override them
+    static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    static final int DEFAULT_MAX_QUEUED = 100;
+    static final long DEFAULT_TIMEOUT_MS = 30000;
+
+    static final String ERROR_QUEUE_FULL = "validation queue is full";
+    static final String ERROR_TIMEOUT = "validation timed out";
+
+    private static final String CORONA_TAG = "Corona";
+    private static final String WARNING_MSG = "WARNING: appsflyer purchase validation, ";
+
+    /**
+     * Receives the result of one validation, on the SDK thread.
+     */
+    interface Callback {
+        // 'sdkCallNanos' is the System.nanoTime() at which the SDK call was made, 0 if it was never made
+        void onValidated(long sdkCallNanos);
+
+        void onFailed(String error, boolean timedOut, long sdkCallNanos);
+    }
+
+    private final class Validation implements Runnable {
+        final String publicKey;
+        final String signature;
+        final String purchaseData;
+        final String price;
+        final String currency;
+        final Map<String, String> params;
+        final Callback callback;
+        long sdkCallNanos = 0;
+        boolean timedOut = false;
+
+        Validation(String publicKey, String signature, String purchaseData, String price, String currency,
+                   Map<String, String> params, Callback callback) {
+            this.publicKey = publicKey;
+            this.signature = signature;
+            this.purchaseData = purchaseData;
+            this.price = price;
+            this.currency = currency;
+            this.params = params;
+            this.callback = callback;
+        }
+
+        // timeout, and the end of the wait for a late result
+        @Override
+        public void run() {
+            if (!timedOut) {
+                timeout(this);
+            } else {
+                expire(this);
+            }
+        }
+    }
+
+    private final SdkExecutor executor;
+    private final SdkBackend sdk;
+    private final Context context;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long timeoutMs;
+
+    private final ArrayDeque<Validation> queued = new ArrayDeque<>();
+    // started validations in start order, including timed out ones whose late result may still arrive
+    private final ArrayDeque<Validation> started = new ArrayDeque<>();
+    private int running = 0;
+    private int awaitingLateResults = 0; // started validations that timed out and still wait for their result
+
+    // read by stats snapshots on other threads
+    private volatile int queuedCount = 0;
+    private volatile int runningCount = 0;
+
+    // results are posted, not run in place, because the SDK may report them from within the validation call
+    private final AppsFlyerInAppPurchaseValidatorListener listener = new AppsFlyerInAppPurchaseValidatorListener() {
+        @Override
+        public void onValidateInApp() {
+            executor.post(new Runnable() {
+                @Override
+                public void run() {
+                    complete(null);
+                }
+            });
+        }
+
+        @Override
+        public void onValidateInAppFailure(final String error) {
+            executor.post(new Runnable() {
+                @Override
+                public void run() {
+                    complete(error != null ? error : "");
+                }
+            });
+        }
+    };
+
+    PurchaseValidator(SdkExecutor executor, SdkBackend sdk, Context context, int maxInFlight, int maxQueued, long timeoutMs) {
+        this.executor = executor;
+        this.sdk = sdk;
+        this.context = context;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.timeoutMs = Math.max(1, timeoutMs);
+
+        sdk.registerValidatorListener(context, listener);
+    }
+
+    // validate and log a purchase once a slot is free, fails right away if the queue is full
+    void submit(String publicKey, String signature, String purchaseData, String price, String currency,
+                Map<String, String> params, Callback callback) {
+        if ((running >= maxInFlight || awaitingLateResults > 0) && queued.size() >= maxQueued) {
+            callback.onFailed(ERROR_QUEUE_FULL, false, 0);
+            return;
+        }
+
+        queued.add(new Validation(publicKey, signature, purchaseData, price, currency, params, callback));
+        startQueued();
+    }
+
+    // validations waiting for a slot
+    int getQueued() {
+        return queuedCount;
+    }
+
+    // validations waiting for their result
+    int getInFlight() {
+        return runningCount;
+    }
+
+    private void startQueued() {
+        // a new validation would get the late result of a timed out one
+        while (awaitingLateResults == 0 && running < maxInFlight && !queued.isEmpty()) {
+            Validation validation = queued.poll();
+            started.add(validation);
+            running++;
+            validation.sdkCallNanos = System.nanoTime();
+            executor.postDelayed(validation, timeoutMs);
+            sdk.validateAndLogInAppPurchase(context, validation.publicKey, validation.signature, validation.purchaseData,
+                    validation.price, validation.currency, validation.params);
+        }
+
+        updateCounts();
+    }
+
+    // a result from the SDK, 'error' is null on success
+    private void complete(String error) {
+        Validation validation = started.poll();
+        if (validation == null) {
+            Log.w(CORONA_TAG, WARNING_MSG + "result without a pending validation ignored");
+            return;
+        }
+
+        executor.removeCallbacks(validation);
+        running--;
+        if (validation.timedOut) {
+            // the late result of a validation that was already reported as failed
+            Log.w(CORONA_TAG, WARNING_MSG + "result arrived after the validation timed out");
+            awaitingLateResults--;
+            startQueued();
+            return;
+        }
+
+        if (error == null) {
+            validation.callback.onValidated(validation.sdkCallNanos);
+        } else {
+            validation.callback.onFailed(error, false, validation.sdkCallNanos);
+        }
+        startQueued();
+    }
+
+    private void timeout(Validation validation) {
+        if (validation.timedOut || !started.contains(validation)) {
+            return;
+        }
+
+        // the validation keeps its slot and its place in 'started' until its late result arrives or it expires
+        validation.timedOut = true;
+        awaitingLateResults++;
+        validation.callback.onFailed(ERROR_TIMEOUT, true, validation.sdkCallNanos);
+        executor.postDelayed(validation, timeoutMs);
+        updateCounts();
+    }
+
+    // stop waiting for the late result after another timeout period, the SDK may never send it
+    private void expire(Validation validation) {
+        if (!started.remove(validation)) {
+            return;
+        }
+
+        Log.w(CORONA_TAG, WARNING_MSG + "no result for a timed out validation, no longer waiting for it");
+        running--;
+        awaitingLateResults--;
+        startQueued();
+    }
+
+    private void updateCounts() {
+        queuedCount = queued.size();
+        runningCount = running;
+    }
+}
@@ -0,0 +1,96 @@
+//
+// QueueLimits.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import java.util.Map;
+
+/**
+ * Bounds the memory held by the event batcher: events waiting to be sent ("queued") and events sent to
+ * the SDK whose result has not arrived yet ("in flight"), each counted in events and in estimated bytes.
+ * <p>
+ * Events are only sent while the in-flight budget has room, the rest stay queued. An event whose result has
+ * not arrived after inFlightTimeoutMs is given up and reported as dropped, so a result the SDK never reports
+ * cannot hold its slot for good. When the queue is full
+ * the overflow policy decides what is dropped:
+ * <ul>
+ * <li>dropOldest: the oldest queued events, until the new one fits</li>
+ * <li>dropNewest: the new event</li>
+ * <li>block: the caller waits up to blockTimeoutMs for room, then the new event is dropped</li>
+ * <li>coalesce: the newest queued logEvent with the same name is replaced, otherwise the new event is dropped</li>
+ * </ul>
+ */
+class QueueLimits {
+    static final String OVERFLOW_DROP_OLDEST = "dropOldest";
+    static final String OVERFLOW_DROP_NEWEST = "dropNewest";
+    static final String OVERFLOW_BLOCK = "block";
+    static final String OVERFLOW_COALESCE = "coalesce";
+
+    // defaults used when appsflyer.init() does not override them
+    static final int DEFAULT_MAX_QUEUED = 1000;
+    static final long DEFAULT_MAX_QUEUED_BYTES = 512 * 1024;
+    static final int DEFAULT_MAX_IN_FLIGHT = 500;
+    static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256 * 1024;
+    static final long DEFAULT_BLOCK_TIMEOUT_MS = 50;
+    static final long DEFAULT_IN_FLIGHT_TIMEOUT_MS = 60000;
+
+    static final QueueLimits DEFAULT = new QueueLimits(DEFAULT_MAX_QUEUED, DEFAULT_MAX_QUEUED_BYTES,
+            DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT_BYTES, OVERFLOW_DROP_OLDEST, DEFAULT_BLOCK_TIMEOUT_MS,
+            DEFAULT_IN_FLIGHT_TIMEOUT_MS);
+
+    // rough per-object costs of a queued event, for the byte estimate
+    private static final int EVENT_OVERHEAD_BYTES = 96;
+    private static final int ENTRY_OVERHEAD_BYTES = 48;
+    private static final int BOXED_VALUE_BYTES = 16;
+
+    final int maxQueued;
+    final long maxQueuedBytes;
+    final int maxInFlight;
+    final long maxInFlightBytes;
+    final String overflow;
+    final long blockTimeoutMs;
+    final long inFlightTimeoutMs;
+
+    /**
+     * @param maxQueued        Events waiting to be sent.
+     * @param maxQueuedBytes   Estimated bytes of the events waiting to be sent.
+     * @param maxInFlight      Events sent to the SDK and waiting for their result.
+     * @param maxInFlightBytes Estimated bytes of the events waiting for their result.
+     * @param overflow         One of the OVERFLOW_* policies.
+     * @param blockTimeoutMs   Longest wait for room with OVERFLOW_BLOCK.
+     * @param inFlightTimeoutMs Longest wait for the result of an event sent to the SDK.
+     */
+    QueueLimits(int maxQueued, long maxQueuedBytes, int maxInFlight, long maxInFlightBytes, String overflow, long blockTimeoutMs,
+                long inFlightTimeoutMs) {
+        this.maxQueued = Math.max(1, maxQueued);
+        this.maxQueuedBytes = Math.max(1, maxQueuedBytes);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxInFlightBytes = Math.max(1, maxInFlightBytes);
+        this.overflow = overflow;
+        this.blockTimeoutMs = Math.max(0, blockTimeoutMs);
+        this.inFlightTimeoutMs = Math.max(1, inFlightTimeoutMs);
+    }
+
+    // returns true if 'overflow' is a supported overflow policy
+    static boolean isValidOverflow(String overflow) {
+        return OVERFLOW_DROP_OLDEST.equals(overflow) || OVERFLOW_DROP_NEWEST.equals(overflow)
+                || OVERFLOW_BLOCK.equals(overflow) || OVERFLOW_COALESCE.equals(overflow);
+    }
+
+    // estimated heap size of a logEvent call (UTF-16 strings, map entries, boxed values)
+    static int estimateBytes(String eventName, Map<String, Object> params) {
+        int bytes = EVENT_OVERHEAD_BYTES + 2 * eventName.length();
+        if (params != null) {
+            for (Map.Entry<String, Object> entry : params.entrySet()) {
+                Object value = entry.getValue();
+                bytes += ENTRY_OVERHEAD_BYTES + 2 * entry.getKey().length();
+                bytes += (value instanceof String) ? ENTRY_OVERHEAD_BYTES + 2 * ((String) value).length() : BOXED_VALUE_BYTES;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,48 @@
+//
+// SdkBackend.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+
+import com.appsflyer.AFAdRevenueData;
+import com.appsflyer.AppsFlyerConversionListener;
+import com.appsflyer.AppsFlyerInAppPurchaseValidatorListener;
+import com.appsflyer.attribution.AppsFlyerRequestListener;
+
+import java.util.Map;
+
+/**
+ * The AppsFlyer SDK calls made by the plugin.
+ * <p>
+ * LuaLoader only talks to AppsFlyer through this interface. The default implementation forwards to AppsFlyerLib,
+ * other implementations (e.g. a simulated backend for load tests) are installed with LuaLoader.setSdkBackend().
+ */
+interface SdkBackend {
+    void init(String devKey, AppsFlyerConversionListener conversionListener, Context context);
+
+    void start(Context context);
+
+    void registerConversionListener(Context context, AppsFlyerConversionListener conversionListener);
+
+    void setDebugLog(boolean enabled);
+
+    void anonymizeUser(boolean anonymize);
+
+    void logEvent(Context context, String eventName, Map<String, Object> eventValues, AppsFlyerRequestListener listener);
+
+    void registerValidatorListener(Context context, AppsFlyerInAppPurchaseValidatorListener listener);
+
+    void validateAndLogInAppPurchase(Context context, String publicKey, String signature, String purchaseData,
+                                     String price, String currency, Map<String, String> additionalParameters);
+
+    void logAdRevenue(AFAdRevenueData adRevenueData, Map<String, Object> additionalParameters);
+
+    String getSdkVersion();
+
+    String getAppsFlyerUID(Context context);
+}
@@ -0,0 +1,92 @@
+//
+// SdkExecutor.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Runs AppsFlyer SDK calls in order on a single thread.
+ * <p>
+ * In "mainThread" mode (the default) work runs on the main UI thread, as the plugin always did.
+ * In "worker" mode work runs on a dedicated background HandlerThread owned by the plugin.
+ */
+class SdkExecutor {
+    static final String MODE_MAIN_THREAD = "mainThread";
+    static final String MODE_WORKER = "worker";
+
+    private static final String WORKER_THREAD_NAME = "AppsFlyerPlugin";
+
+    private final HandlerThread workerThread;
+    private final Handler handler;
+
+    private SdkExecutor(HandlerThread workerThread, Looper looper) {
+        this.workerThread = workerThread;
+        this.handler = new Handler(looper);
+    }
+
+    // returns true if 'mode' is a supported execution mode
+    static boolean isValidMode(String mode) {
+        return MODE_MAIN_THREAD.equals(mode) || MODE_WORKER.equals(mode);
+    }
+
+    static SdkExecutor create(String mode) {
+        if (MODE_WORKER.equals(mode)) {
+            HandlerThread thread = new HandlerThread(WORKER_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            return new SdkExecutor(thread, thread.getLooper());
+        }
+
+        return new SdkExecutor(null, Looper.getMainLooper());
+    }
+
+    // true if work runs on the main UI thread ("mainThread" mode)
+    boolean isMainThread() {
+        return workerThread == null;
+    }
+
+    boolean isCurrentThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+
+    // run on the SDK thread, immediately if we are already on it
+    void execute(Runnable task) {
+        if (isCurrentThread()) {
+            task.run();
+        } else {
+            handler.post(task);
+        }
+    }
+
+    // always queue, even when called from the SDK thread
+    void post(Runnable task) {
+        handler.post(task);
+    }
+
+    void postDelayed(Runnable task, long delayMs) {
+        handler.postDelayed(task, delayMs);
+    }
+
+    void removeCallbacks(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    // stop the worker thread once queued work has run, no-op in main thread mode
+    void shutdown() {
+        if (workerThread != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                workerThread.quitSafely();
+            } else {
+                workerThread.quit();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+//
+// UidCache.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Keeps the AppsFlyer UID once it is known.
+ * <p>
+ * The UID does not change for an install, so it is resolved from the SDK once and persisted to a small file
+ * in the app's files directory. Later launches read the file instead of asking the SDK. The file is read and
+ * written, and the SDK asked, on the DiskWriter thread. get() only reads a volatile field, so the Lua thread
+ * never waits for any of it.
+ */
+class UidCache {
+    private static final String CORONA_TAG = "Corona";
+    private static final String WARNING_MSG = "WARNING: appsflyer UID cache, ";
+
+    private final String path;
+    private volatile String uid = null;
+
+    // disk thread only: the UID in the file, null if there is none yet
+    private String persisted = null;
+    private File file = null;
+
+    private final DiskWriter.Coalesced saveTask = new DiskWriter.Coalesced(new Runnable() {
+        @Override
+        public void run() {
+            String current = uid;
+            if (file != null && current != null && !current.equals(persisted)) {
+                write(file, current);
+                persisted = current;
+            }
+        }
+    });
+
+    // 'path' is relative to the app's files directory
+    UidCache(String path) {
+        this.path = path;
+    }
+
+    // the cached UID, null if it has not been resolved yet
+    String get() {
+        return uid;
+    }
+
+    // read the UID persisted by an earlier launch in the background
+    void load(final Context context) {
+        DiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadNow(context);
+            }
+        });
+    }
+
+    // in the background: the persisted UID, otherwise the SDK's, which is then persisted
+    void resolve(final SdkBackend sdk, final Context context) {
+        DiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadNow(context);
+                if (uid == null) {
+                    remember(sdk.getAppsFlyerUID(context));
+                }
+            }
+        });
+    }
+
+    // keep a UID the caller got from the SDK and persist it in the background, once a file is known
+    void remember(String sdkUid) {
+        if (sdkUid == null || sdkUid.isEmpty() || sdkUid.equals(uid)) {
+            return;
+        }
+        uid = sdkUid;
+        saveTask.request();
+    }
+
+    // disk thread only
+    private void loadNow(Context context) {
+        if (file != null) {
+            return;
+        }
+
+        file = new File(context.getFilesDir(), path);
+        persisted = read(file);
+        if (uid == null) {
+            uid = persisted;
+        } else {
+            // remembered before the file was known
+            saveTask.request();
+        }
+    }
+
+    private static String read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line = in.readLine();
+            return (line != null && !line.isEmpty()) ? line : null;
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot read " + file + ": " + ex.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // write to a temporary file and move it into place
+    private static void write(File file, String uid) {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot create " + parent);
+            return;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            out.write(uid);
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                Log.w(CORONA_TAG, WARNING_MSG + "cannot replace " + file);
+            }
+        } catch (IOException ex) {
+            Log.w(CORONA_TAG, WARNING_MSG + "cannot write " + file + ": " + ex.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
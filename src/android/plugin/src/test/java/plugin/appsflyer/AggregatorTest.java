@@ -0,0 +1,104 @@
+//
+// AggregatorTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counters and distributions are summarized into one set of parameters per flush, a name keeps the kind it
+ * was created with, and the number of metrics is bounded.
+ */
+public class AggregatorTest {
+    @Test
+    public void countersAddUpUntilTheFlush() {
+        Aggregator aggregator = new Aggregator();
+        assertTrue(aggregator.increment("coins", 5));
+        assertTrue(aggregator.increment("coins", -2));
+        assertTrue(aggregator.increment("gems", 1));
+
+        Map<String, Object> params = aggregator.flush();
+        assertEquals(2, params.size());
+        assertEquals(3.0, params.get("coins"));
+        assertEquals(1.0, params.get("gems"));
+
+        // counters start over and unchanged metrics are left out
+        assertNull(aggregator.flush());
+        aggregator.increment("gems", 4);
+        params = aggregator.flush();
+        assertEquals(1, params.size());
+        assertEquals(4.0, params.get("gems"));
+    }
+
+    @Test
+    public void distributionsReportCountSumRangeAndPercentiles() {
+        Aggregator aggregator = new Aggregator();
+        for (int value = 1; value <= 100; value++) {
+            assertTrue(aggregator.observe("frame_ms", value));
+        }
+
+        Map<String, Object> params = aggregator.flush();
+        assertEquals(7, params.size());
+        assertEquals(100.0, params.get("frame_ms_count"));
+        assertEquals(5050.0, params.get("frame_ms_sum"));
+        assertEquals(1.0, params.get("frame_ms_min"));
+        assertEquals(100.0, params.get("frame_ms_max"));
+        // percentiles are the upper bound of their histogram bucket, a quarter of a power of two wide
+        assertEquals(56.0, params.get("frame_ms_p50"));
+        assertEquals(96.0, params.get("frame_ms_p90"));
+        // kept within the observed range
+        assertEquals(100.0, params.get("frame_ms_p99"));
+    }
+
+    @Test
+    public void distributionStartsOverAfterTheFlush() {
+        Aggregator aggregator = new Aggregator();
+        aggregator.observe("load_ms", 1000);
+        aggregator.flush();
+
+        aggregator.observe("load_ms", 0.5);
+        Map<String, Object> params = aggregator.flush();
+        assertEquals(1.0, params.get("load_ms_count"));
+        assertEquals(0.5, params.get("load_ms_min"));
+        assertEquals(0.5, params.get("load_ms_max"));
+        assertEquals(0.5, params.get("load_ms_p99"));
+    }
+
+    @Test
+    public void nameKeepsItsKind() {
+        Aggregator aggregator = new Aggregator();
+        assertTrue(aggregator.increment("counter", 1));
+        assertTrue(aggregator.observe("distribution", 1));
+
+        assertFalse(aggregator.observe("counter", 1));
+        assertFalse(aggregator.increment("distribution", 1));
+    }
+
+    @Test
+    public void numberOfMetricsIsBounded() {
+        Aggregator aggregator = new Aggregator();
+        for (int i = 0; i < Aggregator.MAX_METRICS; i++) {
+            assertTrue(aggregator.increment("metric" + i, 1));
+        }
+
+        assertTrue(aggregator.isFull("another"));
+        assertFalse(aggregator.increment("another", 1));
+        assertFalse(aggregator.observe("another", 1));
+
+        // existing metrics are still recorded
+        assertFalse(aggregator.isFull("metric0"));
+        assertTrue(aggregator.increment("metric0", 1));
+        assertEquals(2.0, aggregator.flush().get("metric0"));
+    }
+}
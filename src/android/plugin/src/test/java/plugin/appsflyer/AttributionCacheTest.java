@@ -0,0 +1,120 @@
+//
+// AttributionCacheTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Attribution is looked up with conversion data over app-open attribution, stored with Lua's value types,
+ * and read back by the next launch once the disk thread has saved it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AttributionCacheTest {
+    private Context context;
+    private String path;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        path = "plugin.appsflyer/attribution-" + System.nanoTime() + ".bin";
+    }
+
+    @Test
+    public void conversionDataWinsOverAppOpenAttribution() {
+        AttributionCache cache = new AttributionCache(path);
+        cache.load(context);
+
+        assertTrue(cache.update(AttributionCache.APP_OPEN, map("media_source", "appOpen", "link", "https://example.com")));
+        assertTrue(cache.update(AttributionCache.CONVERSION, map("media_source", "organic", "af_status", "Organic")));
+
+        assertEquals("organic", cache.get("media_source"));
+        assertEquals("https://example.com", cache.get("link"));
+        assertEquals(3, cache.index().size());
+        assertNull(cache.get("campaign"));
+    }
+
+    @Test
+    public void unchangedDataIsNotAnUpdate() {
+        AttributionCache cache = new AttributionCache(path);
+        cache.load(context);
+
+        assertTrue(cache.update(AttributionCache.CONVERSION, map("is_first_launch", true, "retargeting", 1)));
+        // the SDK reports the same conversion data on every launch, numbers compare as Lua numbers
+        assertFalse(cache.update(AttributionCache.CONVERSION, map("is_first_launch", true, "retargeting", 1.0)));
+        assertTrue(cache.update(AttributionCache.CONVERSION, map("is_first_launch", false, "retargeting", 1)));
+    }
+
+    @Test
+    public void valuesAreKeptWithLuaTypes() {
+        AttributionCache cache = new AttributionCache(path);
+        cache.load(context);
+
+        cache.update(AttributionCache.CONVERSION, map("count", 3, "first", true, "other", new StringBuilder("text"), "none", null));
+
+        assertEquals(3.0, cache.get("count"));
+        assertEquals(Boolean.TRUE, cache.get("first"));
+        assertEquals("text", cache.get("other"));
+        assertFalse(cache.index().containsKey("none"));
+    }
+
+    @Test
+    public void savedAttributionIsLoadedByTheNextLaunch() throws Exception {
+        AttributionCache cache = new AttributionCache(path);
+        cache.load(context);
+        cache.update(AttributionCache.CONVERSION, map("media_source", "organic", "cost", 0.5, "first", true));
+        cache.update(AttributionCache.APP_OPEN, map("link", "https://example.com"));
+        cache.saveLater();
+        awaitDiskWriter();
+
+        AttributionCache restarted = new AttributionCache(path);
+        assertNull(restarted.get("media_source"));
+        restarted.load(context);
+
+        assertEquals("organic", restarted.get("media_source"));
+        assertEquals(0.5, restarted.get("cost"));
+        assertEquals(Boolean.TRUE, restarted.get("first"));
+        assertEquals("https://example.com", restarted.get("link"));
+        assertFalse(restarted.update(AttributionCache.APP_OPEN, map("link", "https://example.com")));
+    }
+
+    private static Map<String, Object> map(Object... keysAndValues) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    // wait until the disk thread has run everything posted so far
+    private static void awaitDiskWriter() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        DiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
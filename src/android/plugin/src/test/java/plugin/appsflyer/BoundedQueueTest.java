@@ -0,0 +1,130 @@
+//
+// BoundedQueueTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The queue is FIFO, refuses elements beyond its capacity (which need not be a power of two), keeps working
+ * as its positions wrap around the ring, and loses nothing with concurrent producers.
+ */
+public class BoundedQueueTest {
+    @Test
+    public void keepsOrderAndCapacity() {
+        BoundedQueue<Integer> queue = new BoundedQueue<>(3);
+        assertEquals(3, queue.capacity());
+        assertTrue(queue.isEmpty());
+
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertFalse(queue.offer(4));
+        assertEquals(3, queue.size());
+
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(5));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(5), queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void capacityIsAtLeastOne() {
+        BoundedQueue<String> queue = new BoundedQueue<>(0);
+        assertEquals(1, queue.capacity());
+        assertTrue(queue.offer("a"));
+        assertFalse(queue.offer("b"));
+    }
+
+    @Test
+    public void wrapsAroundTheRing() {
+        BoundedQueue<Integer> queue = new BoundedQueue<>(4);
+        assertTrue(queue.offer(-1));
+        for (int n = 0; n < 1000; n++) {
+            assertTrue(queue.offer(2 * n));
+            assertTrue(queue.offer(2 * n + 1));
+            assertEquals(Integer.valueOf(2 * n - 1), queue.poll());
+            assertEquals(Integer.valueOf(2 * n), queue.poll());
+        }
+        assertEquals(Integer.valueOf(1999), queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void concurrentProducersLoseNothing() throws Exception {
+        final int producers = 8;
+        final int elementsPerProducer = 20000;
+        final BoundedQueue<Integer> queue = new BoundedQueue<>(100);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger refused = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int n = 0; n < elementsPerProducer; n++) {
+                        if (!queue.offer(producer * elementsPerProducer + n)) {
+                            refused.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        // the single consumer checks that each producer's elements arrive in order and counts them
+        int[] lastSeen = new int[producers];
+        for (int i = 0; i < producers; i++) {
+            lastSeen[i] = -1;
+        }
+        int polled = 0;
+        start.countDown();
+        while (true) {
+            Integer element = queue.poll();
+            if (element == null) {
+                boolean done = true;
+                for (Thread thread : threads) {
+                    done &= !thread.isAlive();
+                }
+                if (done && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+
+            assertTrue(queue.size() <= queue.capacity());
+            int producer = element / elementsPerProducer;
+            int sequence = element % elementsPerProducer;
+            assertTrue("out of order for producer " + producer, sequence > lastSeen[producer]);
+            lastSeen[producer] = sequence;
+            polled++;
+        }
+
+        assertEquals(producers * elementsPerProducer, polled + refused.get());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,161 @@
+//
+// EventBatcherTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import com.ansca.corona.CoronaLua;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The queue limits must hold with concurrent producers, and an event whose result never arrives must not keep
+ * its in-flight slot.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EventBatcherTest {
+    private static final long IN_FLIGHT_TIMEOUT_MS = 100;
+
+    private SdkExecutor executor;
+    private RecordingSink sink;
+
+    @Before
+    public void setUp() {
+        executor = SdkExecutor.create(SdkExecutor.MODE_WORKER);
+        sink = new RecordingSink();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void unansweredEventReleasesItsSlot() throws Exception {
+        EventBatcher batcher = new EventBatcher(executor, sink, 0, 64, limits(10, 1, IN_FLIGHT_TIMEOUT_MS));
+        sink.expectDeliveries(2);
+        batcher.enqueue("first", null, 1, CoronaLua.REFNIL, 0, null);
+        batcher.enqueue("second", null, 2, CoronaLua.REFNIL, 0, null);
+
+        // the SDK never answers "first", "second" is sent once its deadline has passed
+        assertTrue(sink.awaitDeliveries(10 * IN_FLIGHT_TIMEOUT_MS));
+        assertEquals(Collections.singletonList("first:" + EventBatcher.DROPPED_IN_FLIGHT_TIMEOUT), sink.dropped);
+
+        // a result after the deadline is ignored and does not release the slot again
+        assertFalse(sink.delivered.get(0).completed());
+        assertEquals(1, batcher.inFlight());
+        assertTrue(sink.delivered.get(1).completed());
+        assertEquals(0, batcher.inFlight());
+    }
+
+    @Test
+    public void orderedCallIsNotHeldBackByTheInFlightBudget() throws Exception {
+        EventBatcher batcher = new EventBatcher(executor, sink, 0, 64, limits(10, 1, 60000));
+        sink.expectDeliveries(1);
+        batcher.enqueue("first", null, 1, CoronaLua.REFNIL, 0, null);
+        assertTrue(sink.awaitDeliveries(1000));
+
+        // "first" holds the only slot and never completes, the ordered call still runs
+        final CountDownLatch ran = new CountDownLatch(1);
+        batcher.enqueueOrderedCall("consent", new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals(1, batcher.inFlight());
+    }
+
+    @Test
+    public void concurrentProducersDoNotOverrunTheQueue() throws Exception {
+        final int maxQueued = 10;
+        final int producers = 8;
+        final int eventsPerProducer = 2000;
+
+        // one event in flight that never completes in time, so the queue fills up and stays full
+        final EventBatcher batcher = new EventBatcher(executor, sink, 0, 64, limits(maxQueued, 1, 60000));
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger maxSize = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int n = 0; n < eventsPerProducer; n++) {
+                        batcher.enqueue("event", null, n, CoronaLua.REFNIL, 0, null);
+                        int size = batcher.size();
+                        int seen;
+                        while (size > (seen = maxSize.get()) && !maxSize.compareAndSet(seen, size)) {
+                            // another producer saw a larger size
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("queue held " + maxSize.get() + " events", maxSize.get() <= maxQueued);
+        assertTrue(batcher.size() <= maxQueued);
+        assertEquals(producers * eventsPerProducer, sink.dropped.size() + sink.delivered.size() + batcher.size());
+    }
+
+    private static QueueLimits limits(int maxQueued, int maxInFlight, long inFlightTimeoutMs) {
+        return new QueueLimits(maxQueued, QueueLimits.DEFAULT_MAX_QUEUED_BYTES, maxInFlight, QueueLimits.DEFAULT_MAX_IN_FLIGHT_BYTES,
+                QueueLimits.OVERFLOW_DROP_NEWEST, QueueLimits.DEFAULT_BLOCK_TIMEOUT_MS, inFlightTimeoutMs);
+    }
+
+    // keeps delivered events without completing them, and dropped events as "name:reason"
+    private static final class RecordingSink implements EventBatcher.Sink {
+        final List<EventBatcher.PendingEvent> delivered = Collections.synchronizedList(new ArrayList<EventBatcher.PendingEvent>());
+        final List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+        private volatile CountDownLatch deliveries = new CountDownLatch(0);
+
+        void expectDeliveries(int count) {
+            deliveries = new CountDownLatch(count);
+        }
+
+        boolean awaitDeliveries(long timeoutMs) throws InterruptedException {
+            return deliveries.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void deliver(EventBatcher.PendingEvent event) {
+            delivered.add(event);
+            deliveries.countDown();
+        }
+
+        @Override
+        public void dropped(EventBatcher.PendingEvent event, int reason) {
+            dropped.add(event.eventName + ":" + reason);
+        }
+    }
+}
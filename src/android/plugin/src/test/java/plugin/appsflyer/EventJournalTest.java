@@ -0,0 +1,148 @@
+//
+// EventJournalTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Journaled events stay pending until acknowledged, events a previous process did not get acknowledged are
+ * replayed with their parameters, and a closed journal rejects new records.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EventJournalTest {
+    // the first retry runs after the journal's base retry delay of 5 seconds
+    private static final long REPLAY_TIMEOUT_MS = 15000;
+    private static final Map<String, Object> NO_PARAMS = Collections.emptyMap();
+
+    private File directory;
+    private final List<EventJournal> journals = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        for (EventJournal journal : journals) {
+            journal.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void acknowledgedEventIsNoLongerPending() throws Exception {
+        EventJournal journal = open(new RecordingReplayer(false));
+        EventJournal.Entry first = journal.record("first", NO_PARAMS);
+        EventJournal.Entry second = journal.record("second", NO_PARAMS);
+        awaitPending(journal, 2);
+
+        journal.acknowledge(first);
+        awaitPending(journal, 1);
+        journal.acknowledge(second);
+        awaitPending(journal, 0);
+    }
+
+    @Test
+    public void unacknowledgedEventIsReplayedAfterARestart() throws Exception {
+        EventJournal journal = new EventJournal(directory, EventJournal.DEFAULT_MAX_BYTES, new RecordingReplayer(false));
+        Map<String, Object> params = new HashMap<>();
+        params.put("af_revenue", 1.5);
+        params.put("af_currency", "USD");
+        params.put("af_first", true);
+        EventJournal.Entry acknowledged = journal.record("acknowledged", NO_PARAMS);
+        awaitPending(journal, 1);
+        journal.acknowledge(acknowledged);
+        awaitPending(journal, 0);
+        journal.record("purchase", params);
+        awaitPending(journal, 1);
+        journal.close();
+
+        RecordingReplayer replayer = new RecordingReplayer(true);
+        EventJournal restarted = open(replayer);
+        assertTrue(replayer.replayed.await(REPLAY_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(Collections.singletonList("purchase"), replayer.eventNames);
+        assertEquals(params, replayer.params.get(0));
+        awaitPending(restarted, 0);
+    }
+
+    @Test
+    public void closedJournalRejectsRecords() throws Exception {
+        EventJournal journal = new EventJournal(directory, EventJournal.DEFAULT_MAX_BYTES, new RecordingReplayer(false));
+        assertNotNull(journal.record("before", NO_PARAMS));
+        journal.close();
+
+        assertNull(journal.record("after", NO_PARAMS));
+        assertEquals(1, journal.getDroppedEvents());
+    }
+
+    private EventJournal open(EventJournal.Replayer replayer) {
+        EventJournal journal = new EventJournal(directory, EventJournal.DEFAULT_MAX_BYTES, replayer);
+        journals.add(journal);
+        return journal;
+    }
+
+    // the pending count is updated on the journal thread
+    private static void awaitPending(EventJournal journal, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (journal.getPendingEvents() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, journal.getPendingEvents());
+    }
+
+    // keeps replayed events, and acknowledges them if 'acknowledge' is set
+    private static final class RecordingReplayer implements EventJournal.Replayer {
+        final List<String> eventNames = Collections.synchronizedList(new ArrayList<String>());
+        final List<Map<String, Object>> params = Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+        final CountDownLatch replayed = new CountDownLatch(1);
+        private final boolean acknowledge;
+
+        RecordingReplayer(boolean acknowledge) {
+            this.acknowledge = acknowledge;
+        }
+
+        @Override
+        public void replay(EventJournal journal, EventJournal.Entry entry, String eventName, Map<String, Object> params) {
+            eventNames.add(eventName);
+            this.params.add(params);
+            if (acknowledge) {
+                journal.acknowledge(entry);
+            } else {
+                journal.markFailed(entry);
+            }
+            replayed.countDown();
+        }
+    }
+}
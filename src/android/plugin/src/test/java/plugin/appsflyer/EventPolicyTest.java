@@ -0,0 +1,90 @@
+//
+// EventPolicyTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Each rule of a policy drops and counts the events it does not pass, and only events that pass every rule
+ * use up a session slot or a rate limit token.
+ */
+public class EventPolicyTest {
+    private static final int UNLIMITED = EventPolicy.UNLIMITED;
+
+    @Test
+    public void firstPerSessionPassesTheFirstEvents() {
+        EventPolicy policy = new EventPolicy(3, UNLIMITED, 0, 1);
+
+        assertEquals(3, countAllowed(policy, 10));
+        assertEquals(7, policy.getDropped());
+    }
+
+    @Test
+    public void sampledOutEventsDoNotUseSessionSlots() {
+        EventPolicy policy = new EventPolicy(2, UNLIMITED, 0, 0.5);
+
+        // every second event is sampled, the two session slots go to events 2 and 4
+        assertFalse(policy.allow());
+        assertTrue(policy.allow());
+        assertFalse(policy.allow());
+        assertTrue(policy.allow());
+        assertEquals(0, countAllowed(policy, 10));
+        assertEquals(12, policy.getDropped());
+    }
+
+    @Test
+    public void rateLimitPassesABurst() {
+        // one event per hour, so the bucket does not refill during the test
+        EventPolicy policy = new EventPolicy(UNLIMITED, 1.0 / 3600, 5, 1);
+
+        assertEquals(5, countAllowed(policy, 20));
+        assertEquals(15, policy.getDropped());
+    }
+
+    @Test
+    public void sampledOutEventsDoNotUseRateLimitTokens() {
+        EventPolicy policy = new EventPolicy(UNLIMITED, 1.0 / 3600, 2, 0.25);
+
+        // every fourth event is sampled, the two tokens go to events 4 and 8
+        assertEquals(2, countAllowed(policy, 8));
+        assertEquals(0, countAllowed(policy, 8));
+    }
+
+    @Test
+    public void sampleRateIsSpreadEvenly() {
+        EventPolicy policy = new EventPolicy(UNLIMITED, UNLIMITED, 0, 0.1);
+
+        assertTrue(policy.isSampled());
+        assertEquals(10, countAllowed(policy, 100));
+        assertEquals(1, countAllowed(policy, 10));
+        assertEquals(99, policy.getDropped());
+    }
+
+    @Test
+    public void unlimitedPolicyPassesEverything() {
+        EventPolicy policy = new EventPolicy(UNLIMITED, UNLIMITED, 0, 1);
+
+        assertFalse(policy.isSampled());
+        assertEquals(1000, countAllowed(policy, 1000));
+        assertEquals(0, policy.getDropped());
+    }
+
+    private static int countAllowed(EventPolicy policy, int events) {
+        int allowed = 0;
+        for (int i = 0; i < events; i++) {
+            if (policy.allow()) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+}
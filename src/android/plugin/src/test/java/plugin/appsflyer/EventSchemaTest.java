@@ -0,0 +1,106 @@
+//
+// EventSchemaTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import com.naef.jnlua.LuaType;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A schema keeps its fields in order with their types, and the Params of one call behave as a map of the
+ * fields that were set, sharing the schema's keys.
+ */
+public class EventSchemaTest {
+    // "level" is a new string, the schema's key must still be the interned one
+    private final EventSchema schema = new EventSchema("level_complete",
+            new String[] {new String("level"), "score", "won"},
+            new LuaType[] {LuaType.NUMBER, LuaType.NUMBER, LuaType.BOOLEAN});
+
+    @Test
+    public void parsesFieldTypes() {
+        assertEquals(LuaType.STRING, EventSchema.parseType("string"));
+        assertEquals(LuaType.NUMBER, EventSchema.parseType("number"));
+        assertEquals(LuaType.BOOLEAN, EventSchema.parseType("boolean"));
+        assertNull(EventSchema.parseType("table"));
+        assertNull(EventSchema.parseType(null));
+    }
+
+    @Test
+    public void keepsFieldsInOrderWithInternedKeys() {
+        assertEquals("level_complete", schema.eventName);
+        assertEquals(3, schema.fieldCount());
+        assertSame("level", schema.key(0));
+        assertSame("score", schema.key(1));
+        assertEquals(LuaType.BOOLEAN, schema.type(2));
+    }
+
+    @Test
+    public void paramsHoldOnlyTheFieldsThatWereSet() {
+        EventSchema.Params params = schema.newParams(null);
+        params.set(0, 3.0);
+        params.set(2, true);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("level", 3.0);
+        expected.put("won", true);
+        assertEquals(expected, params);
+        assertEquals(2, params.size());
+        assertFalse(params.containsKey("score"));
+        assertNull(params.get("score"));
+
+        Iterator<Map.Entry<String, Object>> entries = params.entrySet().iterator();
+        assertEquals("level", entries.next().getKey());
+        assertEquals("won", entries.next().getKey());
+        assertFalse(entries.hasNext());
+        try {
+            entries.next();
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException expectedException) {
+            // past the last field that was set
+        }
+    }
+
+    @Test
+    public void paramsHaveRoomForTheSampleRate() {
+        EventSchema.Params params = schema.newParams("af_sample_rate");
+        params.set(1, 100.0);
+        params.set(schema.fieldCount(), 0.25);
+
+        assertEquals(2, params.size());
+        assertEquals(0.25, params.get("af_sample_rate"));
+        assertEquals(100.0, params.get("score"));
+
+        // a different sample rate parameter gets its own layout
+        EventSchema.Params other = schema.newParams("sample");
+        other.set(schema.fieldCount(), 0.5);
+        assertEquals(0.5, other.get("sample"));
+        assertFalse(other.containsKey("af_sample_rate"));
+    }
+
+    @Test
+    public void paramsOfOneCallDoNotAffectAnother() {
+        EventSchema.Params first = schema.newParams(null);
+        first.set(0, 1.0);
+        EventSchema.Params second = schema.newParams(null);
+
+        assertTrue(second.isEmpty());
+        assertEquals(1, first.size());
+    }
+}
@@ -0,0 +1,151 @@
+//
+// PreInitBufferTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Calls made before init are held in order up to the capacity and replayed once, calls made during the
+ * replay keep their place, an open buffer hands calls back to the caller, and dropped calls are reported.
+ */
+public class PreInitBufferTest {
+    private final List<String> ran = new ArrayList<>();
+
+    @Test
+    public void heldCallsAreReplayedInOrder() {
+        PreInitBuffer buffer = new PreInitBuffer();
+        long before = System.currentTimeMillis();
+        assertTrue(buffer.offer(call("a")));
+        assertTrue(buffer.offer(call("b")));
+        assertTrue(buffer.offer(call("c")));
+        assertEquals(3, buffer.size());
+        assertTrue(ran.isEmpty());
+
+        PreInitBuffer.ReplayResult result = buffer.replay();
+
+        assertEquals(Arrays.asList("a", "b", "c"), ran);
+        assertEquals(3, result.replayed);
+        assertEquals(0, result.dropped);
+        assertTrue(result.oldestCallTime >= before);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void callsOverTheCapacityAreDropped() {
+        PreInitBuffer buffer = new PreInitBuffer();
+        buffer.setCapacity(2);
+        for (String name : new String[] {"a", "b", "c", "d"}) {
+            assertTrue(buffer.offer(call(name)));
+        }
+
+        PreInitBuffer.ReplayResult result = buffer.replay();
+
+        assertEquals(Arrays.asList("a", "b"), ran);
+        assertEquals(2, result.replayed);
+        assertEquals(2, result.dropped);
+    }
+
+    @Test
+    public void callsMadeDuringTheReplayKeepTheirPlace() {
+        final PreInitBuffer buffer = new PreInitBuffer();
+        buffer.offer(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("a");
+                // a replayed call that makes another call, it runs after the calls held before it
+                assertTrue(buffer.offer(call("nested")));
+            }
+        });
+        buffer.offer(call("b"));
+
+        PreInitBuffer.ReplayResult result = buffer.replay();
+
+        assertEquals(Arrays.asList("a", "b", "nested"), ran);
+        assertEquals(3, result.replayed);
+    }
+
+    @Test
+    public void openBufferRefusesCalls() {
+        PreInitBuffer buffer = new PreInitBuffer();
+        PreInitBuffer.ReplayResult result = buffer.replay();
+        assertEquals(0, result.replayed);
+        assertEquals(0, result.oldestCallTime);
+
+        assertFalse(buffer.offer(call("late")));
+        assertEquals(0, buffer.size());
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void resetClosesTheBufferAndForgetsHeldCalls() {
+        PreInitBuffer buffer = new PreInitBuffer();
+        buffer.offer(call("exited"));
+        buffer.replay();
+        buffer.reset();
+        ran.clear();
+
+        // the next runtime holds its calls again
+        assertTrue(buffer.offer(call("next")));
+        buffer.reset();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.replay().replayed);
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void droppedCallsAreReported() {
+        PreInitBuffer buffer = new PreInitBuffer();
+        buffer.setCapacity(1);
+        assertTrue(buffer.offer(call("a"), dropListener("a")));
+        assertTrue(buffer.offer(call("b"), dropListener("b")));
+        assertEquals(Arrays.asList("b: " + PreInitBuffer.REASON_FULL), ran);
+
+        // the call still held when the runtime exits
+        ran.clear();
+        assertEquals(1, buffer.reset());
+        assertEquals(Arrays.asList("a: " + PreInitBuffer.REASON_RESET), ran);
+        assertEquals(0, buffer.reset());
+    }
+
+    @Test
+    public void replayedCallsAreNotReportedAsDropped() {
+        PreInitBuffer buffer = new PreInitBuffer();
+        buffer.offer(call("a"), dropListener("a"));
+        buffer.replay();
+        assertFalse(buffer.offer(call("late"), dropListener("late")));
+
+        assertEquals(0, buffer.reset());
+        assertEquals(Arrays.asList("a"), ran);
+    }
+
+    private PreInitBuffer.DropListener dropListener(final String name) {
+        return new PreInitBuffer.DropListener() {
+            @Override
+            public void dropped(String reason) {
+                ran.add(name + ": " + reason);
+            }
+        };
+    }
+
+    private Runnable call(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+}
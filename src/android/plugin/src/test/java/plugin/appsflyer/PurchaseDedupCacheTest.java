@@ -0,0 +1,119 @@
+//
+// PurchaseDedupCacheTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Validated purchases are caught as duplicates within a launch and, once the disk thread has saved them,
+ * by the next launch. Failed validations can be retried.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseDedupCacheTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("purchases", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void inFlightAndValidatedPurchasesAreDuplicates() throws Exception {
+        PurchaseDedupCache cache = loaded(new PurchaseDedupCache(file, 10));
+        long key = PurchaseDedupCache.hash("token");
+
+        assertTrue(cache.begin(key));
+        assertFalse(cache.begin(key));
+        cache.succeeded(key);
+        assertFalse(cache.begin(key));
+    }
+
+    @Test
+    public void failedPurchaseCanBeRetried() throws Exception {
+        PurchaseDedupCache cache = loaded(new PurchaseDedupCache(file, 10));
+        long key = PurchaseDedupCache.hash("token");
+
+        assertTrue(cache.begin(key));
+        cache.failed(key);
+        assertTrue(cache.begin(key));
+    }
+
+    @Test
+    public void validatedPurchasesSurviveARestart() throws Exception {
+        PurchaseDedupCache cache = loaded(new PurchaseDedupCache(file, 10));
+        for (int i = 0; i < 20; i++) {
+            long key = PurchaseDedupCache.hash("token" + i);
+            assertTrue(cache.begin(key));
+            cache.succeeded(key);
+        }
+        awaitDiskWriter();
+        assertTrue(file.isFile());
+
+        // only the 10 most recent purchases are kept
+        PurchaseDedupCache restarted = loaded(new PurchaseDedupCache(file, 10));
+        assertTrue(restarted.begin(PurchaseDedupCache.hash("token9")));
+        assertFalse(restarted.begin(PurchaseDedupCache.hash("token10")));
+        assertFalse(restarted.begin(PurchaseDedupCache.hash("token19")));
+    }
+
+    @Test
+    public void purchasesOfThisLaunchOutliveLoadedOnes() throws Exception {
+        PurchaseDedupCache cache = loaded(new PurchaseDedupCache(file, 2));
+        for (String token : new String[] {"old1", "old2"}) {
+            cache.begin(PurchaseDedupCache.hash(token));
+            cache.succeeded(PurchaseDedupCache.hash(token));
+        }
+        awaitDiskWriter();
+
+        // "new" may be validated before the file has been read, either way the older of the loaded purchases makes room for it
+        PurchaseDedupCache restarted = new PurchaseDedupCache(file, 2);
+        long key = PurchaseDedupCache.hash("new");
+        restarted.begin(key);
+        restarted.succeeded(key);
+        awaitDiskWriter();
+
+        assertFalse(restarted.begin(key));
+        assertFalse(restarted.begin(PurchaseDedupCache.hash("old2")));
+        assertTrue(restarted.begin(PurchaseDedupCache.hash("old1")));
+    }
+
+    private static PurchaseDedupCache loaded(PurchaseDedupCache cache) throws InterruptedException {
+        awaitDiskWriter();
+        return cache;
+    }
+
+    // wait until the disk thread has run everything posted so far
+    private static void awaitDiskWriter() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        DiskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,207 @@
+//
+// PurchaseValidatorTest.java
+// AppsFlyer Plugin
+//
+// Copyright (c) 2018 Corona Labs, Inc. All rights reserved.
+//
+
+package plugin.appsflyer;
+
+import android.content.Context;
+
+import com.appsflyer.AFAdRevenueData;
+import com.appsflyer.AppsFlyerConversionListener;
+import com.appsflyer.AppsFlyerInAppPurchaseValidatorListener;
+import com.appsflyer.attribution.AppsFlyerRequestListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Results of the SDK's single validator listener are matched to validations by start order, so a validation
+ * that times out must not leave its result, or the lack of one, to the validations after it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseValidatorTest {
+    private static final long TIMEOUT_MS = 100;
+
+    private SdkExecutor executor;
+    private ScriptedBackend sdk;
+
+    @Before
+    public void setUp() {
+        executor = SdkExecutor.create(SdkExecutor.MODE_WORKER);
+        sdk = new ScriptedBackend();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void resultAfterAnUnansweredValidationIsDelivered() throws Exception {
+        sdk.answers.add(null);                 // the SDK never answers the first validation
+        sdk.answers.add(Boolean.TRUE);
+        Results results = submit("first", "second");
+
+        assertTrue(results.await());
+        assertEquals("first: failed, timed out", results.get("first"));
+        assertEquals("second: validated", results.get("second"));
+    }
+
+    @Test
+    public void lateResultIsNotMatchedToTheNextValidation() throws Exception {
+        sdk.answers.add(Boolean.FALSE);        // the first validation fails, but only after it timed out
+        sdk.answers.add(Boolean.TRUE);
+        sdk.lateMs = TIMEOUT_MS + TIMEOUT_MS / 2;
+        Results results = submit("first", "second");
+
+        assertTrue(results.await());
+        assertEquals("first: failed, timed out", results.get("first"));
+        assertEquals("second: validated", results.get("second"));
+    }
+
+    // submit one validation per name on the SDK thread
+    private Results submit(final String... names) throws InterruptedException {
+        final Results results = new Results(names.length);
+        final CountDownLatch submitted = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PurchaseValidator validator = new PurchaseValidator(executor, sdk, null, 1, 10, TIMEOUT_MS);
+                for (String name : names) {
+                    validator.submit("key", "signature", name, "1.00", "USD", new HashMap<String, String>(), results.callback(name));
+                }
+                submitted.countDown();
+            }
+        });
+        assertTrue(submitted.await(1, TimeUnit.SECONDS));
+        return results;
+    }
+
+    private static final class Results {
+        private final Map<String, String> results = Collections.synchronizedMap(new HashMap<String, String>());
+        private final CountDownLatch done;
+
+        Results(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        PurchaseValidator.Callback callback(final String name) {
+            return new PurchaseValidator.Callback() {
+                @Override
+                public void onValidated(long sdkCallNanos) {
+                    results.put(name, name + ": validated");
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailed(String error, boolean timedOut, long sdkCallNanos) {
+                    results.put(name, name + ": failed" + (timedOut ? ", timed out" : ""));
+                    done.countDown();
+                }
+            };
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(10 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        String get(String name) {
+            return results.get(name);
+        }
+    }
+
+    // answers validations in order: true validates, false fails, null never answers
+    // the first answer comes after 'lateMs', the others right away
+    private static final class ScriptedBackend implements SdkBackend {
+        final List<Boolean> answers = Collections.synchronizedList(new ArrayList<Boolean>());
+        volatile long lateMs = 0;
+        private volatile AppsFlyerInAppPurchaseValidatorListener validatorListener;
+        private int validations = 0;
+
+        @Override
+        public void registerValidatorListener(Context context, AppsFlyerInAppPurchaseValidatorListener listener) {
+            validatorListener = listener;
+        }
+
+        @Override
+        public void validateAndLogInAppPurchase(Context context, String publicKey, String signature, String purchaseData,
+                                                String price, String currency, Map<String, String> additionalParameters) {
+            final Boolean answer = answers.get(validations);
+            final long delayMs = (validations++ == 0) ? lateMs : 0;
+            if (answer == null) {
+                return;
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(delayMs);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (answer) {
+                        validatorListener.onValidateInApp();
+                    } else {
+                        validatorListener.onValidateInAppFailure("rejected");
+                    }
+                }
+            }).start();
+        }
+
+        @Override
+        public void init(String devKey, AppsFlyerConversionListener conversionListener, Context context) {
+        }
+
+        @Override
+        public void start(Context context) {
+        }
+
+        @Override
+        public void registerConversionListener(Context context, AppsFlyerConversionListener conversionListener) {
+        }
+
+        @Override
+        public void setDebugLog(boolean enabled) {
+        }
+
+        @Override
+        public void anonymizeUser(boolean anonymize) {
+        }
+
+        @Override
+        public void logEvent(Context context, String eventName, Map<String, Object> eventValues, AppsFlyerRequestListener listener) {
+        }
+
+        @Override
+        public void logAdRevenue(AFAdRevenueData adRevenueData, Map<String, Object> additionalParameters) {
+        }
+
+        @Override
+        public String getSdkVersion() {
+            return "scripted";
+        }
+
+        @Override
+        public String getAppsFlyerUID(Context context) {
+            return null;
+        }
+    }
+}